@@ -0,0 +1,24 @@
+package telemetry.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Пути к словарю и файлу размерностей для замеров.
+ * По умолчанию берутся файлы из исходников (запуск из каталога bench),
+ * их можно заменить свойствами -Dtm.xml=... и -Dtm.dim=... (передаются через -jvmArgs).
+ */
+final class BenchFiles {
+    static final String XML = System.getProperty("tm.xml", "../src/telemetry/finalstage/KNP-173.14.33.58.dat.xml");
+    static final String DIM = System.getProperty("tm.dim", "../src/telemetry/finalstage/dimens.ion");
+
+    private BenchFiles() {
+    }
+
+    /**
+     * Отключает вывод программы в консоль (итоги загрузки и т. п.), чтобы он не мешал отчёту JMH
+     */
+    static void silence() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+}
@@ -0,0 +1,120 @@
+package telemetry.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import telemetry.finalstage.DatXML;
+import telemetry.finalstage.Dim;
+import telemetry.finalstage.ReadTMI;
+import telemetry.finalstage.TmCounters;
+import telemetry.finalstage.TmDecoder;
+import telemetry.finalstage.TmParamStats;
+import telemetry.finalstage.TmStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор ТМ-файла: последовательная загрузка, отображение в память, параллельная загрузка
+ * и потоковый подсчёт статистики (общей и по параметрам) без сохранения записей.
+ * Размер и состав файла задаются параметрами: -p records=5000000 -p mix=0:100:0:0:0,
+ * потоки параллельной загрузки - -p threads=1,2,4 (0 - по числу процессоров)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({"1000000"})
+    public long records;
+
+    @Param({TmFileGenerator.DEFAULT_MIX})
+    public String mix;
+
+    @Param({"0"})
+    public int threads;
+
+    private String tmFile;
+    private long fileSize;
+    private long recordCount;
+    private Dim dim;
+    private DatXML datXML;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchFiles.silence();
+        File file = File.createTempFile("bench", ".knp");
+        file.deleteOnExit();
+        tmFile = file.getPath();
+        fileSize = new TmFileGenerator(mix, 200, 42).write(tmFile, records);
+
+        dim = new Dim();
+        dim.load(BenchFiles.DIM);
+        datXML = new DatXML();
+        datXML.load(BenchFiles.XML);
+
+        TmCounters counters = new TmCounters();
+        TmDecoder.decodeFile(tmFile, counters);
+        recordCount = counters.getTotalRecords();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        new File(tmFile).delete();
+    }
+
+    @Benchmark
+    public TmStore load(Throughput throughput) throws IOException {
+        ReadTMI reader = new ReadTMI();
+        reader.load(tmFile, dim, datXML);
+        throughput.add(fileSize, recordCount);
+        return reader.getStore();
+    }
+
+    @Benchmark
+    public TmStore loadMapped(Throughput throughput) throws IOException {
+        ReadTMI reader = new ReadTMI();
+        reader.loadMapped(tmFile, dim, datXML);
+        throughput.add(fileSize, recordCount);
+        return reader.getStore();
+    }
+
+    @Benchmark
+    public TmStore loadParallel(Throughput throughput) throws IOException {
+        ReadTMI reader = new ReadTMI();
+        reader.loadParallel(tmFile, dim, datXML,
+                threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        throughput.add(fileSize, recordCount);
+        return reader.getStore();
+    }
+
+    @Benchmark
+    public TmCounters decodeCounters(Throughput throughput) throws IOException {
+        TmCounters counters = new TmCounters();
+        TmDecoder.decodeFile(tmFile, counters);
+        throughput.add(fileSize, recordCount);
+        return counters;
+    }
+
+    @Benchmark
+    public TmParamStats decodeParamStats(Throughput throughput) throws IOException {
+        TmParamStats stats = new TmParamStats();
+        TmDecoder.decodeFile(tmFile, stats);
+        throughput.add(fileSize, recordCount);
+        return stats;
+    }
+}
@@ -0,0 +1,144 @@
+package telemetry.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import telemetry.finalstage.DatXML;
+import telemetry.finalstage.Dim;
+import telemetry.finalstage.DictionarySnapshot;
+import telemetry.finalstage.TmMetadata;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Словари: разбор XML с параметрами, чтение двоичного снимка, загрузка и поиск размерностей.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DictionaryBenchmark {
+    private static final int LOOKUPS = 1024;
+
+    private Dim dim;
+    private DatXML datXML;
+    // Номера параметров: в основном из словаря, часть неизвестных
+    private int[] numbers;
+    private TmMetadata metadata;
+    // Копии словарей во временном каталоге: снимок пишется рядом с XML-файлом
+    private String snapshotXml;
+    private String snapshotDim;
+    // Коды размерностей: в основном из файла, часть неизвестных (для них строится "[код]")
+    private int[] codes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchFiles.silence();
+        dim = new Dim();
+        dim.load(BenchFiles.DIM);
+        int[] known = new int[256];
+        int count = 0;
+        for (int code = 32; code < 256; code++) {
+            if (!dim.getDimension(code).equals("[" + code + "]")) {
+                known[count++] = code;
+            }
+        }
+        codes = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            // Каждый восьмой код - за пределами файла размерностей
+            codes[i] = i % 8 == 7 ? 256 + i : known[(i * 31) % count];
+        }
+
+        datXML = new DatXML();
+        datXML.load(BenchFiles.XML);
+        numbers = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            numbers[i] = 1000 + (i * 37) % 4500;
+        }
+        metadata = new TmMetadata(dim, datXML);
+
+        Path dir = Files.createTempDirectory("bench");
+        snapshotXml = Files.copy(Paths.get(BenchFiles.XML), dir.resolve("dict.xml")).toString();
+        snapshotDim = Files.copy(Paths.get(BenchFiles.DIM), dir.resolve("dimens.ion")).toString();
+        DictionarySnapshot.write(snapshotXml, snapshotDim, datXML, dim);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Path dir = Paths.get(snapshotXml).getParent();
+        Files.deleteIfExists(DictionarySnapshot.snapshotPath(snapshotXml));
+        Files.deleteIfExists(Paths.get(snapshotXml));
+        Files.deleteIfExists(Paths.get(snapshotDim));
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public DatXML datXmlLoad() throws Exception {
+        DatXML datXML = new DatXML();
+        datXML.load(BenchFiles.XML);
+        return datXML;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public DatXML snapshotRead() {
+        DatXML x = new DatXML();
+        if (!DictionarySnapshot.read(snapshotXml, snapshotDim, x, new Dim())) {
+            throw new IllegalStateException("Снимок словаря не прочитан");
+        }
+        return x;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Dim dimLoad() throws IOException {
+        Dim d = new Dim();
+        d.load(BenchFiles.DIM);
+        return d;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void datXmlGetName(Blackhole bh) {
+        for (int number : numbers) {
+            bh.consume(datXML.getName(number));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void dimGetDimension(Blackhole bh) {
+        for (int code : codes) {
+            bh.consume(dim.getDimension(code));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void metadataLookup(Blackhole bh) {
+        for (int i = 0; i < LOOKUPS; i++) {
+            bh.consume(metadata.paramName(numbers[i]));
+            bh.consume(metadata.dimensionName(codes[i]));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package telemetry.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import telemetry.finalstage.DatXML;
+import telemetry.finalstage.Dim;
+import telemetry.finalstage.ReadTMI;
+import telemetry.finalstage.TmExporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выгрузка загруженного сеанса (TmExporter) в CSV и в столбцовый формат.
+ * Счётчик megabytes - записанные байты, records - записи.
+ * Масштабирование по ядрам - параметр threads: -p threads=1,2,4,8;
+ * compressed - выгрузка из сжатого хранилища (CompressedTmStore).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportBenchmark {
+
+    @Param({"1000000"})
+    public long records;
+
+    @Param({TmFileGenerator.DEFAULT_MIX})
+    public String mix;
+
+    @Param({"CSV", "COLUMNAR"})
+    public TmExporter.Format format;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private ReadTMI reader;
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchFiles.silence();
+        File file = File.createTempFile("bench", ".knp");
+        try {
+            new TmFileGenerator(mix, 200, 42).write(file.getPath(), records);
+            Dim dim = new Dim();
+            dim.load(BenchFiles.DIM);
+            DatXML datXML = new DatXML();
+            datXML.load(BenchFiles.XML);
+            reader = new ReadTMI();
+            reader.setCompressed(compressed);
+            reader.load(file.getPath(), dim, datXML);
+        } finally {
+            file.delete();
+        }
+        target = Files.createTempFile("bench-export", format.getSuffix());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(target);
+    }
+
+    @Benchmark
+    public long exportStore(Throughput throughput) throws IOException {
+        TmExporter exporter = new TmExporter(format);
+        exporter.setParallelism(threads);
+        long bytes = exporter.exportStore(reader.getStore(), target);
+        throughput.add(bytes, reader.getUsefulRecords());
+        return bytes;
+    }
+}
@@ -0,0 +1,90 @@
+package telemetry.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import telemetry.finalstage.DatXML;
+import telemetry.finalstage.Dim;
+import telemetry.finalstage.ReadTMI;
+import telemetry.finalstage.TmStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Загрузка нескольких сеансов сразу (ReadTMI.loadFiles): одновременный разбор файлов
+ * и слияние серий по времени. Масштабирование по ядрам - параметр threads:
+ * -p threads=1,2,4,8
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultiFileBenchmark {
+
+    @Param({"4"})
+    public int files;
+
+    @Param({"250000"})
+    public long recordsPerFile;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private final List<String> tmFiles = new ArrayList<>();
+    private long totalSize;
+    private long totalRecords;
+    private Dim dim;
+    private DatXML datXML;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchFiles.silence();
+        for (int i = 0; i < files; i++) {
+            File file = File.createTempFile("bench-session", ".knp");
+            file.deleteOnExit();
+            // У каждого сеанса свои значения, но общий набор параметров
+            totalSize += new TmFileGenerator(TmFileGenerator.DEFAULT_MIX, 200, 42 + i)
+                    .write(file.getPath(), recordsPerFile);
+            tmFiles.add(file.getPath());
+        }
+        dim = new Dim();
+        dim.load(BenchFiles.DIM);
+        datXML = new DatXML();
+        datXML.load(BenchFiles.XML);
+
+        ReadTMI reader = new ReadTMI();
+        reader.loadFiles(tmFiles, dim, datXML, threads);
+        totalRecords = reader.getTotalRecords();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (String file : tmFiles) {
+            new File(file).delete();
+        }
+    }
+
+    @Benchmark
+    public TmStore loadFiles(Throughput throughput) throws IOException {
+        ReadTMI reader = new ReadTMI();
+        reader.loadFiles(tmFiles, dim, datXML, threads);
+        throughput.add(totalSize, totalRecords);
+        return reader.getStore();
+    }
+}
@@ -0,0 +1,168 @@
+package telemetry.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import telemetry.finalstage.DatXML;
+import telemetry.finalstage.Dim;
+import telemetry.finalstage.ReadTMI;
+import telemetry.finalstage.TmDat;
+import telemetry.finalstage.TmSeries;
+import telemetry.finalstage.TmSeriesPyramid;
+import telemetry.finalstage.TmValueTableModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Вывод значений: форматирование времени и значения одной записи,
+ * построение текста всей серии (так окно выводило значения до таблицы)
+ * заполнение одной видимой страницы таблицы значений (TmValueTableModel)
+ * и выборка столбцов графика из уровней прореживания (TmSeriesPyramid).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+    private static final int SAMPLE = 1024;
+    // Строк на экране таблицы значений
+    private static final int PAGE_ROWS = 40;
+    // Столбцов графика (пикселей по горизонтали)
+    private static final int CHART_COLUMNS = 2000;
+
+    @Param({"200000"})
+    public long records;
+
+    @Param({TmFileGenerator.DEFAULT_MIX})
+    public String mix;
+
+    private TmSeries series;
+    private long[] times;
+    private TmDat[] sample;
+    private TmValueTableModel table;
+    private int page = 0;
+    private long window = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchFiles.silence();
+        File file = File.createTempFile("bench", ".knp");
+        try {
+            // Один параметр: вся серия выводится целиком
+            new TmFileGenerator(mix, 1, 42).write(file.getPath(), records);
+            Dim dim = new Dim();
+            dim.load(BenchFiles.DIM);
+            DatXML datXML = new DatXML();
+            datXML.load(BenchFiles.XML);
+            ReadTMI reader = new ReadTMI();
+            reader.load(file.getPath(), dim, datXML);
+            series = reader.getStore().getAllSeries().iterator().next();
+        } finally {
+            file.delete();
+        }
+
+        times = new long[SAMPLE];
+        sample = new TmDat[SAMPLE];
+        for (int i = 0; i < SAMPLE; i++) {
+            int index = (int) ((long) i * series.size() / SAMPLE);
+            times[i] = series.getTime(index);
+            sample[i] = series.get(index);
+        }
+        table = new TmValueTableModel();
+        table.show(series, Long.MIN_VALUE, Long.MAX_VALUE);
+        series.getPyramid().update();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLE)
+    public void formatTime(Blackhole bh) {
+        for (long time : times) {
+            bh.consume(TmDat.formatTime(time));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLE)
+    public void valueAsString(Blackhole bh) {
+        for (TmDat record : sample) {
+            bh.consume(record.getValueAsString());
+        }
+    }
+
+    /**
+     * Текст всей серии, как выводился в окне до таблицы; счётчик records - записей в секунду
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String renderSeries(Throughput throughput) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Параметр: ").append(series.getName()).append("\n");
+        sb.append("Всего записей: ").append(series.size()).append("\n");
+        sb.append("--------------------------------------------------\n");
+        for (int i = 0; i < series.size(); i++) {
+            sb.append(TmDat.formatTime(series.getTime(i)))
+                    .append("  ")
+                    .append(series.get(i).getValueAsString())
+                    .append("\n");
+        }
+        throughput.add(0, series.size());
+        return sb.toString();
+    }
+
+    /**
+     * Ячейки одной страницы таблицы, как их запрашивает JTable при прокрутке;
+     * страницы берутся по всей серии
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void renderTablePage(Blackhole bh) {
+        int rows = table.getRowCount();
+        page = (page + 7919) % Math.max(1, rows - PAGE_ROWS);
+        for (int row = page; row < page + PAGE_ROWS && row < rows; row++) {
+            for (int column = 0; column < table.getColumnCount(); column++) {
+                bh.consume(table.getValueAt(row, column));
+            }
+        }
+    }
+
+    /**
+     * Столбцы графика по всей серии
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public TmSeriesPyramid.Envelope chartWhole() {
+        return series.getPyramid().query(Long.MIN_VALUE, Long.MAX_VALUE, CHART_COLUMNS);
+    }
+
+    /**
+     * Столбцы графика по окну в десятую часть серии, окна сдвигаются по всей серии
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public TmSeriesPyramid.Envelope chartZoomed() {
+        long first = series.getTime(0);
+        long span = series.getTime(series.size() - 1) - first;
+        window = (window + 7919) % 10000;
+        long from = first + span * window / 11000;
+        return series.getPyramid().query(from, from + span / 10, CHART_COLUMNS);
+    }
+}
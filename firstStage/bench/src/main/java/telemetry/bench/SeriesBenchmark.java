@@ -0,0 +1,93 @@
+package telemetry.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import telemetry.finalstage.DatXML;
+import telemetry.finalstage.Dim;
+import telemetry.finalstage.ReadTMI;
+import telemetry.finalstage.TmSeries;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение загруженных серий: в куче (TmStore) и сжатых (CompressedTmStore).
+ * scan - проход по всем записям всех серий, range - выборки по времени (lowerBound/upperBound).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SeriesBenchmark {
+
+    @Param({"1000000"})
+    public long records;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private String tmFile;
+    private TmSeries[] series;
+    private long recordCount;
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchFiles.silence();
+        File file = File.createTempFile("bench-series", ".knp");
+        file.deleteOnExit();
+        tmFile = file.getPath();
+        new TmFileGenerator(TmFileGenerator.DEFAULT_MIX, 200, 42).write(tmFile, records);
+
+        Dim dim = new Dim();
+        dim.load(BenchFiles.DIM);
+        DatXML datXML = new DatXML();
+        datXML.load(BenchFiles.XML);
+
+        ReadTMI reader = new ReadTMI();
+        reader.setSaveRecordIndex(false);
+        reader.setCompressed(compressed);
+        reader.load(tmFile, dim, datXML);
+        series = reader.getStore().getAllSeries().toArray(new TmSeries[0]);
+        recordCount = reader.getStore().getRecordCount();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        new File(tmFile).delete();
+    }
+
+    @Benchmark
+    public double scan(Throughput throughput) {
+        double sum = 0;
+        for (TmSeries s : series) {
+            for (int i = 0; i < s.size(); i++) {
+                sum += s.getTime(i) + s.getIntValue(i) + s.getDoubleValue(i);
+            }
+        }
+        throughput.add(0, recordCount);
+        return sum;
+    }
+
+    @Benchmark
+    public int range() {
+        TmSeries s = series[random.nextInt(series.length)];
+        long from = random.nextInt(86_400_000);
+        // Окно в секунду
+        return s.upperBound(from + 1000) - s.lowerBound(from);
+    }
+}
@@ -0,0 +1,29 @@
+package telemetry.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Дополнительные счётчики замера: JMH выводит их как скорость (в секунду),
+ * то есть МБ/с и записей/с рядом с числом операций.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+    public double megabytes;
+    public long records;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megabytes = 0;
+        records = 0;
+    }
+
+    void add(long bytes, long count) {
+        megabytes += bytes / 1e6;
+        records += count;
+    }
+}
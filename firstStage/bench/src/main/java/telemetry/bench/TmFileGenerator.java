@@ -0,0 +1,123 @@
+package telemetry.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Генератор синтетических ТМ-файлов для замеров.
+ * Состав задаётся весами типов "long:double:code:point:service", например "35:30:20:10:5".
+ * Файл начинается с заголовка сеанса (две служебные записи, 32 байта), время растёт монотонно.
+ * Запуск: java -cp benchmarks.jar telemetry.bench.TmFileGenerator файл записей [состав] [параметров]
+ */
+public class TmFileGenerator {
+    public static final String DEFAULT_MIX = "35:30:20:10:5";
+    // Номера параметров берутся подряд начиная с этого (как в словаре KNP)
+    private static final int FIRST_PARAM = 1000;
+
+    private final int[] weights = new int[5];
+    private final int totalWeight;
+    private final int paramCount;
+    private final Random random;
+
+    /**
+     * @param mix веса типов "long:double:code:point:service"
+     * @param paramCount количество различных параметров
+     * @param seed начальное значение генератора случайных чисел
+     */
+    public TmFileGenerator(String mix, int paramCount, long seed) {
+        String[] parts = mix.split(":");
+        if (parts.length != weights.length) {
+            throw new IllegalArgumentException("Состав должен быть вида long:double:code:point:service: " + mix);
+        }
+        int sum = 0;
+        for (int i = 0; i < parts.length; i++) {
+            weights[i] = Integer.parseInt(parts[i].trim());
+            sum += weights[i];
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("Сумма весов должна быть положительной: " + mix);
+        }
+        this.totalWeight = sum;
+        this.paramCount = paramCount;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Записывает файл из records записей (не считая заголовка)
+     * @return размер файла в байтах
+     */
+    public long write(String filename, long records) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(filename), 1 << 16))) {
+            // Заголовок сеанса
+            for (int i = 0; i < 2; i++) {
+                writeService(out, i);
+            }
+            long time = 0;
+            for (long i = 0; i < records; i++) {
+                time += random.nextInt(20);
+                writeRecord(out, (int) (time % 86_400_000));
+            }
+            return out.size();
+        }
+    }
+
+    private void writeRecord(DataOutputStream out, int time) throws IOException {
+        int k = random.nextInt(totalWeight);
+        int type = 0;
+        while (k >= weights[type]) {
+            k -= weights[type];
+            type++;
+        }
+        if (type == 4) {
+            writeService(out, time);
+            return;
+        }
+        out.writeShort(FIRST_PARAM + random.nextInt(paramCount));
+        out.writeInt(time);
+        out.writeByte(32 + random.nextInt(100));   // размерность
+        out.writeByte(random.nextInt(4) << 4 | type);
+        switch (type) {
+            case 1:
+                out.writeDouble(random.nextGaussian() * 100);
+                break;
+            case 3: {
+                int length = 1 + random.nextInt(16);
+                out.writeByte(1);
+                out.writeByte(0);
+                out.writeShort(length);
+                byte[] data = new byte[length];
+                random.nextBytes(data);
+                out.write(data);
+                break;
+            }
+            default:
+                out.writeByte(0);
+                out.writeByte(type == 2 ? 1 + random.nextInt(16) : 0);   // длина кода
+                out.writeShort(0);
+                out.writeInt(type == 2 ? random.nextInt(1 << 16) : random.nextInt());
+                break;
+        }
+    }
+
+    private void writeService(DataOutputStream out, int time) throws IOException {
+        out.writeShort(0xFFFF);
+        out.writeInt(time);
+        out.writeShort(0);
+        out.writeLong(0);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Использование: TmFileGenerator файл записей [состав] [параметров]");
+            return;
+        }
+        String mix = args.length > 2 ? args[2] : DEFAULT_MIX;
+        int params = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        long size = new TmFileGenerator(mix, params, 42).write(args[0], Long.parseLong(args[1]));
+        System.out.printf("%s: %.1f МБ%n", args[0], size / 1e6);
+    }
+}
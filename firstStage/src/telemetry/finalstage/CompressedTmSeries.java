@@ -0,0 +1,681 @@
+package telemetry.finalstage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Серия в куче в сжатом виде: записи хранятся блоками по BLOCK_SIZE, каждый заполненный блок
+ * сжимается в массив байт (TmCompression):
+ * <ul>
+ *   <li>время - первое значение, первая разность и дальше разности разностей (varint, zig-zag);
+ *       при почти равномерном опросе это один байт на запись;</li>
+ *   <li>атрибут/тип, размерность, номер параметра, длина кода - сериями одинаковых значений;</li>
+ *   <li>Long и Code - разности с предыдущим значением (varint, zig-zag);</li>
+ *   <li>Double - XOR с предыдущим значением (одно неизменное значение - один бит).</li>
+ * </ul>
+ * Данные Point не сжимаются: блок хранит ссылки на них, как HeapTmSeries.
+ *
+ * Доступ по номеру записи: номер блока - номер записи, делённый на BLOCK_SIZE; блок
+ * распаковывается целиком, последний распакованный блок запоминается - у каждого читающего
+ * потока свой (ячейка по номеру потока), поэтому проход по порядку распаковывает каждый блок
+ * один раз, даже если другие потоки (выгрузка в несколько потоков, построение уровней графика
+ * рядом с отрисовкой таблицы) в это время читают другие блоки той же серии. Выборки по времени сначала ищут блок
+ * по времени его первой и последней записи, распаковывается только один блок.
+ * Последний, ещё не заполненный блок хранится несжатым; compact сжимает и его.
+ *
+ * Чтение из нескольких потоков допустимо (распакованный блок не меняется после публикации),
+ * добавление - как у HeapTmSeries, из одного потока без одновременного чтения.
+ */
+public class CompressedTmSeries extends TmSeries {
+    private static final int SHIFT = 8;
+    /** Записей в блоке */
+    public static final int BLOCK_SIZE = 1 << SHIFT;
+    private static final int MASK = BLOCK_SIZE - 1;
+    private static final int INITIAL_CAPACITY = 16;
+    // Ячеек распакованных блоков
+    private static final int CACHE_SLOTS = 4;
+
+    private int size = 0;
+    // Сжатые блоки: байты, данные Point (null, если их нет), время первой и последней записи
+    private byte[][] blocks = new byte[4][];
+    private ByteBuffer[][] blockPoints = new ByteBuffer[4][];
+    private long[] firstTimes = new long[4];
+    private long[] lastTimes = new long[4];
+    private int blockCount = 0;
+    // Незаполненный блок с номером blockCount (null - новые записи начнут новый блок)
+    private Block tail;
+    // Последние распакованные блоки, по ячейке на поток (см. slot)
+    private final AtomicReferenceArray<Block> cached = new AtomicReferenceArray<>(CACHE_SLOTS);
+
+    public CompressedTmSeries(TmStore store, String name, int number) {
+        super(store, name, number);
+    }
+
+    @Override
+    public int size() { return size; }
+
+    @Override
+    public int getNumber(int i) {
+        Block b = block(i);
+        return b.numbers == null ? number : b.numbers[i & MASK];
+    }
+
+    @Override
+    public long getTime(int i) { return block(i).times[i & MASK]; }
+
+    @Override
+    public int getDimensionCode(int i) { return block(i).dimensions[i & MASK] & 0xFF; }
+
+    @Override
+    public int getAttribute(int i) { return (block(i).flags[i & MASK] & 0xF0) >> 4; }
+
+    @Override
+    public int getValueType(int i) { return block(i).flags[i & MASK] & 0x0F; }
+
+    @Override
+    public int getIntValue(int i) {
+        Block b = block(i);
+        return b.ints == null ? 0 : b.ints[i & MASK];
+    }
+
+    @Override
+    public double getDoubleValue(int i) {
+        Block b = block(i);
+        return b.doubles == null ? 0.0 : b.doubles[i & MASK];
+    }
+
+    @Override
+    public int getCodeLength(int i) {
+        Block b = block(i);
+        return b.codeLengths == null ? 0 : b.codeLengths[i & MASK] & 0xFF;
+    }
+
+    @Override
+    public ByteBuffer getPointData(int i) {
+        Block b = block(i);
+        return b.points == null || b.points[i & MASK] == null ? null : b.points[i & MASK].duplicate();
+    }
+
+    /** Блок, в котором лежит запись i */
+    private Block block(int i) {
+        int index = i >>> SHIFT;
+        Block t = tail;
+        if (t != null && index == blockCount) {
+            return t;
+        }
+        int slot = slot();
+        Block c = cached.get(slot);
+        if (c == null || c.index != index) {
+            c = decode(index);
+            cached.set(slot, c);
+        }
+        return c;
+    }
+
+    /** Ячейка распакованного блока текущего потока; потоки с соседними номерами не делят ячейку */
+    private static int slot() {
+        return (int) Thread.currentThread().getId() & (CACHE_SLOTS - 1);
+    }
+
+    /** Забывает распакованные блоки всех потоков (при изменении записей) */
+    private void forgetCached() {
+        for (int s = 0; s < CACHE_SLOTS; s++) {
+            cached.set(s, null);
+        }
+    }
+
+    // Добавление записей
+
+    @Override
+    void appendLong(int number, long time, int dimensionCode, int attribute, int value) {
+        trackOrder(time);
+        Block b = open();
+        int j = b.add(number, time, dimensionCode, attribute, TmFormat.TYPE_LONG, this.number);
+        b.setInt(j, value);
+        added(b);
+    }
+
+    @Override
+    void appendDouble(int number, long time, int dimensionCode, int attribute, double value) {
+        trackOrder(time);
+        Block b = open();
+        int j = b.add(number, time, dimensionCode, attribute, TmFormat.TYPE_DOUBLE, this.number);
+        b.setDouble(j, value);
+        added(b);
+    }
+
+    @Override
+    void appendCode(int number, long time, int dimensionCode, int attribute, int codeLength, int value) {
+        trackOrder(time);
+        Block b = open();
+        int j = b.add(number, time, dimensionCode, attribute, TmFormat.TYPE_CODE, this.number);
+        b.setInt(j, value);
+        b.setCodeLength(j, codeLength);
+        added(b);
+    }
+
+    @Override
+    void appendPoint(int number, long time, int dimensionCode, int attribute, ByteBuffer data) {
+        trackOrder(time);
+        Block b = open();
+        int j = b.add(number, time, dimensionCode, attribute, TmFormat.TYPE_POINT, this.number);
+        b.setPoint(j, data);
+        added(b);
+    }
+
+    @Override
+    void appendUnknown(int number, long time, int dimensionCode, int attribute, int valueType) {
+        trackOrder(time);
+        Block b = open();
+        b.add(number, time, dimensionCode, attribute, valueType, this.number);
+        added(b);
+    }
+
+    /**
+     * Блок для новой записи: незаполненный, снова распакованный последний блок (если он
+     * был сжат неполным) или новый
+     */
+    private Block open() {
+        if (tail != null) {
+            return tail;
+        }
+        if ((size & MASK) != 0) {
+            // Обычно этот блок только что распакован для trackOrder
+            Block c = cached.get(slot());
+            Block last = (c != null && c.index == blockCount - 1 ? c : decode(blockCount - 1)).reopen();
+            blockCount--;
+            blocks[blockCount] = null;
+            blockPoints[blockCount] = null;
+            forgetCached();
+            tail = last;
+        } else {
+            tail = new Block(blockCount, INITIAL_CAPACITY);
+        }
+        return tail;
+    }
+
+    /** Запись добавлена в блок; заполненный блок сжимается */
+    private void added(Block b) {
+        size++;
+        if (b.size == BLOCK_SIZE) {
+            seal();
+            // Только что сжатый блок ещё распакован: trackOrder следующей записи читает его
+            cached.set(slot(), b);
+        }
+    }
+
+    /** Сжимает незаполненный блок */
+    private void seal() {
+        Block b = tail;
+        tail = null;
+        if (blockCount == blocks.length) {
+            int capacity = blockCount * 2;
+            blocks = Arrays.copyOf(blocks, capacity);
+            blockPoints = Arrays.copyOf(blockPoints, capacity);
+            firstTimes = Arrays.copyOf(firstTimes, capacity);
+            lastTimes = Arrays.copyOf(lastTimes, capacity);
+        }
+        blocks[blockCount] = b.encode();
+        blockPoints[blockCount] = b.points == null ? null : Arrays.copyOf(b.points, b.size);
+        firstTimes[blockCount] = b.times[0];
+        lastTimes[blockCount] = b.times[b.size - 1];
+        blockCount++;
+    }
+
+    /**
+     * Сжимает последний незаполненный блок и забывает распакованный блок
+     * (после загрузки в памяти остаются только сжатые данные)
+     */
+    @Override
+    void compact() {
+        if (tail != null && tail.size > 0) {
+            seal();
+        }
+        tail = null;
+        forgetCached();
+    }
+
+    /** Байт в сжатых блоках и несжатом последнем блоке (без данных Point и служебных массивов) */
+    public long getStoredBytes() {
+        long bytes = 0;
+        for (int b = 0; b < blockCount; b++) {
+            bytes += blocks[b].length;
+        }
+        Block t = tail;
+        if (t != null) {
+            bytes += (long) t.times.length * 10
+                    + (t.ints == null ? 0 : t.ints.length * 4L)
+                    + (t.doubles == null ? 0 : t.doubles.length * 8L);
+        }
+        return bytes;
+    }
+
+    private Block decode(int index) {
+        int count = index == blockCount - 1 && (size & MASK) != 0 && tail == null ? size & MASK : BLOCK_SIZE;
+        return Block.decode(index, count, blocks[index], blockPoints[index], number);
+    }
+
+    // Выборки по времени: сначала блок по времени первой и последней записи
+
+    @Override
+    public int lowerBound(long time) {
+        sortByTime();
+        // Первый блок, последняя запись которого не раньше time
+        int low = 0;
+        int high = totalBlocks();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lastTime(middle) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (low == totalBlocks()) {
+            return size;
+        }
+        return (low << SHIFT) + boundInBlock(low, time, false);
+    }
+
+    @Override
+    public int upperBound(long time) {
+        sortByTime();
+        // Первый блок, последняя запись которого позже time
+        int low = 0;
+        int high = totalBlocks();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lastTime(middle) <= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (low == totalBlocks()) {
+            return size;
+        }
+        return (low << SHIFT) + boundInBlock(low, time, true);
+    }
+
+    /**
+     * Номер внутри блока первой записи со временем не раньше (upper - позже) time.
+     * Распакованный блок просматривается двоичным поиском, сжатый распаковывается
+     * только до нужной записи и только по столбцу времени.
+     */
+    private int boundInBlock(int index, long time, boolean upper) {
+        Block t = tail;
+        Block b = t != null && index == blockCount ? t : cached.get(slot());
+        if (b != null && b.index == index) {
+            return upper ? b.upperBound(time) : b.lowerBound(time);
+        }
+        int count = index == blockCount - 1 && (size & MASK) != 0 && t == null ? size & MASK : BLOCK_SIZE;
+        return Block.timeBound(blocks[index], count, time, upper);
+    }
+
+    /** Блоков вместе с незаполненным */
+    private int totalBlocks() {
+        return tail != null && tail.size > 0 ? blockCount + 1 : blockCount;
+    }
+
+    private long lastTime(int index) {
+        return index < blockCount ? lastTimes[index] : tail.times[tail.size - 1];
+    }
+
+    /**
+     * Перестановка по времени: все записи распаковываются, упорядочиваются
+     * (устойчиво) и сжимаются заново. Временно занимает столько же, сколько HeapTmSeries.
+     */
+    @Override
+    protected void sortRows() {
+        Block all = new Block(0, Math.max(size, 1));
+        for (int i = 0; i < size; i++) {
+            all.copyFrom(block(i), i & MASK, number);
+        }
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        mergeSort(all.times, order, new int[size], 0, size);
+
+        int n = size;
+        size = 0;
+        blocks = new byte[4][];
+        blockPoints = new ByteBuffer[4][];
+        firstTimes = new long[4];
+        lastTimes = new long[4];
+        blockCount = 0;
+        tail = null;
+        forgetCached();
+        for (int k = 0; k < n; k++) {
+            Block b = open();
+            b.copyFrom(all, order[k], number);
+            added(b);
+        }
+    }
+
+    private static void mergeSort(long[] times, int[] order, int[] tmp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(times, order, tmp, from, middle);
+        mergeSort(times, order, tmp, middle, to);
+        if (times[order[middle - 1]] <= times[order[middle]]) {
+            return;
+        }
+        System.arraycopy(order, from, tmp, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int k = from; k < to; k++) {
+            if (right >= to || (left < middle && times[tmp[left]] <= times[tmp[right]])) {
+                order[k] = tmp[left++];
+            } else {
+                order[k] = tmp[right++];
+            }
+        }
+    }
+
+    /**
+     * Распакованный блок: по массиву на поле, как в HeapTmSeries. Столбцы значений
+     * создаются только для встретившихся типов, номера - только если они отличаются от номера серии.
+     */
+    private static final class Block {
+        final int index;
+        int size = 0;
+        long[] times;
+        byte[] flags;
+        byte[] dimensions;
+        int[] numbers;
+        int[] ints;
+        double[] doubles;
+        byte[] codeLengths;
+        ByteBuffer[] points;
+
+        Block(int index, int capacity) {
+            this.index = index;
+            times = new long[capacity];
+            flags = new byte[capacity];
+            dimensions = new byte[capacity];
+        }
+
+        int add(int number, long time, int dimensionCode, int attribute, int valueType, int seriesNumber) {
+            if (size == times.length) {
+                grow(Math.min(Math.max(size * 2, INITIAL_CAPACITY), Math.max(size + 1, BLOCK_SIZE)));
+            }
+            if (number != seriesNumber && numbers == null) {
+                numbers = new int[times.length];
+                Arrays.fill(numbers, 0, size, seriesNumber);
+            }
+            int j = size++;
+            times[j] = time;
+            flags[j] = (byte) (attribute << 4 | valueType);
+            dimensions[j] = (byte) dimensionCode;
+            if (numbers != null) numbers[j] = number;
+            return j;
+        }
+
+        void setInt(int j, int value) {
+            if (ints == null) ints = new int[times.length];
+            ints[j] = value;
+        }
+
+        void setDouble(int j, double value) {
+            if (doubles == null) doubles = new double[times.length];
+            doubles[j] = value;
+        }
+
+        void setCodeLength(int j, int codeLength) {
+            if (codeLengths == null) codeLengths = new byte[times.length];
+            codeLengths[j] = (byte) codeLength;
+        }
+
+        void setPoint(int j, ByteBuffer data) {
+            if (points == null) points = new ByteBuffer[times.length];
+            points[j] = data;
+        }
+
+        /** Добавляет копию записи j другого блока */
+        void copyFrom(Block other, int j, int seriesNumber) {
+            int k = add(other.numbers == null ? seriesNumber : other.numbers[j], other.times[j],
+                    other.dimensions[j] & 0xFF, (other.flags[j] & 0xF0) >> 4, other.flags[j] & 0x0F, seriesNumber);
+            if (other.ints != null) setInt(k, other.ints[j]);
+            if (other.doubles != null) setDouble(k, other.doubles[j]);
+            if (other.codeLengths != null) setCodeLength(k, other.codeLengths[j]);
+            if (other.points != null) setPoint(k, other.points[j]);
+        }
+
+        private void grow(int capacity) {
+            times = Arrays.copyOf(times, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            dimensions = Arrays.copyOf(dimensions, capacity);
+            if (numbers != null) numbers = Arrays.copyOf(numbers, capacity);
+            if (ints != null) ints = Arrays.copyOf(ints, capacity);
+            if (doubles != null) doubles = Arrays.copyOf(doubles, capacity);
+            if (codeLengths != null) codeLengths = Arrays.copyOf(codeLengths, capacity);
+            if (points != null) points = Arrays.copyOf(points, capacity);
+        }
+
+        /** Распакованный неполный блок снова становится незаполненным (с местом до BLOCK_SIZE) */
+        Block reopen() {
+            grow(BLOCK_SIZE);
+            return this;
+        }
+
+        int lowerBound(long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (times[middle] < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        int upperBound(long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (times[middle] <= time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /** Первая запись сжатого блока со временем не раньше (upper - позже) time или count */
+        static int timeBound(byte[] bytes, int count, long time, boolean upper) {
+            TmCompression.ByteReader in = new TmCompression.ByteReader(bytes, 1);
+            long previous = in.readSigned();
+            long delta = 0;
+            for (int j = 0; ; ) {
+                if (upper ? previous > time : previous >= time) {
+                    return j;
+                }
+                if (++j == count) {
+                    return count;
+                }
+                delta += in.readSigned();
+                previous += delta;
+            }
+        }
+
+        /**
+         * Формат блока: байт наличия столбцов, время (первое, первая разность, разности разностей),
+         * серии флагов, размерностей, номеров (если есть), длин кодов (по записям Code),
+         * разности Long/Code (по записям этих типов), затем биты Double (по записям Double)
+         */
+        byte[] encode() {
+            TmCompression.ByteWriter out = new TmCompression.ByteWriter();
+            out.write(numbers != null ? 1 : 0);
+
+            long previous = times[0];
+            long delta = 0;
+            out.writeSigned(previous);
+            for (int j = 1; j < size; j++) {
+                long d = times[j] - previous;
+                out.writeSigned(d - delta);
+                delta = d;
+                previous = times[j];
+            }
+
+            writeRuns(out, flags, null, 0);
+            writeRuns(out, dimensions, null, 0);
+            if (numbers != null) {
+                writeRuns(out, numbers);
+            }
+            writeRuns(out, codeLengths, flags, TmFormat.TYPE_CODE);
+
+            long value = 0;
+            for (int j = 0; j < size; j++) {
+                int type = flags[j] & 0x0F;
+                if (type == TmFormat.TYPE_LONG || type == TmFormat.TYPE_CODE) {
+                    out.writeSigned(ints[j] - value);
+                    value = ints[j];
+                }
+            }
+
+            TmCompression.BitWriter bits = new TmCompression.BitWriter(out);
+            TmCompression.DoubleEncoder doubleEncoder = new TmCompression.DoubleEncoder(bits);
+            for (int j = 0; j < size; j++) {
+                if ((flags[j] & 0x0F) == TmFormat.TYPE_DOUBLE) {
+                    doubleEncoder.write(doubles[j]);
+                }
+            }
+            bits.flush();
+            return out.toArray();
+        }
+
+        /** Серии одинаковых байт (значение, длина) по записям типа type (или по всем, если mask == null) */
+        private void writeRuns(TmCompression.ByteWriter out, byte[] column, byte[] mask, int type) {
+            int run = 0;
+            int current = 0;
+            for (int j = 0; j < size; j++) {
+                if (mask != null && (mask[j] & 0x0F) != type) {
+                    continue;
+                }
+                int v = column[j] & 0xFF;
+                if (run > 0 && v != current) {
+                    out.write(current);
+                    out.writeVarLong(run);
+                    run = 0;
+                }
+                current = v;
+                run++;
+            }
+            if (run > 0) {
+                out.write(current);
+                out.writeVarLong(run);
+            }
+        }
+
+        private void writeRuns(TmCompression.ByteWriter out, int[] column) {
+            int run = 0;
+            int current = 0;
+            for (int j = 0; j < size; j++) {
+                if (run > 0 && column[j] != current) {
+                    out.writeVarLong(current);
+                    out.writeVarLong(run);
+                    run = 0;
+                }
+                current = column[j];
+                run++;
+            }
+            out.writeVarLong(current);
+            out.writeVarLong(run);
+        }
+
+        static Block decode(int index, int count, byte[] bytes, ByteBuffer[] points, int seriesNumber) {
+            Block b = new Block(index, count);
+            b.size = count;
+            TmCompression.ByteReader in = new TmCompression.ByteReader(bytes, 0);
+            boolean hasNumbers = in.read() != 0;
+
+            long previous = in.readSigned();
+            long delta = 0;
+            b.times[0] = previous;
+            for (int j = 1; j < count; j++) {
+                delta += in.readSigned();
+                previous += delta;
+                b.times[j] = previous;
+            }
+
+            readRuns(in, b.flags, count, null, 0);
+            readRuns(in, b.dimensions, count, null, 0);
+            if (hasNumbers) {
+                b.numbers = new int[count];
+                for (int j = 0; j < count; ) {
+                    int value = (int) in.readVarLong();
+                    int run = (int) in.readVarLong();
+                    Arrays.fill(b.numbers, j, j + run, value);
+                    j += run;
+                }
+            }
+
+            int codes = 0;
+            int intValues = 0;
+            int doubleValues = 0;
+            for (int j = 0; j < count; j++) {
+                int type = b.flags[j] & 0x0F;
+                if (type == TmFormat.TYPE_CODE) codes++;
+                if (type == TmFormat.TYPE_LONG || type == TmFormat.TYPE_CODE) intValues++;
+                if (type == TmFormat.TYPE_DOUBLE) doubleValues++;
+            }
+            if (codes > 0) {
+                b.codeLengths = new byte[count];
+                readRuns(in, b.codeLengths, count, b.flags, TmFormat.TYPE_CODE);
+            }
+            if (intValues > 0) {
+                b.ints = new int[count];
+                long value = 0;
+                for (int j = 0; j < count; j++) {
+                    int type = b.flags[j] & 0x0F;
+                    if (type == TmFormat.TYPE_LONG || type == TmFormat.TYPE_CODE) {
+                        value += in.readSigned();
+                        b.ints[j] = (int) value;
+                    }
+                }
+            }
+            if (doubleValues > 0) {
+                b.doubles = new double[count];
+                TmCompression.DoubleDecoder doubleDecoder = new TmCompression.DoubleDecoder(
+                        new TmCompression.BitReader(bytes, in.position()));
+                for (int j = 0; j < count; j++) {
+                    if ((b.flags[j] & 0x0F) == TmFormat.TYPE_DOUBLE) {
+                        b.doubles[j] = doubleDecoder.read();
+                    }
+                }
+            }
+            // Массив Point сжатого блока не меняется (reopen копирует его), поэтому общий
+            b.points = points;
+            return b;
+        }
+
+        private static void readRuns(TmCompression.ByteReader in, byte[] column, int count, byte[] mask, int type) {
+            int j = 0;
+            while (j < count) {
+                if (mask != null && (mask[j] & 0x0F) != type) {
+                    j++;
+                    continue;
+                }
+                byte value = (byte) in.read();
+                int run = (int) in.readVarLong();
+                // Серия покрывает run записей нужного типа, пропуская остальные
+                while (run > 0) {
+                    if (mask == null || (mask[j] & 0x0F) == type) {
+                        column[j] = value;
+                        run--;
+                    }
+                    j++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package telemetry.finalstage;
+
+/**
+ * Хранилище в куче со сжатыми сериями (CompressedTmSeries): время, значения и поля записей
+ * хранятся блоками, сжатыми разностями и XOR. Занимает в несколько раз меньше, чем TmStore,
+ * ценой распаковки блока при первом обращении к нему.
+ */
+public class CompressedTmStore extends TmStore {
+
+    public CompressedTmStore(Dim dim, DatXML datXML) {
+        super(dim, datXML);
+    }
+
+    /**
+     * @param metadata сведения из словарей; могут быть общими для нескольких хранилищ
+     */
+    public CompressedTmStore(TmMetadata metadata) {
+        super(metadata);
+    }
+
+    @Override
+    protected TmSeries createSeries(String name, int number) {
+        return new CompressedTmSeries(this, name, number);
+    }
+
+    /** Байт в сжатых блоках всех серий (без данных Point) */
+    public long getStoredBytes() {
+        long bytes = 0;
+        for (TmSeries series : getAllSeries()) {
+            if (series instanceof CompressedTmSeries) {
+                bytes += ((CompressedTmSeries) series).getStoredBytes();
+            }
+        }
+        return bytes;
+    }
+}
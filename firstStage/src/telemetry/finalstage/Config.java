@@ -6,9 +6,13 @@ import org.w3c.dom.NodeList;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Загружает файл config.xml (необязательный). Содержит пути к файлам и настройки.
+ * В tmFile можно указать несколько ТМ-файлов через ';' или каталог (см. splitTmFiles).
  */
 public class Config {
     private String tmFile;
@@ -51,7 +55,36 @@ public class Config {
         if (dimFile == null) dimFile = "dimens.ion";
     }
 
+    /**
+     * Список ТМ-файлов из строки выбора: пути разделяются ';', каталог заменяется
+     * всеми его файлами .KNP (без учёта регистра) в порядке имён - имена сеансов
+     * начинаются с даты, поэтому это и порядок по времени
+     */
+    public static List<String> splitTmFiles(String spec) {
+        List<String> files = new ArrayList<>();
+        for (String part : spec.split(";")) {
+            String path = part.trim();
+            if (path.isEmpty()) {
+                continue;
+            }
+            File file = new File(path);
+            if (file.isDirectory()) {
+                File[] sessions = file.listFiles((dir, name) -> name.toUpperCase().endsWith(".KNP"));
+                if (sessions != null) {
+                    Arrays.sort(sessions);
+                    for (File session : sessions) {
+                        files.add(session.getPath());
+                    }
+                }
+            } else {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
     public String getTmFile() { return tmFile; }
+    public List<String> getTmFiles() { return splitTmFiles(tmFile); }
     public String getXmlFile() { return xmlFile; }
     public String getDimFile() { return dimFile; }
 }
@@ -1,59 +1,227 @@
 package telemetry.finalstage;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.File;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.*;
 
 /**
  * Загружает файл KNP-173.14.33.58.dat.xml, содержащий информацию о параметрах:
- * номер, имя, полное имя, возможные текстовые значения.
+ * номер, имя, полное имя, текстовые значения кодов (Textes/Text с атрибутом number;
+ * старые словари - TextValue с атрибутом value, код - порядковый номер).
+ *
+ * Файл читается потоково (StAX) за один проход, дерево документа не строится.
+ * Номер параметра занимает 2 байта, поэтому сведения хранятся в массивах, индексированных
+ * номером (0..65535). Вложенность параметров (БКА -> ПСС -> ЛК0 -> ...) хранится
+ * номером родителя. Если номер встречается в словаре несколько раз, действует последнее описание.
+ * Тексты кодов после чтения переводятся в таблицы TmCodeTexts (по таблице на параметр).
  */
 public class DatXML {
-    private final Map<Integer, String> paramNames = new TreeMap<>();
-    private final Map<Integer, String> paramFullNames = new TreeMap<>();
-    private final Map<Integer, List<String>> paramTextValues = new HashMap<>();
+    private static final int NUMBERS = 1 << 16;
+    public static final int NO_PARENT = -1;
+
+    private final String[] paramNames = new String[NUMBERS];
+    private final String[] paramFullNames = new String[NUMBERS];
+    private final int[] paramParents = new int[NUMBERS];
+    private final TmCodeTexts[] codeTexts = new TmCodeTexts[NUMBERS];
+    private int paramCount = 0;
+    private String version = "";
+
+    public DatXML() {
+        Arrays.fill(paramParents, NO_PARENT);
+    }
 
     public void load(String filename) throws Exception {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document doc = builder.parse(new File(filename));
-        doc.getDocumentElement().normalize();
-
-        NodeList paramNodes = doc.getElementsByTagName("Param");
-        for (int i = 0; i < paramNodes.getLength(); i++) {
-            Element paramElem = (Element) paramNodes.item(i);
-            int number = Integer.parseInt(paramElem.getAttribute("number"));
-            String name = paramElem.getAttribute("name");
-            String fullName = paramElem.getAttribute("fullname");
-
-            paramNames.put(number, name);
-            paramFullNames.put(number, fullName);
-
-            // Чтение дочерних элементов TextValue
-            NodeList textNodes = paramElem.getElementsByTagName("TextValue");
-            List<String> texts = new ArrayList<>();
-            for (int j = 0; j < textNodes.getLength(); j++) {
-                Element textElem = (Element) textNodes.item(j);
-                texts.add(textElem.getAttribute("value"));
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        TmEvents.Dictionary event = new TmEvents.Dictionary();
+        event.begin();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(filename), 1 << 16)) {
+            XMLStreamReader xml = factory.createXMLStreamReader(in);
+            try {
+                read(xml);
+            } finally {
+                xml.close();
+            }
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.kind = "xml";
+            event.entries = paramCount;
+            event.commit();
+        }
+    }
+
+    /**
+     * Один проход по документу. Стек хранит номера открытых элементов Param
+     * (-1 для номеров вне диапазона, их сведения не сохраняются).
+     */
+    private void read(XMLStreamReader xml) throws XMLStreamException {
+        int[] stack = new int[16];
+        int depth = 0;
+        boolean root = true;
+        // Тексты кодов по параметрам, пока документ не дочитан
+        Map<Integer, Map<Integer, String>> texts = new HashMap<>();
+
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String element = xml.getLocalName();
+                if (root) {
+                    version = attribute(xml, "translationVersion");
+                    root = false;
+                }
+                if (element.equals("Param")) {
+                    int number = Integer.parseInt(attribute(xml, "number"));
+                    int parent = depth > 0 ? stack[depth - 1] : NO_PARENT;
+                    if (number >= 0 && number < NUMBERS) {
+                        if (paramNames[number] == null) {
+                            paramCount++;
+                        }
+                        paramNames[number] = attribute(xml, "name");
+                        paramFullNames[number] = attribute(xml, "fullname");
+                        paramParents[number] = parent;
+                        codeTexts[number] = null;
+                        texts.remove(number);
+                    } else {
+                        number = NO_PARENT;
+                    }
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    }
+                    stack[depth++] = number;
+                } else if (element.equals("Text") && depth > 0 && stack[depth - 1] >= 0) {
+                    // Текст кода относится к ближайшему охватывающему параметру;
+                    // текст без числового номера кода пропускается, как раньше пропускались все тексты
+                    Integer code = code(attribute(xml, "number"));
+                    if (code != null) {
+                        texts.computeIfAbsent(stack[depth - 1], n -> new HashMap<>())
+                                .put(code, xml.getElementText().trim());
+                    }
+                } else if (element.equals("TextValue") && depth > 0 && stack[depth - 1] >= 0) {
+                    Map<Integer, String> values = texts.computeIfAbsent(stack[depth - 1], n -> new HashMap<>());
+                    values.put(values.size(), attribute(xml, "value"));
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && xml.getLocalName().equals("Param")) {
+                depth--;
             }
-            paramTextValues.put(number, texts);
         }
+        for (Map.Entry<Integer, Map<Integer, String>> entry : texts.entrySet()) {
+            codeTexts[entry.getKey()] = table(entry.getValue());
+        }
+    }
+
+    private static TmCodeTexts table(Map<Integer, String> texts) {
+        int[] codes = new int[texts.size()];
+        String[] values = new String[texts.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : texts.entrySet()) {
+            codes[i] = entry.getKey();
+            values[i] = entry.getValue();
+            i++;
+        }
+        return TmCodeTexts.of(codes, values);
+    }
+
+    /**
+     * Записывает сведения о параметре (при загрузке из снимка словаря)
+     */
+    void putParam(int number, String name, String fullName, int parent, TmCodeTexts texts) {
+        if (paramNames[number] == null) {
+            paramCount++;
+        }
+        paramNames[number] = name;
+        paramFullNames[number] = fullName;
+        paramParents[number] = parent;
+        codeTexts[number] = texts;
+    }
+
+    void setVersion(String version) {
+        this.version = version;
+    }
+
+    /** Значение атрибута или пустая строка, если атрибута нет */
+    private static String attribute(XMLStreamReader xml, String name) {
+        String value = xml.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
+
+    /** Код из атрибута number элемента Text или null, если он пуст или не число */
+    private static Integer code(String value) {
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Версия трансляции словаря (атрибут translationVersion) */
+    public String getVersion() {
+        return version;
+    }
+
+    /** Количество различных номеров параметров в словаре */
+    public int getParamCount() {
+        return paramCount;
+    }
+
+    /** Есть ли параметр с таким номером в словаре */
+    public boolean contains(int number) {
+        return number >= 0 && number < NUMBERS && paramNames[number] != null;
     }
 
     public String getName(int number) {
-        return paramNames.getOrDefault(number, "UNKNOWN_" + number);
+        String name = contains(number) ? paramNames[number] : null;
+        return name != null ? name : "UNKNOWN_" + number;
     }
 
     public String getFullName(int number) {
-        return paramFullNames.getOrDefault(number, "");
+        return contains(number) ? paramFullNames[number] : "";
+    }
+
+    /**
+     * Номер параметра, в который вложен данный
+     * @return номер родителя или NO_PARENT для параметров верхнего уровня и неизвестных
+     */
+    public int getParent(int number) {
+        return contains(number) ? paramParents[number] : NO_PARENT;
+    }
+
+    /**
+     * Тексты кодов параметра
+     * @return таблица или null, если у параметра нет текстовых значений
+     */
+    public TmCodeTexts getCodeTexts(int number) {
+        return contains(number) ? codeTexts[number] : null;
     }
 
+    /**
+     * Тексты кодов параметра в порядке возрастания кодов (прежний вид; код по тексту не найти,
+     * для этого есть getCodeTexts и getCodeText)
+     * @return неизменяемый список, пустой, если у параметра нет текстовых значений
+     */
     public List<String> getTextValues(int number) {
-        return paramTextValues.getOrDefault(number, Collections.emptyList());
+        TmCodeTexts texts = getCodeTexts(number);
+        if (texts == null) {
+            return Collections.emptyList();
+        }
+        List<String> values = new ArrayList<>(texts.size());
+        for (int code : texts.getCodes()) {
+            values.add(texts.get(code));
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    /** Текст кода параметра или null */
+    public String getCodeText(int number, int code) {
+        TmCodeTexts texts = getCodeTexts(number);
+        return texts != null ? texts.get(code) : null;
     }
 }
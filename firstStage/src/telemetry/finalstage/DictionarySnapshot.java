@@ -0,0 +1,308 @@
+package telemetry.finalstage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Снимок словарей в двоичном виде (файл "имя XML-файла.tmdict").
+ * Словари меняются только с выходом новой версии трансляции, поэтому XML и файл размерностей
+ * разбираются один раз, а при следующих запусках снимок отображается в память и читается без разбора.
+ *
+ * Формат: заголовок (сигнатура, версия формата, размеры и времена изменения XML-файла
+ * и файла размерностей, путь к файлу размерностей), таблица строк (каждая строка один раз,
+ * все строки - один блок UTF-16 и границы в символах), версия трансляции, параметры
+ * (столбцы: номер, имя, полное имя, родитель, тексты кодов - коды и строки) и размерности (столбцы: код, текст).
+ * Строки задаются номерами в таблице строк. Столбцы читаются целиком, без разбора по полям,
+ * поэтому загрузка быстрая и в только что запущенной JVM.
+ *
+ * Запуск как отдельной программы компилирует снимок заранее:
+ * java telemetry.finalstage.DictionarySnapshot xmlFile dimFile
+ */
+public class DictionarySnapshot {
+    private static final int MAGIC = 0x544D4431; // "TMD1"
+    private static final int FORMAT_VERSION = 2;
+
+    public static final String SUFFIX = ".tmdict";
+
+    private DictionarySnapshot() {
+    }
+
+    public static Path snapshotPath(String xmlFile) {
+        return Paths.get(xmlFile + SUFFIX);
+    }
+
+    /**
+     * Загружает словари: из снимка, если он свежий, иначе из исходных файлов
+     * (и тогда сохраняет новый снимок).
+     * @param xmlFile XML-файл с параметрами
+     * @param dimFile файл размерностей
+     * @param datXML пустой объект для параметров
+     * @param dim пустой объект для размерностей
+     * @throws Exception при ошибках чтения исходных файлов
+     */
+    public static void load(String xmlFile, String dimFile, DatXML datXML, Dim dim) throws Exception {
+        TmEvents.Dictionary event = new TmEvents.Dictionary();
+        event.begin();
+        if (read(xmlFile, dimFile, datXML, dim)) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = snapshotPath(xmlFile).toString();
+                event.kind = "snapshot";
+                event.entries = datXML.getParamCount();
+                event.commit();
+            }
+            return;
+        }
+        datXML.load(xmlFile);
+        dim.load(dimFile);
+        try {
+            write(xmlFile, dimFile, datXML, dim);
+        } catch (IOException e) {
+            // Без снимка следующий запуск просто снова разберёт XML
+            System.err.println("Не удалось сохранить снимок словаря: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Читает снимок
+     * @return false, если снимка нет, он устарел или повреждён (объекты при этом не изменяются)
+     */
+    public static boolean read(String xmlFile, String dimFile, DatXML datXML, Dim dim) {
+        Path path = snapshotPath(xmlFile);
+        if (!Files.isRegularFile(path)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+                return false;
+            }
+            byte[] key = key(xmlFile, dimFile);
+            byte[] storedKey = new byte[buf.getInt()];
+            buf.get(storedKey);
+            if (!Arrays.equals(key, storedKey)) {
+                return false;
+            }
+
+            // Строки хранятся одним блоком UTF-16 и копируются целиком, без декодирования
+            int[] bounds = ints(buf, buf.getInt() + 1);
+            char[] chars = new char[bounds[bounds.length - 1]];
+            buf.asCharBuffer().get(chars);
+            buf.position(buf.position() + chars.length * 2);
+            String[] strings = new String[bounds.length - 1];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = new String(chars, bounds[i], bounds[i + 1] - bounds[i]);
+            }
+
+            // Параметры хранятся столбцами, столбцы читаются целиком
+            String version = strings[buf.getInt()];
+            int paramCount = buf.getInt();
+            char[] numbers = new char[paramCount];
+            buf.asCharBuffer().get(numbers);
+            buf.position(buf.position() + paramCount * 2);
+            int[] names = ints(buf, paramCount);
+            int[] fullNames = ints(buf, paramCount);
+            int[] parents = ints(buf, paramCount);
+            int[] textStarts = ints(buf, paramCount + 1);
+            int[] textCodes = ints(buf, textStarts[paramCount]);
+            int[] texts = ints(buf, textStarts[paramCount]);
+            int dimCount = buf.getInt();
+            int[] codes = ints(buf, dimCount);
+            int[] dimTexts = ints(buf, dimCount);
+
+            // Объекты заполняются только после того, как весь снимок прочитан
+            datXML.setVersion(version);
+            for (int i = 0; i < paramCount; i++) {
+                TmCodeTexts codeTexts = null;
+                int textCount = textStarts[i + 1] - textStarts[i];
+                if (textCount > 0) {
+                    String[] values = new String[textCount];
+                    for (int t = 0; t < textCount; t++) {
+                        values[t] = strings[texts[textStarts[i] + t]];
+                    }
+                    codeTexts = TmCodeTexts.of(
+                            Arrays.copyOfRange(textCodes, textStarts[i], textStarts[i + 1]), values);
+                }
+                datXML.putParam(numbers[i], strings[names[i]], strings[fullNames[i]], parents[i], codeTexts);
+            }
+            for (int i = 0; i < dimCount; i++) {
+                dim.put(codes[i], strings[dimTexts[i]]);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // Повреждённый снимок просто не используется
+            System.err.println("Снимок словаря не прочитан: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Сохраняет снимок загруженных словарей
+     * @throws IOException при ошибках записи
+     */
+    public static void write(String xmlFile, String dimFile, DatXML datXML, Dim dim) throws IOException {
+        StringTable strings = new StringTable();
+        int version = strings.add(datXML.getVersion());
+        List<Integer> numbers = new ArrayList<>();
+        for (int number = 0; number < 1 << 16; number++) {
+            if (datXML.contains(number)) {
+                numbers.add(number);
+                strings.add(datXML.getName(number));
+                strings.add(datXML.getFullName(number));
+                TmCodeTexts texts = datXML.getCodeTexts(number);
+                if (texts != null) {
+                    for (int code : texts.getCodes()) {
+                        strings.add(texts.get(code));
+                    }
+                }
+            }
+        }
+        for (String text : dim.getDimensions().values()) {
+            strings.add(text);
+        }
+
+        Path target = snapshotPath(xmlFile);
+        Path tmp = Paths.get(target + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                byte[] key = key(xmlFile, dimFile);
+                out.writeInt(key.length);
+                out.write(key);
+
+                StringBuilder all = new StringBuilder();
+                out.writeInt(strings.list.size());
+                out.writeInt(0);
+                for (String str : strings.list) {
+                    all.append(str);
+                    out.writeInt(all.length());
+                }
+                out.writeChars(all.toString());
+
+                out.writeInt(version);
+                out.writeInt(numbers.size());
+                for (int number : numbers) {
+                    out.writeChar(number);
+                }
+                for (int number : numbers) {
+                    out.writeInt(strings.add(datXML.getName(number)));
+                }
+                for (int number : numbers) {
+                    out.writeInt(strings.add(datXML.getFullName(number)));
+                }
+                for (int number : numbers) {
+                    out.writeInt(datXML.getParent(number));
+                }
+                int textCount = 0;
+                out.writeInt(textCount);
+                for (int number : numbers) {
+                    TmCodeTexts texts = datXML.getCodeTexts(number);
+                    textCount += texts != null ? texts.size() : 0;
+                    out.writeInt(textCount);
+                }
+                for (int number : numbers) {
+                    TmCodeTexts texts = datXML.getCodeTexts(number);
+                    if (texts != null) {
+                        for (int code : texts.getCodes()) {
+                            out.writeInt(code);
+                        }
+                    }
+                }
+                for (int number : numbers) {
+                    TmCodeTexts texts = datXML.getCodeTexts(number);
+                    if (texts != null) {
+                        for (int code : texts.getCodes()) {
+                            out.writeInt(strings.add(texts.get(code)));
+                        }
+                    }
+                }
+
+                Map<Integer, String> dimensions = dim.getDimensions();
+                out.writeInt(dimensions.size());
+                for (int code : dimensions.keySet()) {
+                    out.writeInt(code);
+                }
+                for (String text : dimensions.values()) {
+                    out.writeInt(strings.add(text));
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Читает count чисел int одним обращением
+     */
+    private static int[] ints(ByteBuffer buf, int count) {
+        int[] values = new int[count];
+        buf.asIntBuffer().get(values);
+        buf.position(buf.position() + count * 4);
+        return values;
+    }
+
+    /**
+     * Ключ снимка: размеры и времена изменения исходных файлов и путь к файлу размерностей
+     */
+    private static byte[] key(String xmlFile, String dimFile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Path xml = Paths.get(xmlFile);
+        Path dim = Paths.get(dimFile);
+        out.writeLong(Files.size(xml));
+        out.writeLong(Files.getLastModifiedTime(xml).toMillis());
+        out.writeLong(Files.size(dim));
+        out.writeLong(Files.getLastModifiedTime(dim).toMillis());
+        out.writeUTF(dim.toAbsolutePath().normalize().toString());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Таблица строк: каждая строка хранится один раз и задаётся номером
+     */
+    private static class StringTable {
+        final List<String> list = new ArrayList<>();
+        final Map<String, Integer> index = new HashMap<>();
+
+        int add(String s) {
+            Integer i = index.get(s);
+            if (i == null) {
+                i = list.size();
+                list.add(s);
+                index.put(s, i);
+            }
+            return i;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Использование: DictionarySnapshot xmlFile dimFile");
+            return;
+        }
+        DatXML datXML = new DatXML();
+        datXML.load(args[0]);
+        Dim dim = new Dim();
+        dim.load(args[1]);
+        write(args[0], args[1], datXML, dim);
+        System.out.println("Снимок словаря: " + snapshotPath(args[0]) + ", параметров: " + datXML.getParamCount()
+                + ", версия " + datXML.getVersion());
+    }
+}
@@ -3,6 +3,7 @@ package telemetry.finalstage;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -14,6 +15,8 @@ public class Dim {
     private final Map<Integer, String> dimensions = new TreeMap<>();
 
     public void load(String filename) throws IOException {
+        TmEvents.Dictionary event = new TmEvents.Dictionary();
+        event.begin();
         try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
             String line;
             line = reader.readLine();
@@ -26,16 +29,36 @@ public class Dim {
                 lineNum++;
             }
         }
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.kind = "dim";
+            event.entries = dimensions.size();
+            event.commit();
+        }
         String line = "";
         // Проверка: по заданию код 32 должен быть "%"
         // (если файл корректен, это выполняется автоматически)
     }
 
+    /** Все размерности по кодам (для снимка словаря) */
+    Map<Integer, String> getDimensions() {
+        return Collections.unmodifiableMap(dimensions);
+    }
+
+    /** Добавляет размерность (при загрузке из снимка словаря) */
+    void put(int code, String text) {
+        dimensions.put(code, text);
+    }
+
     /** Возвращает размерность по коду, или строку "[код]" если код не найден. */
     public String getDimension(int code) {
-        if (! dimensions.containsKey(code)){
-            System.out.println(code);
-        }
-        return dimensions.getOrDefault(code, "[" + code + "]");
+        String text = dimensions.get(code);
+        return text != null ? text : "[" + code + "]";
+    }
+
+    /** Размерность по коду; коды меньше 32 - форматы, а не размерности ("fmt" + код). */
+    public String getDimensionOrFormat(int code) {
+        return code >= 32 ? getDimension(code) : "fmt" + code;
     }
 }
\ No newline at end of file
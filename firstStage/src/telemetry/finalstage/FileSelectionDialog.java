@@ -3,9 +3,12 @@ package telemetry.finalstage;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.io.File;
+import java.util.StringJoiner;
 
 /**
  * Диалоговое окно для выбора трёх файлов.
+ * ТМ-файлов можно выбрать несколько или каталог с ними; пути разделяются ';'.
  */
 public class FileSelectionDialog extends JDialog {
     private JTextField txtTmFile;
@@ -45,10 +48,11 @@ public class FileSelectionDialog extends JDialog {
 
         // TM-файл
         gbc.gridx = 0; gbc.gridy = 0;
-        mainPanel.add(new JLabel("TM-файл:"), gbc);
+        mainPanel.add(new JLabel("TM-файлы:"), gbc);
 
         txtTmFile = new JTextField(30);
         txtTmFile.setText(tmFile);
+        txtTmFile.setToolTipText("Один или несколько ТМ-файлов через ';' или каталог с файлами .KNP");
         gbc.gridx = 1; gbc.weightx = 1.0;
         mainPanel.add(txtTmFile, gbc);
 
@@ -102,9 +106,15 @@ public class FileSelectionDialog extends JDialog {
 
     private void chooseTmFile(ActionEvent e) {
         JFileChooser chooser = new JFileChooser();
-        chooser.setDialogTitle("Выберите TM-файл (.KNP)");
+        chooser.setDialogTitle("Выберите TM-файлы (.KNP) или каталог");
+        chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        chooser.setMultiSelectionEnabled(true);
         if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            txtTmFile.setText(chooser.getSelectedFile().getAbsolutePath());
+            StringJoiner paths = new StringJoiner(";");
+            for (File file : chooser.getSelectedFiles()) {
+                paths.add(file.getAbsolutePath());
+            }
+            txtTmFile.setText(paths.toString());
         }
     }
 
@@ -0,0 +1,200 @@
+package telemetry.finalstage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Серия в куче: по массиву примитивов на каждое поле.
+ * Обязательные столбцы - время, байт атрибута/типа и код размерности (10 байт на запись).
+ * Столбцы значений создаются только для встретившихся в серии типов,
+ * номера параметров - только если в серии оказались записи с разными номерами.
+ */
+public class HeapTmSeries extends TmSeries {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int size = 0;
+    private long[] times = new long[INITIAL_CAPACITY];
+    private byte[] flags = new byte[INITIAL_CAPACITY];        // атрибут << 4 | тип, как байт 7 записи
+    private byte[] dimensions = new byte[INITIAL_CAPACITY];   // код размерности
+
+    private int[] ints;              // Long и Code
+    private double[] doubles;        // Double
+    private byte[] codeLengths;      // Code
+    private ByteBuffer[] points;     // Point
+    private int[] numbers;           // если номера параметров различаются
+
+    public HeapTmSeries(TmStore store, String name, int number) {
+        super(store, name, number);
+    }
+
+    @Override
+    public int size() { return size; }
+
+    @Override
+    public int getNumber(int i) { return numbers == null ? number : numbers[i]; }
+
+    @Override
+    public long getTime(int i) { return times[i]; }
+
+    @Override
+    public int getDimensionCode(int i) { return dimensions[i] & 0xFF; }
+
+    @Override
+    public int getAttribute(int i) { return (flags[i] & 0xF0) >> 4; }
+
+    @Override
+    public int getValueType(int i) { return flags[i] & 0x0F; }
+
+    @Override
+    public int getIntValue(int i) { return ints == null ? 0 : ints[i]; }
+
+    @Override
+    public double getDoubleValue(int i) { return doubles == null ? 0.0 : doubles[i]; }
+
+    @Override
+    public int getCodeLength(int i) { return codeLengths == null ? 0 : codeLengths[i] & 0xFF; }
+
+    @Override
+    public ByteBuffer getPointData(int i) {
+        return points == null || points[i] == null ? null : points[i].duplicate();
+    }
+
+    @Override
+    void appendLong(int number, long time, int dimensionCode, int attribute, int value) {
+        int i = add(number, time, dimensionCode, attribute, TmFormat.TYPE_LONG);
+        if (ints == null) ints = new int[times.length];
+        ints[i] = value;
+    }
+
+    @Override
+    void appendDouble(int number, long time, int dimensionCode, int attribute, double value) {
+        int i = add(number, time, dimensionCode, attribute, TmFormat.TYPE_DOUBLE);
+        if (doubles == null) doubles = new double[times.length];
+        doubles[i] = value;
+    }
+
+    @Override
+    void appendCode(int number, long time, int dimensionCode, int attribute, int codeLength, int value) {
+        int i = add(number, time, dimensionCode, attribute, TmFormat.TYPE_CODE);
+        if (ints == null) ints = new int[times.length];
+        if (codeLengths == null) codeLengths = new byte[times.length];
+        ints[i] = value;
+        codeLengths[i] = (byte) codeLength;
+    }
+
+    @Override
+    void appendPoint(int number, long time, int dimensionCode, int attribute, ByteBuffer data) {
+        int i = add(number, time, dimensionCode, attribute, TmFormat.TYPE_POINT);
+        if (points == null) points = new ByteBuffer[times.length];
+        points[i] = data;
+    }
+
+    @Override
+    void appendUnknown(int number, long time, int dimensionCode, int attribute, int valueType) {
+        add(number, time, dimensionCode, attribute, valueType);
+    }
+
+    /**
+     * Добавляет общие поля записи
+     * @return индекс новой записи
+     */
+    private int add(int number, long time, int dimensionCode, int attribute, int valueType) {
+        if (size == times.length) {
+            grow();
+        }
+        trackOrder(time);
+        if (number != this.number && numbers == null) {
+            numbers = new int[times.length];
+            Arrays.fill(numbers, 0, size, this.number);
+        }
+        int i = size++;
+        times[i] = time;
+        flags[i] = (byte) (attribute << 4 | valueType);
+        dimensions[i] = (byte) dimensionCode;
+        if (numbers != null) numbers[i] = number;
+        return i;
+    }
+
+    private void grow() {
+        int capacity = times.length + (times.length >> 1);
+        times = Arrays.copyOf(times, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        dimensions = Arrays.copyOf(dimensions, capacity);
+        if (ints != null) ints = Arrays.copyOf(ints, capacity);
+        if (doubles != null) doubles = Arrays.copyOf(doubles, capacity);
+        if (codeLengths != null) codeLengths = Arrays.copyOf(codeLengths, capacity);
+        if (points != null) points = Arrays.copyOf(points, capacity);
+        if (numbers != null) numbers = Arrays.copyOf(numbers, capacity);
+    }
+
+    @Override
+    protected void sortRows() {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        // Сортировка слиянием устойчива: записи с одинаковым временем не переставляются
+        mergeSort(order, new int[size], 0, size);
+
+        times = permute(times, order);
+        flags = permute(flags, order);
+        dimensions = permute(dimensions, order);
+        if (ints != null) ints = permute(ints, order);
+        if (doubles != null) doubles = permute(doubles, order);
+        if (codeLengths != null) codeLengths = permute(codeLengths, order);
+        if (points != null) points = permute(points, order);
+        if (numbers != null) numbers = permute(numbers, order);
+    }
+
+    private void mergeSort(int[] order, int[] tmp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, tmp, from, middle);
+        mergeSort(order, tmp, middle, to);
+        if (times[order[middle - 1]] <= times[order[middle]]) {
+            return;
+        }
+        System.arraycopy(order, from, tmp, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int k = from; k < to; k++) {
+            if (right >= to || (left < middle && times[tmp[left]] <= times[tmp[right]])) {
+                order[k] = tmp[left++];
+            } else {
+                order[k] = tmp[right++];
+            }
+        }
+    }
+
+    private long[] permute(long[] column, int[] order) {
+        long[] result = new long[column.length];
+        for (int i = 0; i < size; i++) result[i] = column[order[i]];
+        return result;
+    }
+
+    private int[] permute(int[] column, int[] order) {
+        int[] result = new int[column.length];
+        for (int i = 0; i < size; i++) result[i] = column[order[i]];
+        return result;
+    }
+
+    private double[] permute(double[] column, int[] order) {
+        double[] result = new double[column.length];
+        for (int i = 0; i < size; i++) result[i] = column[order[i]];
+        return result;
+    }
+
+    private byte[] permute(byte[] column, int[] order) {
+        byte[] result = new byte[column.length];
+        for (int i = 0; i < size; i++) result[i] = column[order[i]];
+        return result;
+    }
+
+    private ByteBuffer[] permute(ByteBuffer[] column, int[] order) {
+        ByteBuffer[] result = new ByteBuffer[column.length];
+        for (int i = 0; i < size; i++) result[i] = column[order[i]];
+        return result;
+    }
+}
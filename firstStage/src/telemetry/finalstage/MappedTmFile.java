@@ -0,0 +1,161 @@
+package telemetry.finalstage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * ТМ-файл, отображённый в память.
+ * Файл делится на сегменты по SEGMENT_SIZE байт (одно отображение не может превышать 2 ГБ).
+ * Каждое отображение захватывает ещё MAX_RECORD_SIZE байт следующего сегмента, поэтому
+ * запись, начавшаяся в сегменте, всегда целиком лежит в его буфере.
+ * При открытии файл один раз просматривается и запоминается смещение каждой STEP-й записи
+ * (как в TmRecordIndex, 8 байт на STEP записей), так что куча не растёт вместе с файлом.
+ * До остальных записей от начала их блока остаётся пройти не больше STEP - 1 длин записей;
+ * подряд записи проходит TmDecoder.decode.
+ */
+public class MappedTmFile {
+    static final int SEGMENT_SIZE = 1 << 30;
+    private static final int SHIFT = 10;
+    /** Записей в блоке */
+    public static final int STEP = 1 << SHIFT;
+
+    private final long size;
+    private final MappedByteBuffer[] segments;
+
+    // Смещения первых записей блоков от начала файла
+    private long[] blockOffsets = new long[64];
+    private int blockCount = 0;
+    private long recordCount = 0;
+    // Конец последней полной записи
+    private long dataEnd = 0;
+
+    private MappedTmFile(long size, MappedByteBuffer[] segments) {
+        this.size = size;
+        this.segments = segments;
+    }
+
+    /**
+     * Отображает файл в память и строит список границ записей
+     * @param filename путь к ТМ-файлу
+     * @throws IOException при ошибках чтения
+     */
+    public static MappedTmFile open(String filename) throws IOException {
+        MappedTmFile file = map(filename);
+        file.scanBoundaries();
+        return file;
+    }
+
+    /**
+     * Только отображает файл, без просмотра записей (getRecordCount() == 0).
+     * Время не зависит от размера файла; байты читаются через getByte, границы записей
+     * при необходимости находит TmRecordIndex.
+     */
+    static MappedTmFile map(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            MappedByteBuffer[] segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i * SEGMENT_SIZE;
+                long length = Math.min(size - start, (long) SEGMENT_SIZE + TmFormat.MAX_RECORD_SIZE);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+            // Отображения остаются действительными и после закрытия канала
+            return new MappedTmFile(size, segments);
+        }
+    }
+
+    /**
+     * Один проход по файлу: для каждой записи нужна только её длина
+     */
+    private void scanBoundaries() {
+        long offset = 0;
+        for (int seg = 0; seg < segments.length; seg++) {
+            ByteBuffer buf = segments[seg];
+            long base = (long) seg * SEGMENT_SIZE;
+            int local = (int) (offset - base);
+            while (local < SEGMENT_SIZE) {
+                int length = TmFormat.recordLength(buf, local, buf.limit());
+                if (length < 0 || local + length > buf.limit()) {
+                    // Оборванная запись в конце файла
+                    dataEnd = base + local;
+                    return;
+                }
+                addRecord(base + local);
+                local += length;
+            }
+            offset = base + local;
+        }
+        dataEnd = offset;
+    }
+
+    private void addRecord(long offset) {
+        if ((recordCount & (STEP - 1)) == 0) {
+            if (blockCount == blockOffsets.length) {
+                blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+            }
+            blockOffsets[blockCount++] = offset;
+        }
+        recordCount++;
+    }
+
+    ByteBuffer segmentFor(long offset) {
+        return segments[(int) (offset / SEGMENT_SIZE)];
+    }
+
+    static int localOffset(long offset) {
+        return (int) (offset % SEGMENT_SIZE);
+    }
+
+    /** Байт файла по смещению (0..255) */
+    public int getByte(long offset) {
+        return segmentFor(offset).get(localOffset(offset)) & 0xFF;
+    }
+
+    /** Размер файла в байтах */
+    public long size() {
+        return size;
+    }
+
+    /** Смещение конца последней полной записи; дальше - оборванная запись или конец файла */
+    public long getDataEnd() {
+        return dataEnd;
+    }
+
+    /** Количество полных записей в файле */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Смещение записи с указанным номером от начала файла.
+     * Ищется от начала её блока, поэтому для записей подряд лучше TmDecoder.decode.
+     */
+    public long getOffset(long index) {
+        if (index < 0 || index >= recordCount) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + recordCount);
+        }
+        long offset = blockOffsets[(int) (index >>> SHIFT)];
+        for (long i = index & ~(long) (STEP - 1); i < index; i++) {
+            offset += recordLength(offset);
+        }
+        return offset;
+    }
+
+    /** Длина полной записи по смещению */
+    int recordLength(long offset) {
+        ByteBuffer buf = segmentFor(offset);
+        int local = localOffset(offset);
+        return TmFormat.recordLength(buf, local, buf.limit());
+    }
+
+    /** Создаёт новое представление записей этого файла */
+    public TmRecordView view() {
+        return new TmRecordView(this);
+    }
+}
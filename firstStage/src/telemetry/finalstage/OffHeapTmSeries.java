@@ -0,0 +1,241 @@
+package telemetry.finalstage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Серия вне кучи. Записи хранятся строками по ROW_SIZE байт в блоках по ROWS_PER_BLOCK строк,
+ * выделенных в OffHeapTmStore:
+ *
+ *   0-7    время
+ *   8-15   значение: Long/Code - int, Double - биты double, Point - смещение данных в хранилище
+ *   16-17  номер параметра
+ *   18     атрибут << 4 | тип
+ *   19     код размерности
+ *   20     длина кода (Code)
+ *   22-23  длина данных (Point)
+ */
+public class OffHeapTmSeries extends TmSeries {
+    static final int ROW_SIZE = 24;
+    private static final int BLOCK_SHIFT = 12;
+    private static final int ROWS_PER_BLOCK = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_MASK = ROWS_PER_BLOCK - 1;
+
+    private static final int TIME = 0;
+    private static final int VALUE = 8;
+    private static final int NUMBER = 16;
+    private static final int FLAGS = 18;
+    private static final int DIMENSION = 19;
+    private static final int CODE_LENGTH = 20;
+    private static final int POINT_LENGTH = 22;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final OffHeapTmStore offHeap;
+    private long[] blocks = new long[4];
+    private int blockCount = 0;
+    private int size = 0;
+
+    public OffHeapTmSeries(OffHeapTmStore store, String name, int number) {
+        super(store, name, number);
+        this.offHeap = store;
+    }
+
+    OffHeapTmSeries(OffHeapTmStore store, String name, int number, long[] blocks, int size) {
+        this(store, name, number);
+        this.blocks = blocks;
+        this.blockCount = blocks.length;
+        this.size = size;
+    }
+
+    /** Смещения блоков строк в файле хранилища */
+    long[] getBlocks() {
+        return Arrays.copyOf(blocks, blockCount);
+    }
+
+    private long rowAddress(int i) {
+        return blocks[i >>> BLOCK_SHIFT] + (long) (i & BLOCK_MASK) * ROW_SIZE;
+    }
+
+    private ByteBuffer row(int i) {
+        return offHeap.region(rowAddress(i));
+    }
+
+    private int rowOffset(int i) {
+        return OffHeapTmStore.local(rowAddress(i));
+    }
+
+    @Override
+    public int size() { return size; }
+
+    @Override
+    public int getNumber(int i) { return row(i).getShort(rowOffset(i) + NUMBER) & 0xFFFF; }
+
+    @Override
+    public long getTime(int i) { return row(i).getLong(rowOffset(i) + TIME); }
+
+    @Override
+    public int getDimensionCode(int i) { return row(i).get(rowOffset(i) + DIMENSION) & 0xFF; }
+
+    @Override
+    public int getAttribute(int i) { return (row(i).get(rowOffset(i) + FLAGS) & 0xF0) >> 4; }
+
+    @Override
+    public int getValueType(int i) { return row(i).get(rowOffset(i) + FLAGS) & 0x0F; }
+
+    @Override
+    public int getIntValue(int i) { return (int) row(i).getLong(rowOffset(i) + VALUE); }
+
+    @Override
+    public double getDoubleValue(int i) { return Double.longBitsToDouble(row(i).getLong(rowOffset(i) + VALUE)); }
+
+    @Override
+    public int getCodeLength(int i) { return row(i).get(rowOffset(i) + CODE_LENGTH) & 0xFF; }
+
+    @Override
+    public ByteBuffer getPointData(int i) {
+        ByteBuffer r = row(i);
+        int off = rowOffset(i);
+        int length = r.getShort(off + POINT_LENGTH) & 0xFFFF;
+        if (length == 0) {
+            return EMPTY;
+        }
+        long data = r.getLong(off + VALUE);
+        return offHeap.region(data).slice(OffHeapTmStore.local(data), length).asReadOnlyBuffer();
+    }
+
+    @Override
+    void appendLong(int number, long time, int dimensionCode, int attribute, int value) {
+        add(number, time, dimensionCode, attribute, TmFormat.TYPE_LONG, value, 0, 0);
+    }
+
+    @Override
+    void appendDouble(int number, long time, int dimensionCode, int attribute, double value) {
+        add(number, time, dimensionCode, attribute, TmFormat.TYPE_DOUBLE, Double.doubleToRawLongBits(value), 0, 0);
+    }
+
+    @Override
+    void appendCode(int number, long time, int dimensionCode, int attribute, int codeLength, int value) {
+        add(number, time, dimensionCode, attribute, TmFormat.TYPE_CODE, value, codeLength, 0);
+    }
+
+    @Override
+    void appendPoint(int number, long time, int dimensionCode, int attribute, ByteBuffer data) {
+        int length = data.remaining();
+        long offset = 0;
+        if (length > 0) {
+            offset = offHeap.allocate(length);
+            offHeap.region(offset).put(OffHeapTmStore.local(offset), data, data.position(), length);
+        }
+        add(number, time, dimensionCode, attribute, TmFormat.TYPE_POINT, offset, 0, length);
+    }
+
+    @Override
+    void appendUnknown(int number, long time, int dimensionCode, int attribute, int valueType) {
+        add(number, time, dimensionCode, attribute, valueType, 0, 0, 0);
+    }
+
+    private void add(int number, long time, int dimensionCode, int attribute, int valueType,
+                     long value, int codeLength, int pointLength) {
+        trackOrder(time);
+        if (size == blockCount * ROWS_PER_BLOCK) {
+            if (blockCount == blocks.length) {
+                blocks = Arrays.copyOf(blocks, blocks.length * 2);
+            }
+            blocks[blockCount++] = offHeap.allocate(ROWS_PER_BLOCK * ROW_SIZE);
+        }
+        ByteBuffer r = row(size);
+        int off = rowOffset(size);
+        r.putLong(off + TIME, time);
+        r.putLong(off + VALUE, value);
+        r.putShort(off + NUMBER, (short) number);
+        r.put(off + FLAGS, (byte) (attribute << 4 | valueType));
+        r.put(off + DIMENSION, (byte) dimensionCode);
+        r.put(off + CODE_LENGTH, (byte) codeLength);
+        r.putShort(off + POINT_LENGTH, (short) pointLength);
+        size++;
+    }
+
+    /**
+     * Естественная сортировка слиянием: серии почти всегда уже упорядочены,
+     * поэтому сливаются готовые возрастающие участки. Строки копируются в новые блоки,
+     * место старых блоков не переиспользуется.
+     */
+    @Override
+    protected void sortRows() {
+        int[] runs = findRuns();
+        if (runs.length <= 2) {
+            return;
+        }
+        long[] source = blocks;
+        long[] target = new long[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            target[b] = offHeap.allocate(ROWS_PER_BLOCK * ROW_SIZE);
+        }
+
+        while (runs.length > 2) {
+            int pairs = (runs.length - 1) / 2;
+            int[] merged = new int[runs.length - pairs];
+            int k = 0;
+            for (int r = 0; r + 1 < runs.length; r += 2) {
+                merged[k++] = runs[r];
+                int middle = runs[r + 1];
+                int end = r + 2 < runs.length ? runs[r + 2] : middle;
+                merge(source, target, runs[r], middle, end);
+            }
+            merged[k] = size;
+            long[] tmp = source;
+            source = target;
+            target = tmp;
+            runs = merged;
+        }
+        blocks = source;
+    }
+
+    /**
+     * Границы возрастающих по времени участков: [0, ..., size]
+     */
+    private int[] findRuns() {
+        int[] runs = new int[16];
+        int count = 0;
+        runs[count++] = 0;
+        for (int i = 1; i < size; i++) {
+            if (getTime(i) < getTime(i - 1)) {
+                if (count == runs.length) runs = Arrays.copyOf(runs, count * 2);
+                runs[count++] = i;
+            }
+        }
+        if (count == runs.length) runs = Arrays.copyOf(runs, count + 1);
+        runs[count++] = size;
+        return Arrays.copyOf(runs, count);
+    }
+
+    private void merge(long[] source, long[] target, int from, int middle, int to) {
+        int left = from;
+        int right = middle;
+        for (int k = from; k < to; k++) {
+            if (right >= to || (left < middle && time(source, left) <= time(source, right))) {
+                copyRow(source, left++, target, k);
+            } else {
+                copyRow(source, right++, target, k);
+            }
+        }
+    }
+
+    private long time(long[] blockTable, int i) {
+        long address = address(blockTable, i);
+        return offHeap.region(address).getLong(OffHeapTmStore.local(address) + TIME);
+    }
+
+    private void copyRow(long[] sourceBlocks, int from, long[] targetBlocks, int to) {
+        long src = address(sourceBlocks, from);
+        long dst = address(targetBlocks, to);
+        ByteBuffer s = offHeap.region(src);
+        ByteBuffer d = offHeap.region(dst);
+        d.put(OffHeapTmStore.local(dst), s, OffHeapTmStore.local(src), ROW_SIZE);
+    }
+
+    private static long address(long[] blockTable, int i) {
+        return blockTable[i >>> BLOCK_SHIFT] + (long) (i & BLOCK_MASK) * ROW_SIZE;
+    }
+}
@@ -0,0 +1,162 @@
+package telemetry.finalstage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Хранилище, значения которого лежат вне кучи - во временном файле, отображённом в память.
+ * Файл растёт областями по REGION_SIZE байт; серии берут из него блоки строк и место
+ * под данные Point. Выделенное место не освобождается до закрытия хранилища,
+ * после закрытия временный файл удаляется.
+ * В куче остаются только объекты серий и таблицы их блоков.
+ * Постоянный файл того же формата используется как кэш сеанса (см. SessionCache).
+ */
+public class OffHeapTmStore extends TmStore {
+    static final int REGION_SIZE = 64 << 20;
+
+    private final FileChannel channel;
+    private MappedByteBuffer[] regions = new MappedByteBuffer[4];
+    private int regionCount = 0;
+    private long allocated = 0;
+
+    /**
+     * @param directory каталог для временного файла
+     * @throws IOException если файл не удалось создать
+     */
+    public OffHeapTmStore(Dim dim, DatXML datXML, Path directory) throws IOException {
+        this(new TmMetadata(dim, datXML), directory);
+    }
+
+    /**
+     * @param metadata сведения из словарей; могут быть общими для нескольких хранилищ
+     * @param directory каталог для временного файла
+     * @throws IOException если файл не удалось создать
+     */
+    public OffHeapTmStore(TmMetadata metadata, Path directory) throws IOException {
+        this(metadata, openTemporary(directory));
+    }
+
+    private OffHeapTmStore(TmMetadata metadata, FileChannel channel) {
+        super(metadata);
+        this.channel = channel;
+    }
+
+    private static FileChannel openTemporary(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path file = Files.createTempFile(directory, "tm-store-", ".bin");
+        return FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * Создаёт хранилище в постоянном файле; файл не удаляется при закрытии
+     */
+    static OffHeapTmStore create(Dim dim, DatXML datXML, Path file) throws IOException {
+        return new OffHeapTmStore(new TmMetadata(dim, datXML), FileChannel.open(file, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Открывает ранее записанный файл только для чтения. Серии затем восстанавливаются
+     * через restoreSeries; добавлять записи в такое хранилище нельзя.
+     */
+    static OffHeapTmStore open(Dim dim, DatXML datXML, Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        OffHeapTmStore store = new OffHeapTmStore(new TmMetadata(dim, datXML), channel);
+        try {
+            long size = channel.size();
+            while ((long) store.regionCount * REGION_SIZE < size) {
+                long start = (long) store.regionCount * REGION_SIZE;
+                if (store.regionCount == store.regions.length) {
+                    store.regions = Arrays.copyOf(store.regions, store.regions.length * 2);
+                }
+                store.regions[store.regionCount++] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(REGION_SIZE, size - start));
+            }
+            store.allocated = size;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * Регистрирует серию, строки которой уже лежат в файле
+     */
+    OffHeapTmSeries restoreSeries(String name, int number, long[] blocks, int size) {
+        OffHeapTmSeries series = new OffHeapTmSeries(this, name, number, blocks, size);
+        addSeries(series);
+        return series;
+    }
+
+    /**
+     * Сбрасывает данные на диск и обрезает файл по занятому месту
+     */
+    void finish() throws IOException {
+        for (int i = 0; i < regionCount; i++) {
+            regions[i].force();
+        }
+        channel.truncate(allocated);
+    }
+
+    @Override
+    protected TmSeries createSeries(String name, int number) {
+        return new OffHeapTmSeries(this, name, number);
+    }
+
+    /**
+     * Выделяет size байт, не пересекающих границу области
+     * @return смещение выделенного места в файле
+     */
+    long allocate(int size) {
+        long regionEnd = (long) regionCount * REGION_SIZE;
+        if (allocated + size > regionEnd) {
+            mapRegion();
+            allocated = regionEnd;
+        }
+        long offset = allocated;
+        allocated += size;
+        return offset;
+    }
+
+    private void mapRegion() {
+        if (regionCount == regions.length) {
+            regions = Arrays.copyOf(regions, regions.length * 2);
+        }
+        try {
+            regions[regionCount] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    (long) regionCount * REGION_SIZE, REGION_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось расширить временный файл хранилища", e);
+        }
+        regionCount++;
+    }
+
+    /** Область, в которой лежит смещение */
+    ByteBuffer region(long offset) {
+        return regions[(int) (offset / REGION_SIZE)];
+    }
+
+    /** Смещение внутри области */
+    static int local(long offset) {
+        return (int) (offset % REGION_SIZE);
+    }
+
+    /** Занято байт во временном файле */
+    public long getAllocatedBytes() {
+        return allocated;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
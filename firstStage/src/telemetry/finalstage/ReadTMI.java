@@ -1,62 +1,74 @@
 package telemetry.finalstage;
 
-import java.io.FileInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-
-public class ReadTMI {
-    // Константы
-    private static final int SYSTEM_MESSAGE_PARAM = 0xFFFF;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Загрузка ТМ-файла в хранилище. Один из получателей потокового разбора (TmDecoder):
+ * каждая полезная запись добавляется в серию своего параметра, статистика считается в TmCounters.
+ * По ходу разбора строится список записей файла (TmRecordIndex), который сохраняется рядом с файлом.
+ * Каждая загрузка записывает события JFR (TmEvents.Load и этапы TmEvents.Phase) и видна
+ * в счётчиках JMX (TmMonitor), пока идёт.
+ */
+public class ReadTMI implements TmRecordListener {
+    // Количество записей в одной порции параллельного разбора
+    private static final int CHUNK_RECORDS = 1 << 16;
 
     // Входные данные
-    private InputStream inputStream;
     private Dim dim;
     private DatXML datXML;
 
     // Состояние чтения
-    private int currentByte = 0;
-    private String currentByteHex = "";
-    private int bytesNum = 0;
-    private int position = -1;
-    private String tmpString = "";
-
-    // Поля текущей записи
-    private int paramNumber = 0;
-    private long milliseconds = 0;
-    private int dimensionCode = 0;
-    private int attribute = 0;
-    private int valueType = 0;
-    private int messageType = 0;
-    private int codeLength = 0;
-    private int dataLength = 0;
-    private byte[] pointData = null;
-    private int pointDataIndex = 0;
-    private boolean isPointReading = false;
+    private long bytesNum = 0;
+    // Где продолжать разбор в режиме слежения: конец последней полной записи и её номер
+    private long decodedBytes = 0;
+    private long decodedRecords = 0;
+    // Загружено несколько файлов (слежение тогда невозможно)
+    private boolean multiFile = false;
+    // Данные Point - срезы отображённого файла, а не копии
+    private boolean zeroCopy = false;
+    // Каталог для хранения значений вне кучи (null - в куче)
+    private Path offHeapDirectory = null;
+    // Сохранять ли список записей рядом с файлом
+    private boolean saveRecordIndex = true;
+    // Хранить серии в куче сжатыми (CompressedTmStore)
+    private boolean compressed = false;
+    // Куда сообщать о ходе загрузки
+    private TmProgress progress = TmProgress.NONE;
+
+    // Для событий JFR: загружаемый файл, выделено памяти порциями в других потоках, ожидание чтения
+    private String loadingFile;
+    private long partsAllocated = 0;
+    private long ioTime = 0;
 
     // Статистика
-    private int totalRecords = 0;
-    private int serviceRecords = 0;
-    private int usefulRecords = 0;
-    private int unknownRecords = 0;
-    private int[] typeCounts = new int[4];
-
-    // Новые счётчики
-    private int pointLess4 = 0;
-    private int pointGreater4 = 0;
-    private int codeLess8 = 0;
-    private int codeGreater8 = 0;
+    private final TmCounters counters = new TmCounters();
+    private final TmParamStats paramStats = new TmParamStats();
 
-    // Результаты
-    private List<TmDat> allRecords = new ArrayList<>();
-    private Map<String, List<TmDat>> recordsByName = new TreeMap<>();
+    // Список записей строится во время загрузки (null - не строится)
+    private TmRecordIndex.Builder indexBuilder;
 
-    // Вспомогательные переменные для определения длины Point
-    private boolean readingPointData = false;
-    private int remainingPointBytes = 0;
+    // Результаты
+    private TmStore store;
+    private TmRecordIndex recordIndex;
 
     /**
      * Загружает данные из ТМ-файла
@@ -66,508 +78,705 @@ public class ReadTMI {
      * @throws IOException при ошибках чтения
      */
     public void load(String filename, Dim dim, DatXML datXML) throws IOException {
-        this.dim = dim;
-        this.datXML = datXML;
-        this.inputStream = new FileInputStream(filename);
-
-        // Читаем первый заголовок (32 байта) - служебная запись "начало сеанса"
-        for (int i = 0; i < 32; i++) {
-            readByte();
-        }
-        // Первая запись уже обработана как служебная
-        serviceRecords++;
-        totalRecords++;
-
-        // Читаем остальные записи
-        while (readByte() != -1) {
-            // Цикл продолжается, пока есть байты
+        beginLoad(dim, datXML);
+        LoadEvent event = new LoadEvent(filename, "load");
+        try {
+            TmEvents.Phase decode = beginPhase();
+            TmDecoder decoder = TmDecoder.decodeFile(filename, this, progress);
+            endPhase(decode, "decode");
+            decodedBytes = decoder.getPosition();
+            decodedRecords = decoder.getRecordIndex();
+            ioTime = decoder.getReadTime();
+            finishRecordIndex(filename);
+            event.loaded(1);
+        } finally {
+            event.end();
         }
-
-        inputStream.close();
-        System.out.println("File size: " + bytesNum + " bytes");
-        System.out.println("Total records: " + totalRecords);
-        System.out.println("Useful records: " + usefulRecords);
     }
 
     /**
-     * Читает один байт из файла и обрабатывает его
-     * @return прочитанный байт или -1 при достижении конца файла
+     * Загружает данные из ТМ-файла, отображая его в память.
+     * Записи читаются прямо из отображения, данные Point не копируются.
+     * Результаты и счётчики совпадают с load.
+     * @param filename путь к файлу
+     * @param dim объект с размерностями
+     * @param datXML объект с данными из XML
      * @throws IOException при ошибках чтения
      */
-    private int readByte() throws IOException {
-        this.currentByte = this.inputStream.read();
-        if (this.currentByte == -1) {
-            return -1;
-        }
-
-        this.currentByteHex = String.format("%02x", this.currentByte);
-        this.bytesNum++;
-
-        // Если читаем данные Point, обрабатываем отдельно
-        if (readingPointData) {
-            processPointDataByte();
-            return this.currentByte;
-        }
-
-        this.position++;
-
-        switch (this.position) {
-            case 0:
-            case 1:
-                getParamNumber();
-                break;
-            case 2:
-            case 3:
-            case 4:
-            case 5:
-                getMilliseconds();
-                break;
-            case 6:
-                getDimensionAndMessageType();
-                break;
-            case 7:
-                getAttributeAndValueType();
-                break;
-            default:
-                getValue();
-                break;
+    public void loadMapped(String filename, Dim dim, DatXML datXML) throws IOException {
+        beginLoad(dim, datXML);
+        this.zeroCopy = true;
+        LoadEvent event = new LoadEvent(filename, "mapped");
+        try {
+            MappedTmFile file = scan(filename);
+            TmEvents.Phase decode = beginPhase();
+            TmDecoder.decodeFile(file, this, progress);
+            endPhase(decode, "decode");
+            decodedBytes = file.getDataEnd();
+            decodedRecords = file.getRecordCount();
+            finishRecordIndex(filename);
+            event.loaded(1);
+        } finally {
+            event.end();
         }
-
-        return this.currentByte;
     }
 
     /**
-     * Обрабатывает байты данных Point
+     * Загружает данные из ТМ-файла на всех ядрах
+     * @see #loadParallel(String, Dim, DatXML, int)
      */
-    private void processPointDataByte() {
-        if (pointData != null && pointDataIndex < pointData.length) {
-            pointData[pointDataIndex++] = (byte) currentByte;
-        }
-
-        remainingPointBytes--;
-        if (remainingPointBytes <= 0) {
-            // Закончили чтение данных Point
-            readingPointData = false;
-            finishPointRecord();
-        }
+    public void loadParallel(String filename, Dim dim, DatXML datXML) throws IOException {
+        loadParallel(filename, dim, datXML, Runtime.getRuntime().availableProcessors());
     }
 
     /**
-     * Обрабатывает номер параметра (байты 0-1)
+     * Загружает данные из ТМ-файла параллельно.
+     * Сначала отображённый файл один раз просматривается для поиска границ записей,
+     * затем записи делятся на порции, которые разбираются в ForkJoinPool.
+     * Результаты порций объединяются по порядку, поэтому совпадают с load.
+     * До слияния порции лежат в куче (не больше parallelism * 4 порций по CHUNK_RECORDS записей),
+     * поэтому для хранилища вне кучи при маленькой куче лучше подходит load.
+     * @param filename путь к файлу
+     * @param dim объект с размерностями
+     * @param datXML объект с данными из XML
+     * @param parallelism количество потоков разбора
+     * @throws IOException при ошибках чтения
      */
-    private void getParamNumber() {
-        if (this.position == 0) {
-            this.tmpString = this.currentByteHex;
-        } else {
-            this.tmpString = this.tmpString + this.currentByteHex;
-            this.paramNumber = Integer.parseInt(this.tmpString, 16);
-
-            // Сброс временных переменных
-            this.codeLength = 0;
-            this.dataLength = 0;
-            this.pointData = null;
-            this.pointDataIndex = 0;
-            this.readingPointData = false;
+    public void loadParallel(String filename, Dim dim, DatXML datXML, int parallelism) throws IOException {
+        beginLoad(dim, datXML);
+        LoadEvent event = new LoadEvent(filename, "parallel");
+        try {
+            MappedTmFile file = scan(filename);
+            long records = file.getRecordCount();
+            int chunks = (int) ((records + CHUNK_RECORDS - 1) / CHUNK_RECORDS);
+            ReadTMI[] parts = new ReadTMI[chunks];
+
+            onStart();
+            // Порции разбираются волнами, чтобы в куче одновременно было не больше wave порций
+            int wave = parallelism * 4;
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            AtomicInteger waiting = new AtomicInteger(chunks);
+            String queue = TmMonitor.get().addQueue("load-chunks", waiting::get);
+            try {
+                for (int first = 0; first < chunks; first += wave) {
+                    progress.checkCancelled();
+                    int last = Math.min(first + wave, chunks);
+                    TmEvents.Phase decode = beginPhase();
+                    pool.invoke(new DecodeChunks(file, parts, first, last));
+                    long end = Math.min((long) last * CHUNK_RECORDS, records);
+                    endPhase(decode, "decode", end - (long) first * CHUNK_RECORDS);
+                    TmEvents.Phase merge = beginPhase();
+                    for (int c = first; c < last; c++) {
+                        mergeFrom(parts[c]);
+                        parts[c] = null;
+                    }
+                    endPhase(merge, "merge");
+                    waiting.addAndGet(first - last);
+                    progress.update(end < records ? file.getOffset(end) : file.size(), file.size());
+                }
+            } finally {
+                pool.shutdown();
+                TmMonitor.get().removeQueue(queue);
+            }
+            decodedBytes = file.getDataEnd();
+            decodedRecords = file.getRecordCount();
+            onEnd(file.size());
+            finishRecordIndex(filename);
+            event.loaded(1);
+        } finally {
+            event.end();
         }
     }
 
     /**
-     * Обрабатывает время (байты 2-5)
+     * Загружает несколько ТМ-файлов (например, все сеансы испытаний) на всех ядрах
+     * @see #loadFiles(List, Dim, DatXML, int)
      */
-    private void getMilliseconds() {
-        if (this.position == 2) {
-            this.tmpString = this.currentByteHex;
-        } else {
-            this.tmpString = this.tmpString + this.currentByteHex;
-            if (this.position == 5) {
-                this.milliseconds = Long.parseLong(this.tmpString, 16);
-            }
-        }
+    public void loadFiles(List<String> filenames, Dim dim, DatXML datXML) throws IOException {
+        loadFiles(filenames, dim, datXML, Runtime.getRuntime().availableProcessors());
     }
 
     /**
-     * Обрабатывает размерность/тип сообщения (байт 6)
+     * Загружает несколько ТМ-файлов в одно хранилище.
+     * Файлы разбираются одновременно, каждый в своё хранилище, не более parallelism файлов сразу;
+     * при хранении вне кучи (setOffHeapDirectory) и эти хранилища лежат вне кучи, во временных
+     * файлах того же каталога, которые удаляются после слияния.
+     * Затем серии одного параметра сливаются по времени (k-путевое слияние); при равном времени
+     * записи идут в порядке файлов в списке. Время записей отсчитывается от начала суток,
+     * поэтому общая шкала осмысленна для сеансов одних суток.
+     * Счётчики - сумма счётчиков файлов (каждый файл считает и свой заголовок сеанса),
+     * размер - сумма размеров.
+     * @param filenames пути к файлам в нужном порядке
+     * @param parallelism наибольшее количество одновременно разбираемых файлов
+     * @throws IOException при ошибках чтения любого из файлов
      */
-    private void getDimensionAndMessageType() {
-        if (isSystemMessage()) {
-            this.messageType = this.currentByte;
-        } else {
-            this.dimensionCode = this.currentByte & 0xFF;
+    public void loadFiles(List<String> filenames, Dim dim, DatXML datXML, int parallelism) throws IOException {
+        beginLoad(dim, datXML);
+        multiFile = filenames.size() > 1;
+        LoadEvent event = new LoadEvent(String.join(File.pathSeparator, filenames), "files");
+        ReadTMI[] parts = new ReadTMI[filenames.size()];
+        List<Future<ReadTMI>> futures = new ArrayList<>();
+        try {
+            long total = 0;
+            for (String filename : filenames) {
+                total += Files.size(Paths.get(filename));
+            }
+            FilesProgress filesProgress = new FilesProgress(progress, total);
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, parts.length)));
+            AtomicInteger waiting = new AtomicInteger(parts.length);
+            String queue = TmMonitor.get().addQueue("load-files", waiting::get);
+            try {
+                for (String filename : filenames) {
+                    futures.add(pool.submit(() -> {
+                        waiting.decrementAndGet();
+                        return loadPart(filename, filesProgress);
+                    }));
+                }
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = await(futures.get(i));
+                }
+            } finally {
+                pool.shutdownNow();
+                TmMonitor.get().removeQueue(queue);
+            }
+
+            // Заголовок сеанса уже посчитан в счётчиках каждого файла, поэтому onStart не вызывается
+            TmEvents.Phase merge = beginPhase();
+            List<TmStore> stores = new ArrayList<>();
+            long bytes = 0;
+            for (ReadTMI part : parts) {
+                // Счётчики файла теперь учитываются в общих
+                TmMonitor.get().untrack(part.counters);
+                counters.add(part.counters);
+                paramStats.combine(part.paramStats);
+                stores.add(part.store);
+                bytes += part.bytesNum;
+                partsAllocated += part.partsAllocated;
+                ioTime += part.ioTime;
+            }
+            store.mergeByTime(stores);
+            endPhase(merge, "merge");
+            if (parts.length == 1) {
+                decodedBytes = parts[0].decodedBytes;
+                decodedRecords = parts[0].decodedRecords;
+                recordIndex = parts[0].recordIndex;
+            }
+            indexBuilder = null;
+            onEnd(bytes);
+            event.loaded(parts.length);
+        } finally {
+            // Файлы, разобранные до ошибки в другом файле; хранилища файлов после слияния не нужны
+            for (Future<ReadTMI> future : futures) {
+                if (future.isDone() && !future.isCancelled()) {
+                    try {
+                        ReadTMI part = future.get();
+                        TmMonitor.get().finish(part.counters);
+                        closePart(part.store);
+                    } catch (InterruptedException | ExecutionException e) {
+                        // Файл не разобран, его счётчики уже учтены и хранилище закрыто в loadPart
+                    }
+                }
+            }
+            event.end();
         }
     }
 
     /**
-     * Обрабатывает атрибут и тип значения (байт 7)
+     * Разбирает один файл из loadFiles в отдельное хранилище (в куче или вне её, см. partStore)
      */
-    private void getAttributeAndValueType() {
-        if (isSystemMessage()) {
-            this.valueType = this.currentByte;
-        } else {
-            this.attribute = (this.currentByte & 0xF0) >> 4;
-            this.valueType = this.currentByte & 0x0F;
+    private ReadTMI loadPart(String filename, FilesProgress filesProgress) throws IOException {
+        ReadTMI part = new ReadTMI();
+        part.dim = dim;
+        part.datXML = datXML;
+        part.store = partStore();
+        part.compressed = compressed;
+        part.progress = filesProgress.forFile();
+        part.saveRecordIndex = saveRecordIndex;
+        part.indexBuilder = new TmRecordIndex.Builder();
+        part.loadingFile = filename;
+        long allocated = TmMonitor.allocatedBytes();
+        TmMonitor.get().track(part.counters);
+        boolean loaded = false;
+        try {
+            TmEvents.Phase decode = part.beginPhase();
+            TmDecoder decoder = TmDecoder.decodeFile(filename, part, part.progress);
+            part.endPhase(decode, "decode");
+            part.decodedBytes = decoder.getPosition();
+            part.decodedRecords = decoder.getRecordIndex();
+            part.ioTime = decoder.getReadTime();
+            part.finishRecordIndex(filename);
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                TmMonitor.get().finish(part.counters);
+                closePart(part.store);
+            }
         }
+        part.partsAllocated = allocatedSince(allocated);
+        return part;
     }
 
-    /**
-     * Обрабатывает значение параметра (байты 8+)
-     */
-    private void getValue() throws IOException {
-        if (this.position == 8) {
-            this.tmpString = "";
-            this.codeLength = 0;
-            this.dataLength = 0;
+    /** Закрывает хранилище части; ошибка только печатается, чтобы не заслонить ошибку загрузки */
+    private static void closePart(TmStore part) {
+        try {
+            part.close();
+        } catch (IOException e) {
+            System.err.println("Не удалось закрыть временное хранилище: " + e.getMessage());
         }
+    }
 
-        if (isSystemMessage()) {
-            processServiceMessage();
-        } else {
-            processUsefulRecord();
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Загрузка прервана");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            // OutOfMemoryError и прочие ошибки доходят до вызывающего как есть
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
         }
     }
 
     /**
-     * Обрабатывает служебное сообщение
+     * Общий ход разбора нескольких файлов: байты всех файлов складываются
      */
-    private void processServiceMessage() throws IOException {
-        // Служебные сообщения всегда 16 байт
-        if (this.position == 15) {
-            serviceRecords++;
-            totalRecords++;
-            this.position = -1;
+    private static class FilesProgress {
+        private final TmProgress progress;
+        private final long total;
+        private final AtomicLong done = new AtomicLong();
+
+        FilesProgress(TmProgress progress, long total) {
+            this.progress = progress;
+            this.total = total;
+        }
+
+        /** Ход разбора одного файла; передаёт в общий ход только прирост */
+        TmProgress forFile() {
+            return new TmProgress() {
+                private long reported = 0;
+
+                @Override
+                public void update(long fileDone, long fileTotal) {
+                    long sum = done.addAndGet(fileDone - reported);
+                    reported = fileDone;
+                    synchronized (FilesProgress.this) {
+                        progress.update(sum, total);
+                    }
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return progress.isCancelled();
+                }
+            };
         }
     }
 
     /**
-     * Обрабатывает полезную запись в зависимости от типа значения
+     * Начинает слежение за ТМ-файлом, который ещё дописывается.
+     * Разбор продолжается с конца последней полной записи, прочитанной load*;
+     * каждый вызов TmTail.poll добавляет новые записи в хранилище и счётчики.
+     * Хранилище должно допускать запись (сеанс из кэша только для чтения).
+     * @param filename путь к тому же ТМ-файлу, что был загружен
+     * @throws IOException если файл не открывается
      */
-    private void processUsefulRecord() throws IOException {
-        switch (this.valueType) {
-            case 0: // Long
-                processLong();
-                break;
-            case 1: // Double
-                processDouble();
-                break;
-            case 2: // Code
-                processCode();
-                break;
-            case 3: // Point
-                processPoint();
-                break;
-            default: // Неизвестный тип
-                processUnknown();
-                break;
+    public TmTail follow(String filename) throws IOException {
+        if (store == null) {
+            throw new IllegalStateException("Файл ещё не загружен");
+        }
+        if (multiFile) {
+            throw new IllegalStateException("Слежение возможно только за одним файлом");
         }
+        // Новые записи приходят из буфера чтения, который переиспользуется, - данные Point копируются
+        zeroCopy = false;
+        return new TmTail(filename, decodedBytes, decodedRecords, this);
     }
 
     /**
-     * Обрабатывает запись типа Long
+     * Разбирает порции записей [fromChunk, toChunk), деля диапазон пополам
      */
-    private void processLong() throws IOException {
-        // Байты 8-11 не используются
-        if (this.position >= 8 && this.position <= 11) return;
-
-        this.tmpString = this.tmpString + this.currentByteHex;
-        if (this.position == 15) {
-            createLongRecord();
-            resetForNextRecord();
+    private class DecodeChunks extends RecursiveAction {
+        private final MappedTmFile file;
+        private final ReadTMI[] parts;
+        private final int fromChunk;
+        private final int toChunk;
+
+        DecodeChunks(MappedTmFile file, ReadTMI[] parts, int fromChunk, int toChunk) {
+            this.file = file;
+            this.parts = parts;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk > 1) {
+                int middle = (fromChunk + toChunk) >>> 1;
+                invokeAll(new DecodeChunks(file, parts, fromChunk, middle),
+                        new DecodeChunks(file, parts, middle, toChunk));
+                return;
+            }
+            ReadTMI part = new ReadTMI();
+            part.dim = dim;
+            part.datXML = datXML;
+            // Порции пользуются общим кэшем имён и размерностей
+            part.store = new TmStore(store.getMetadata());
+            part.zeroCopy = true;
+
+            long from = (long) fromChunk * CHUNK_RECORDS;
+            long to = Math.min(from + CHUNK_RECORDS, file.getRecordCount());
+            // Порция начинается с границы блока списка записей и блока отображённого файла
+            // (CHUNK_RECORDS кратно TmRecordIndex.STEP и MappedTmFile.STEP), смещение берётся готовым
+            part.indexBuilder = new TmRecordIndex.Builder(from, file.getOffset(from));
+            long allocated = TmMonitor.allocatedBytes();
+            TmDecoder.decode(file, from, to, part);
+            part.partsAllocated = allocatedSince(allocated);
+            parts[fromChunk] = part;
         }
     }
 
     /**
-     * Обрабатывает запись типа Double
+     * Добавляет записи и счётчики порции, разобранной отдельно
      */
-    private void processDouble() throws IOException {
-        this.tmpString = this.tmpString + this.currentByteHex;
-        if (this.position == 15) {
-            createDoubleRecord();
-            resetForNextRecord();
-        }
+    private void mergeFrom(ReadTMI part) {
+        store.appendAll(part.store);
+        counters.add(part.counters);
+        paramStats.add(part.paramStats);
+        indexBuilder.append(part.indexBuilder);
+        partsAllocated += part.partsAllocated;
     }
 
     /**
-     * Обрабатывает запись типа Code
+     * Завершает список записей, построенный во время загрузки, и сохраняет его рядом с файлом,
+     * если сохранённого ещё нет или он устарел. Ошибка сохранения не прерывает загрузку.
      */
-    private void processCode() throws IOException {
-        // Байт 8 - не используется
-        if (this.position == 8) return;
-
-        // Байт 9 - длина кода
-        if (this.position == 9) {
-            this.codeLength = this.currentByte & 0xFF;
+    private void finishRecordIndex(String filename) {
+        recordIndex = indexBuilder.build();
+        indexBuilder = null;
+        if (recordIndex == null || !saveRecordIndex || TmRecordIndex.read(filename) != null) {
             return;
         }
+        TmEvents.Phase phase = beginPhase();
+        try {
+            recordIndex.write(filename);
+        } catch (IOException e) {
+            System.err.println("Не удалось сохранить список записей: " + e.getMessage());
+        }
+        endPhase(phase, "index");
+    }
 
-        // Байты 10-11 не используются
-        if (this.position == 10 || this.position == 11) return;
+    /** Отображает файл и ищет границы записей (этап scan) */
+    private MappedTmFile scan(String filename) throws IOException {
+        TmEvents.Phase phase = beginPhase();
+        MappedTmFile file = MappedTmFile.open(filename);
+        endPhase(phase, "scan", file.getRecordCount());
+        return file;
+    }
+
+    private TmEvents.Phase beginPhase() {
+        TmEvents.Phase phase = new TmEvents.Phase();
+        phase.begin();
+        return phase;
+    }
+
+    /** Завершает этап; записей - сколько разобрано к его концу */
+    private void endPhase(TmEvents.Phase phase, String name) {
+        endPhase(phase, name, counters.getTotalRecords());
+    }
 
-        // Байты 12-15 - значение
-        this.tmpString = this.tmpString + this.currentByteHex;
-        if (this.position == 15) {
-            createCodeRecord();
-            resetForNextRecord();
+    private void endPhase(TmEvents.Phase phase, String name, long records) {
+        phase.end();
+        if (phase.shouldCommit()) {
+            phase.file = loadingFile;
+            phase.phase = name;
+            phase.records = records;
+            phase.commit();
         }
     }
 
+    /** Сколько байт выделил текущий поток после замера allocated (-1, если не считается) */
+    private static long allocatedSince(long allocated) {
+        return allocated < 0 ? -1 : TmMonitor.allocatedBytes() - allocated;
+    }
+
     /**
-     * Обрабатывает запись типа Point
+     * Одна загрузка: событие JFR и учёт в TmMonitor. Создаётся после beginLoad,
+     * end вызывается в finally (в том числе при ошибке и отмене).
      */
-    private void processPoint() throws IOException {
-        // Байт 8 - размер элемента
-        if (this.position == 8) {
-            // Не сохраняем, но можем использовать при необходимости
-            return;
+    private class LoadEvent {
+        private final TmEvents.Load event = new TmEvents.Load();
+        private final long allocated = TmMonitor.allocatedBytes();
+        private int files = 0;
+
+        LoadEvent(String file, String mode) {
+            loadingFile = file;
+            partsAllocated = 0;
+            ioTime = 0;
+            event.file = file;
+            event.mode = mode;
+            TmMonitor.get().track(counters);
+            event.begin();
         }
 
-        // Байт 9 - не используется
-        if (this.position == 9) return;
-
-        // Байты 10-11 - длина массива
-        if (this.position == 10 || this.position == 11) {
-            this.tmpString = this.tmpString + this.currentByteHex;
-            if (this.position == 11) {
-                this.dataLength = Integer.parseInt(this.tmpString, 16);
-                // Создаём буфер для данных Point
-                this.pointData = new byte[this.dataLength];
-                this.pointDataIndex = 0;
-                this.remainingPointBytes = this.dataLength;
-                this.readingPointData = true;
-
-                // Сброс позиции - дальше читаем данные Point отдельно
-                this.position = 15; // Чтобы не сбить счётчик
+        /** Загрузка завершена успешно */
+        void loaded(int files) {
+            this.files = files;
+        }
+
+        void end() {
+            event.end();
+            TmMonitor.get().finish(counters);
+            TmMonitor.get().filesLoaded(files);
+            if (event.shouldCommit()) {
+                long own = allocatedSince(allocated);
+                event.allocated = own < 0 || partsAllocated < 0 ? -1 : own + partsAllocated;
+                event.bytes = bytesNum;
+                event.records = counters.getTotalRecords();
+                event.usefulRecords = counters.getUsefulRecords();
+                event.ioTime = ioTime;
+                event.commit();
             }
-            return;
         }
     }
 
     /**
-     * Завершает создание записи Point после чтения всех данных
+     * Задаёт, куда сообщать о ходе следующих вызовов load* (прочитано байт из размера файла).
+     * Если операцию отменить, load* завершится CancellationException; хранилище незаконченной
+     * загрузки (getStore) тогда нужно закрыть.
      */
-    private void finishPointRecord() {
-        createPointRecord();
-
-        // Статистика для Point
-        if (this.dataLength < 4) {
-            pointLess4++;
-        } else if (this.dataLength >= 4) {
-            pointGreater4++;
-        }
-
-        resetForNextRecord();
+    public void setProgress(TmProgress progress) {
+        this.progress = progress;
     }
 
     /**
-     * Обрабатывает запись с неизвестным типом
+     * Включает хранение значений вне кучи, во временном файле в указанном каталоге.
+     * Действует на следующие вызовы load*.
+     * @param directory каталог для временных файлов или null, чтобы хранить значения в куче
      */
-    private void processUnknown() throws IOException {
-        // Просто пропускаем байты до конца записи
-        if (this.position == 15) {
-            createUnknownRecord();
-            resetForNextRecord();
-        }
+    public void setOffHeapDirectory(Path directory) {
+        this.offHeapDirectory = directory;
     }
 
     /**
-     * Создаёт объект Long-записи
+     * Сохранять ли список записей (TmRecordIndex) рядом с загружаемым файлом; по умолчанию сохраняется.
+     * Действует на следующие вызовы load*.
      */
-    private void createLongRecord() {
-        TmLong record = new TmLong();
-        record.setNumber(paramNumber);
-        record.setName(getParamName());
-        record.setTime(milliseconds);
-        record.setDimension(getDimensionString());
-        record.setAttribute(attribute);
-        record.setValueType(valueType);
-
-        try {
-            long value = Long.parseLong(tmpString, 16);
-            record.setValue((int) value);
-        } catch (NumberFormatException e) {
-            record.setValue(0);
-        }
-
-        addRecord(record);
-        typeCounts[0]++;
-        usefulRecords++;
+    public void setSaveRecordIndex(boolean save) {
+        this.saveRecordIndex = save;
     }
 
     /**
-     * Создаёт объект Double-записи
+     * Хранить ли значения в куче сжатыми (CompressedTmStore): памяти нужно в несколько раз меньше,
+     * доступ к записям немного медленнее. Хранение вне кучи (setOffHeapDirectory) важнее.
+     * Действует на следующие вызовы load*.
      */
-    private void createDoubleRecord() {
-        TmDouble record = new TmDouble();
-        record.setNumber(paramNumber);
-        record.setName(getParamName());
-        record.setTime(milliseconds);
-        record.setDimension(getDimensionString());
-        record.setAttribute(attribute);
-        record.setValueType(valueType);
-
-        try {
-            long bits = Long.parseLong(tmpString, 16);
-            record.setValue(Double.longBitsToDouble(bits));
-        } catch (NumberFormatException e) {
-            record.setValue(0.0);
-        }
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
 
-        addRecord(record);
-        typeCounts[1]++;
-        usefulRecords++;
+    private void beginLoad(Dim dim, DatXML datXML) throws IOException {
+        multiFile = false;
+        recordIndex = null;
+        indexBuilder = new TmRecordIndex.Builder();
+        this.dim = dim;
+        this.datXML = datXML;
+        this.store = offHeapDirectory != null ? new OffHeapTmStore(dim, datXML, offHeapDirectory)
+                : compressed ? new CompressedTmStore(dim, datXML)
+                : new TmStore(dim, datXML);
     }
 
     /**
-     * Создаёт объект Code-записи
+     * Хранилище для файла из loadFiles. Файлы целиком лежат в нём до слияния, поэтому хранятся
+     * так же, как общее хранилище: вне кучи - во временном файле того же каталога, иначе сжатыми
+     * или несжатыми (порции loadParallel живут недолго и всегда несжаты)
+     * @throws IOException если не удалось создать временный файл
      */
-    private void createCodeRecord() {
-        TmCode record = new TmCode();
-        record.setNumber(paramNumber);
-        record.setName(getParamName());
-        record.setTime(milliseconds);
-        record.setDimension(getDimensionString());
-        record.setAttribute(attribute);
-        record.setValueType(valueType);
-        record.setCodeLength(codeLength);
-
-        try {
-            int value = (int) Long.parseLong(tmpString, 16);
-            record.setCodeValue(value);
-        } catch (NumberFormatException e) {
-            record.setCodeValue(0);
+    private TmStore partStore() throws IOException {
+        if (offHeapDirectory != null) {
+            return new OffHeapTmStore(store.getMetadata(), offHeapDirectory);
         }
+        return compressed ? new CompressedTmStore(store.getMetadata()) : new TmStore(store.getMetadata());
+    }
+
+    private void printSummary() {
+        System.out.println("File size: " + bytesNum + " bytes");
+        System.out.println("Total records: " + getTotalRecords());
+        System.out.println("Useful records: " + getUsefulRecords());
+    }
 
-        addRecord(record);
-        typeCounts[2]++;
-        usefulRecords++;
+    // Получатель записей
+
+    @Override
+    public void onStart() {
+        counters.onStart();
+    }
 
-        // Статистика для Code
-        if (codeLength < 8) {
-            codeLess8++;
-        } else if (codeLength >= 8) {
-            codeGreater8++;
+    @Override
+    public void onServiceRecord(TmRecordView record) {
+        counters.onServiceRecord(record);
+        if (indexBuilder != null) {
+            indexBuilder.onServiceRecord(record);
         }
     }
 
     /**
-     * Создаёт объект Point-записи
+     * Сохраняет запись в серию её параметра
      */
-    private void createPointRecord() {
-        TmPoint record = new TmPoint();
-        record.setNumber(paramNumber);
-        record.setName(getParamName());
-        record.setTime(milliseconds);
-        record.setDimension(getDimensionString());
-        record.setAttribute(attribute);
-        record.setValueType(valueType);
-        record.setDataLength(dataLength);
-        record.setData(pointData);
-
-        addRecord(record);
-        typeCounts[3]++;
-        usefulRecords++;
+    @Override
+    public void onRecord(TmRecordView record) {
+        counters.onRecord(record);
+        paramStats.onRecord(record);
+        if (indexBuilder != null) {
+            indexBuilder.onRecord(record);
+        }
+
+        int paramNumber = record.getParamNumber();
+        long milliseconds = record.getTime();
+        int dimensionCode = record.getDimensionCode();
+        int attribute = record.getAttribute();
+        int valueType = record.getValueType();
+        switch (valueType) {
+            case TmFormat.TYPE_LONG:
+                store.appendLong(paramNumber, milliseconds, dimensionCode, attribute, record.getIntValue());
+                break;
+            case TmFormat.TYPE_DOUBLE:
+                store.appendDouble(paramNumber, milliseconds, dimensionCode, attribute, record.getDoubleValue());
+                break;
+            case TmFormat.TYPE_CODE:
+                store.appendCode(paramNumber, milliseconds, dimensionCode, attribute,
+                        record.getCodeLength(), record.getIntValue());
+                break;
+            case TmFormat.TYPE_POINT:
+                store.appendPoint(paramNumber, milliseconds, dimensionCode, attribute, pointData(record));
+                break;
+            default:
+                store.appendUnknown(paramNumber, milliseconds, dimensionCode, attribute, valueType);
+                break;
+        }
+    }
+
+    @Override
+    public void onEnd(long bytes) {
+        bytesNum = bytes;
+        // Серии упорядочиваются один раз, дальше выборки по времени идут двоичным поиском
+        TmEvents.Phase sort = beginPhase();
+        store.sortByTime();
+        store.compact();
+        endPhase(sort, "sort");
+        printSummary();
     }
 
     /**
-     * Создаёт объект записи с неизвестным типом
+     * Данные Point: срез буфера в режиме отображения, иначе копия
      */
-    private void createUnknownRecord() {
-        TmUnknown record = new TmUnknown();
-        record.setNumber(paramNumber);
-        record.setName(getParamName() + " [unknown type]");
-        record.setTime(milliseconds);
-        record.setDimension(getDimensionString());
-        record.setAttribute(attribute);
-        record.setValueType(valueType);
-
-        addRecord(record);
-        unknownRecords++;
+    private ByteBuffer pointData(TmRecordView record) {
+        return zeroCopy ? record.getPointData() : ByteBuffer.wrap(record.copyPointData());
     }
 
     /**
-     * Добавляет запись в коллекции
+     * Записывает размер файла, счётчики и статистику параметров (для кэша сеанса)
      */
-    private void addRecord(TmDat record) {
-        allRecords.add(record);
-        String name = record.getName();
-        recordsByName.computeIfAbsent(name, k -> new ArrayList<>()).add(record);
+    void writeCounters(DataOutput out) throws IOException {
+        out.writeLong(bytesNum);
+        counters.write(out);
+        paramStats.write(out);
     }
 
     /**
-     * Сбрасывает состояние для следующей записи
+     * Восстанавливает состояние после загрузки из кэша сеанса
      */
-    private void resetForNextRecord() {
-        this.position = -1;
-        totalRecords++;
-        // Не увеличиваем usefulRecords здесь, они увеличиваются в конкретных методах
+    void restore(TmStore store, DataInput in) throws IOException {
+        this.store = store;
+        bytesNum = in.readLong();
+        counters.read(in);
+        paramStats.read(in);
+    }
+
+    // Геттеры для статистики
+
+    /** Хранилище разобранных записей */
+    public TmStore getStore() {
+        return store;
     }
 
     /**
-     * Возвращает имя параметра по номеру
+     * Список записей загруженного файла, построенный во время загрузки;
+     * null, если загружено несколько файлов или сеанс восстановлен из кэша
      */
-    private String getParamName() {
-        return datXML.getName(paramNumber);
+    public TmRecordIndex getRecordIndex() {
+        return recordIndex;
     }
 
     /**
-     * Возвращает строку размерности
+     * Все записи, сгруппированные по параметрам.
+     * Объекты TmDat создаются при обращении к элементам.
      */
-    private String getDimensionString() {
-        if (dimensionCode >= 32) {
-            return dim.getDimension(dimensionCode);
-        } else {
-            return "fmt" + dimensionCode;
-        }
+    public List<TmDat> getAllRecords() {
+        return store.asRecordList();
     }
 
     /**
-     * Проверяет, является ли текущая запись служебной
+     * Записи по именам параметров (только для чтения).
+     * Объекты TmDat создаются при обращении к элементам.
      */
-    private boolean isSystemMessage() {
-        return paramNumber == SYSTEM_MESSAGE_PARAM;
+    public Map<String, List<TmDat>> getRecordsByName() {
+        return store.asRecordMap();
     }
 
-    // Геттеры для статистики
-
-    public List<TmDat> getAllRecords() {
-        return allRecords;
+    /** Статистика по файлу */
+    public TmCounters getCounters() {
+        return counters;
     }
 
-    public Map<String, List<TmDat>> getRecordsByName() {
-        return recordsByName;
+    /** Статистика по каждому параметру */
+    public TmParamStats getParamStats() {
+        return paramStats;
     }
 
-    public int getTotalRecords() {
-        return totalRecords;
+    public long getTotalRecords() {
+        return counters.getTotalRecords();
     }
 
-    public int getServiceRecords() {
-        return serviceRecords;
+    public long getServiceRecords() {
+        return counters.getServiceRecords();
     }
 
-    public int getUsefulRecords() {
-        return usefulRecords;
+    public long getUsefulRecords() {
+        return counters.getUsefulRecords();
     }
 
-    public int getUnknownRecords() {
-        return unknownRecords;
+    public long getUnknownRecords() {
+        return counters.getUnknownRecords();
     }
 
-    public int[] getTypeCounts() {
-        return typeCounts;
+    public long[] getTypeCounts() {
+        return counters.getTypeCounts();
     }
 
-    public int getPointLess4() {
-        return pointLess4;
+    public long getPointLess4() {
+        return counters.getPointLess4();
     }
 
-    public int getPointGreater4() {
-        return pointGreater4;
+    public long getPointGreater4() {
+        return counters.getPointGreater4();
     }
 
-    public int getCodeLess8() {
-        return codeLess8;
+    public long getCodeLess8() {
+        return counters.getCodeLess8();
     }
 
-    public int getCodeGreater8() {
-        return codeGreater8;
+    public long getCodeGreater8() {
+        return counters.getCodeGreater8();
     }
-}
\ No newline at end of file
+}
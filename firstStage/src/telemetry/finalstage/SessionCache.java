@@ -0,0 +1,208 @@
+package telemetry.finalstage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Кэш разобранного сеанса рядом с ТМ-файлом (файл "имя ТМ-файла.tmcache").
+ * Кэш - это файл хранилища вне кучи (OffHeapTmStore): строки серий и данные Point
+ * лежат в нём в готовом виде, поэтому повторное открытие сводится к отображению файла в память.
+ *
+ * В начале файла - заголовок: сигнатура, версия формата, смещение и длина блока описания.
+ * Блок описания содержит ключ, счётчики ReadTMI, статистику параметров и таблицы блоков всех серий.
+ * Ключ составляют размер, время изменения и хэш начала и конца ТМ-файла,
+ * версия трансляции словаря, а также размеры и времена изменения файлов словаря и размерностей.
+ */
+public class SessionCache {
+    private static final int MAGIC = 0x544D4331; // "TMC1"
+    private static final int FORMAT_VERSION = 3;
+    private static final int HEADER_SIZE = 64;
+    // Сколько байт с начала и с конца ТМ-файла входит в хэш
+    private static final int HASH_BLOCK = 1 << 20;
+
+    public static final String SUFFIX = ".tmcache";
+
+    private SessionCache() {
+    }
+
+    public static Path cachePath(String tmFile) {
+        return Paths.get(tmFile + SUFFIX);
+    }
+
+    /**
+     * Открывает сеанс из кэша
+     * @return загруженный сеанс или null, если кэша нет или он устарел
+     */
+    public static ReadTMI load(String tmFile, String xmlFile, String dimFile, Dim dim, DatXML datXML) {
+        Path path = cachePath(tmFile);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        OffHeapTmStore store = null;
+        try {
+            byte[] key = key(tmFile, xmlFile, dimFile, datXML);
+            store = OffHeapTmStore.open(dim, datXML, path);
+
+            ByteBuffer header = store.region(0);
+            if (header.limit() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+                store.close();
+                return null;
+            }
+            long metaOffset = header.getLong(8);
+            byte[] meta = new byte[header.getInt(16)];
+            store.region(metaOffset).get(OffHeapTmStore.local(metaOffset), meta);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta));
+
+            byte[] storedKey = new byte[in.readInt()];
+            in.readFully(storedKey);
+            if (!Arrays.equals(key, storedKey)) {
+                store.close();
+                return null;
+            }
+
+            ReadTMI reader = new ReadTMI();
+            reader.restore(store, in);
+            int seriesCount = in.readInt();
+            for (int i = 0; i < seriesCount; i++) {
+                String name = in.readUTF();
+                int number = in.readInt();
+                int size = in.readInt();
+                long[] blocks = new long[in.readInt()];
+                for (int b = 0; b < blocks.length; b++) {
+                    blocks[b] = in.readLong();
+                }
+                store.restoreSeries(name, number, blocks, size);
+            }
+            return reader;
+        } catch (IOException | RuntimeException e) {
+            // Повреждённый или недоступный кэш просто не используется
+            System.err.println("Кэш сеанса не прочитан: " + e);
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Сохраняет разобранный сеанс в кэш. Серии сеанса при этом упорядочиваются по времени.
+     * @throws IOException при ошибках записи
+     */
+    public static void save(ReadTMI reader, String tmFile, String xmlFile, String dimFile,
+                            Dim dim, DatXML datXML) throws IOException {
+        Path target = cachePath(tmFile);
+        Path tmp = Paths.get(target + ".tmp");
+        byte[] key = key(tmFile, xmlFile, dimFile, datXML);
+
+        try {
+            OffHeapTmStore cache = OffHeapTmStore.create(dim, datXML, tmp);
+            try {
+                long headerOffset = cache.allocate(HEADER_SIZE);
+
+                // Упорядоченные серии в кэше больше не придётся сортировать (он только для чтения)
+                reader.getStore().sortByTime();
+                cache.appendAll(reader.getStore());
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(key.length);
+                out.write(key);
+                reader.writeCounters(out);
+                out.writeInt(cache.getSeriesCount());
+                for (TmSeries series : cache.getAllSeries()) {
+                    long[] blocks = ((OffHeapTmSeries) series).getBlocks();
+                    out.writeUTF(series.getName());
+                    out.writeInt(series.getParamNumber());
+                    out.writeInt(series.size());
+                    out.writeInt(blocks.length);
+                    for (long block : blocks) {
+                        out.writeLong(block);
+                    }
+                }
+                out.flush();
+                byte[] meta = bytes.toByteArray();
+                if (meta.length > OffHeapTmStore.REGION_SIZE) {
+                    throw new IOException("Описание сеанса не помещается в кэш: " + meta.length + " байт");
+                }
+
+                long metaOffset = cache.allocate(meta.length);
+                cache.region(metaOffset).put(OffHeapTmStore.local(metaOffset), meta);
+                ByteBuffer header = cache.region(headerOffset);
+                int h = OffHeapTmStore.local(headerOffset);
+                header.putInt(h, MAGIC);
+                header.putInt(h + 4, FORMAT_VERSION);
+                header.putLong(h + 8, metaOffset);
+                header.putInt(h + 16, meta.length);
+                cache.finish();
+            } finally {
+                cache.close();
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Ключ кэша: всё, от чего зависит результат разбора
+     */
+    private static byte[] key(String tmFile, String xmlFile, String dimFile, DatXML datXML) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Path tm = Paths.get(tmFile);
+        writeStamp(out, tm);
+        out.writeLong(hash(tm));
+        out.writeUTF(datXML.getVersion());
+        writeStamp(out, Paths.get(xmlFile));
+        writeStamp(out, Paths.get(dimFile));
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeStamp(DataOutputStream out, Path file) throws IOException {
+        out.writeLong(Files.size(file));
+        out.writeLong(Files.getLastModifiedTime(file).toMillis());
+    }
+
+    /**
+     * CRC32 первого и последнего мегабайта файла
+     */
+    private static long hash(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_BLOCK);
+            readFully(channel, buffer, 0);
+            crc.update(buffer);
+            if (size > HASH_BLOCK) {
+                buffer.clear();
+                readFully(channel, buffer, Math.max(HASH_BLOCK, size - HASH_BLOCK));
+                crc.update(buffer);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int n;
+        while (buffer.hasRemaining() && (n = channel.read(buffer, position)) != -1) {
+            position += n;
+        }
+        buffer.flip();
+    }
+}
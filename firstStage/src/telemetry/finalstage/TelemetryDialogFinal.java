@@ -2,6 +2,7 @@ package telemetry.finalstage;
 
 import javax.swing.*;
 import javax.swing.event.ListSelectionEvent;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.MouseAdapter;
@@ -9,9 +10,10 @@ import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.List;
-import java.util.Map;
-import java.util.Comparator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Финальный этап разработки: полностью работающий интерфейс.
@@ -21,7 +23,12 @@ public class TelemetryDialogFinal extends JFrame {
     // Компоненты интерфейса
     private JList<String> paramList;
     private DefaultListModel<String> listModel;
-    private JTextArea valueArea;
+    private JTable valueTable;
+    private TmValueTableModel valueModel;
+    private TmChartPanel chartPanel;
+    private JLabel lblValueInfo;
+    private JTextField txtTimeFrom;
+    private JTextField txtTimeTo;
     private JTextArea statsArea;
 
     private JLabel lblTmFile;
@@ -30,6 +37,9 @@ public class TelemetryDialogFinal extends JFrame {
     private JButton btnSelectFiles;
     private JButton btnViewFile;
     private JButton btnLoad;
+    private JCheckBox chkFollow;
+    private JProgressBar progressBar;
+    private JButton btnCancel;
 
     // Список чекбоксов для общей статистики
     private JList<String> statListGeneral;
@@ -39,6 +49,7 @@ public class TelemetryDialogFinal extends JFrame {
     private JButton btnResetStats;
     private JButton btnSaveStats;
     private JButton btnClearValues;
+    private JButton btnExport;
 
     // Названия пунктов общей статистики (13 пунктов)
     private static final String[] STAT_ITEMS_GENERAL = {
@@ -54,9 +65,20 @@ public class TelemetryDialogFinal extends JFrame {
             "Point < 4 байт",
             "Point > 4 байт",
             "Code < 8 разрядов",
-            "Code > 8 разрядов"
+            "Code > 8 разрядов",
+            "Сводка по выбранному параметру"
     };
 
+    // Файлы больше 1/OFF_HEAP_RATIO максимального размера кучи загружаются вне кучи
+    private static final int OFF_HEAP_RATIO = 4;
+    // Файлы больше 1/COMPRESSED_RATIO кучи (но меньше порога вне кучи) хранятся в куче сжатыми
+    private static final int COMPRESSED_RATIO = 16;
+    // Период опроса дописываемого ТМ-файла в режиме слежения, мс
+    private static final int FOLLOW_INTERVAL_MS = 50;
+    // Сколько дописанных байт разбирается за один опрос (несколько десятков мс в потоке событий);
+    // накопившееся за долгую загрузку или выгрузку разбирается за несколько опросов
+    private static final int FOLLOW_SLICE_BYTES = 1 << 20;
+
     // Храним выбранные файлы
     private String selectedTmFile = "";
     private String selectedXmlFile = "";
@@ -67,6 +89,18 @@ public class TelemetryDialogFinal extends JFrame {
     private DatXML datXML;
     private ReadTMI reader;
 
+    // Загрузка и выборки выполняются в фоне; новая выборка отменяет прежнюю
+    private final TmTaskRunner tasks = new TmTaskRunner("telemetry-task", 2);
+    private static final String TASK_LOAD = "load";
+    private static final String TASK_QUERY = "query";
+    private static final String TASK_EXPORT = "export";
+    private static final String TASK_CHART = "chart";
+
+    // Слежение за дописываемым файлом
+    private TmTail tail;
+    private Timer followTimer;
+    private boolean updatingList = false;
+
     public TelemetryDialogFinal() {
         setTitle("Telemetry Viewer");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -131,6 +165,24 @@ public class TelemetryDialogFinal extends JFrame {
         btnLoad.setEnabled(false);
         buttonPanel.add(btnLoad);
 
+        chkFollow = new JCheckBox("Следить за файлом");
+        chkFollow.setToolTipText("Показывать записи, дописываемые в ТМ-файл во время сеанса");
+        buttonPanel.add(chkFollow);
+
+        // Ход загрузки: процент и оставшееся время
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setPreferredSize(new Dimension(260, progressBar.getPreferredSize().height));
+        tasks.setProgressBar(progressBar);
+        buttonPanel.add(progressBar);
+
+        btnCancel = new JButton("Отмена");
+        btnCancel.addActionListener(e -> {
+            tasks.cancel(TASK_LOAD);
+            tasks.cancel(TASK_EXPORT);
+        });
+        btnCancel.setVisible(false);
+        buttonPanel.add(btnCancel);
+
         topPanel.add(buttonPanel, BorderLayout.SOUTH);
 
         add(topPanel, BorderLayout.NORTH);
@@ -141,12 +193,48 @@ public class TelemetryDialogFinal extends JFrame {
         paramList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         paramList.addListSelectionListener(this::paramSelected);
 
-        valueArea = new JTextArea();
-        valueArea.setEditable(false);
-        valueArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        // Таблица значений: строки форматируются только при отрисовке видимой части
+        valueModel = new TmValueTableModel();
+        valueTable = new JTable(valueModel);
+        valueTable.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        valueTable.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+        valueTable.setFillsViewportHeight(true);
+        lblValueInfo = new JLabel(" ");
+
+        // Фильтр по времени для вывода значений
+        JPanel timePanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        timePanel.add(new JLabel("Время с"));
+        txtTimeFrom = new JTextField(10);
+        txtTimeFrom.setToolTipText("ЧЧ:ММ:СС или ЧЧ:ММ:СС,мс; пусто - с начала");
+        timePanel.add(txtTimeFrom);
+        timePanel.add(new JLabel("по"));
+        txtTimeTo = new JTextField(10);
+        txtTimeTo.setToolTipText("ЧЧ:ММ:СС или ЧЧ:ММ:СС,мс; пусто - до конца");
+        timePanel.add(txtTimeTo);
+        JButton btnApplyTime = new JButton("Показать");
+        btnApplyTime.addActionListener(e -> {
+            String selected = paramList.getSelectedValue();
+            if (selected != null) {
+                showParameter(selected);
+            }
+        });
+        timePanel.add(btnApplyTime);
+
+        JPanel valueTopPanel = new JPanel(new BorderLayout());
+        valueTopPanel.add(timePanel, BorderLayout.NORTH);
+        valueTopPanel.add(lblValueInfo, BorderLayout.SOUTH);
+
+        JPanel valuePanel = new JPanel(new BorderLayout());
+        valuePanel.add(valueTopPanel, BorderLayout.NORTH);
+        // Значения - таблицей или графиком последнего выбранного параметра
+        chartPanel = new TmChartPanel();
+        JTabbedPane valueTabs = new JTabbedPane();
+        valueTabs.addTab("Таблица", new JScrollPane(valueTable));
+        valueTabs.addTab("График", chartPanel);
+        valuePanel.add(valueTabs, BorderLayout.CENTER);
 
         JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,
-                new JScrollPane(paramList), new JScrollPane(valueArea));
+                new JScrollPane(paramList), valuePanel);
         splitPane.setDividerLocation(300);
         add(splitPane, BorderLayout.CENTER);
 
@@ -202,9 +290,13 @@ public class TelemetryDialogFinal extends JFrame {
         bottomButtonPanel.add(btnSaveStats);
 
         btnClearValues = new JButton("Очистить значения");
-        btnClearValues.addActionListener(e -> valueArea.setText(""));
+        btnClearValues.addActionListener(e -> clearValues());
         bottomButtonPanel.add(btnClearValues);
 
+        btnExport = new JButton("Экспорт...");
+        btnExport.addActionListener(this::exportAction);
+        bottomButtonPanel.add(btnExport);
+
         southPanel.add(bottomButtonPanel, BorderLayout.CENTER);
 
         // Текстовая область для отображения статистики
@@ -243,21 +335,31 @@ public class TelemetryDialogFinal extends JFrame {
         if (reader != null) {
             // Если данные уже загружены, передаём reader для реального просмотра
             ViewFileDialog dialog = new ViewFileDialog(this,
-                    selectedTmFile, selectedXmlFile, selectedDimFile, reader);
+                    firstTmFile(), selectedXmlFile, selectedDimFile, reader);
             dialog.setVisible(true);
         } else {
             // Только выбор файлов, без данных
             ViewFileDialog dialog = new ViewFileDialog(this,
-                    selectedTmFile, selectedXmlFile, selectedDimFile);
+                    firstTmFile(), selectedXmlFile, selectedDimFile);
             dialog.setVisible(true);
         }
     }
 
+    /** Первый из выбранных ТМ-файлов (для просмотра) */
+    private String firstTmFile() {
+        List<String> tmFiles = Config.splitTmFiles(selectedTmFile);
+        return tmFiles.isEmpty() ? selectedTmFile : tmFiles.get(0);
+    }
+
     /**
      * Обновляет метки с именами выбранных файлов.
      */
     private void updateFileLabels() {
-        if (!selectedTmFile.isEmpty()) {
+        List<String> tmFiles = Config.splitTmFiles(selectedTmFile);
+        if (tmFiles.size() > 1) {
+            lblTmFile.setText(tmFiles.size() + " файлов: " + new File(tmFiles.get(0)).getName() + " ...");
+            lblTmFile.setForeground(Color.BLACK);
+        } else if (!selectedTmFile.isEmpty()) {
             lblTmFile.setText(new File(selectedTmFile).getName());
             lblTmFile.setForeground(Color.BLACK);
         } else {
@@ -311,57 +413,161 @@ public class TelemetryDialogFinal extends JFrame {
             JOptionPane.showMessageDialog(this, "Выберите все три файла.");
             return;
         }
+        // Выгрузка читает хранилище, которое новая загрузка закроет
+        if (tasks.isRunning(TASK_EXPORT)) {
+            JOptionPane.showMessageDialog(this, "Дождитесь окончания экспорта или отмените его.");
+            return;
+        }
+
+        List<String> tmFiles = Config.splitTmFiles(selectedTmFile);
+        if (tmFiles.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "В выбранном каталоге нет ТМ-файлов.");
+            return;
+        }
+        boolean multiFile = tmFiles.size() > 1;
+        if (multiFile && chkFollow.isSelected()) {
+            JOptionPane.showMessageDialog(this, "Следить можно только за одним файлом; файлы будут загружены без слежения.");
+            chkFollow.setSelected(false);
+        }
 
         btnLoad.setEnabled(false);
         btnLoad.setText("Загрузка...");
+        btnCancel.setVisible(true);
+        stopFollowing();
+        // Дописываемый файл не кэшируется: кэш устарел бы с первой новой записью
+        boolean follow = chkFollow.isSelected();
+        String tmFile = tmFiles.get(0);
+        String xmlFile = selectedXmlFile;
+        String dimFile = selectedDimFile;
+
+        tasks.submit(TASK_LOAD, "Загрузка", progress -> {
+            // Словари берутся из двоичного снимка, XML разбирается только при его изменении
+            Dim newDim = new Dim();
+            DatXML newDat = new DatXML();
+            DictionarySnapshot.load(xmlFile, dimFile, newDat, newDim);
+
+            // Если файл уже открывали, сеанс берётся из кэша без разбора (кэш есть только у одного файла)
+            boolean cached = !follow && !multiFile;
+            ReadTMI newReader = cached ? SessionCache.load(tmFile, xmlFile, dimFile, newDim, newDat) : null;
+            if (newReader == null) {
+                newReader = new ReadTMI();
+                // Значения больших файлов не поместятся в кучу - храним их во временном файле
+                long size = 0;
+                for (String file : tmFiles) {
+                    size += new File(file).length();
+                }
+                boolean offHeap = size > Runtime.getRuntime().maxMemory() / OFF_HEAP_RATIO;
+                if (offHeap) {
+                    newReader.setOffHeapDirectory(Paths.get(System.getProperty("java.io.tmpdir"), "telemetry"));
+                } else if (size > Runtime.getRuntime().maxMemory() / COMPRESSED_RATIO) {
+                    // Несжатые серии занимают в куче в 2-3 раза больше самого файла
+                    newReader.setCompressed(true);
+                }
+                newReader.setProgress(progress);
+                try {
+                    if (multiFile) {
+                        // Файлы разбираются одновременно и сливаются по времени
+                        newReader.loadFiles(tmFiles, newDim, newDat);
+                    } else if (offHeap) {
+                        // Потоковый разбор держит в куче только буфер чтения,
+                        // а порции loadParallel до слияния лежат в куче
+                        newReader.load(tmFile, newDim, newDat);
+                    } else {
+                        newReader.loadParallel(tmFile, newDim, newDat);
+                    }
+                } catch (Exception ex) {
+                    // Незаконченное хранилище (временный файл вне кучи) больше не нужно
+                    if (newReader.getStore() != null) {
+                        newReader.getStore().close();
+                    }
+                    throw ex;
+                }
+                newReader.setProgress(TmProgress.NONE);
+                if (cached) {
+                    try {
+                        SessionCache.save(newReader, tmFile, xmlFile, dimFile, newDim, newDat);
+                    } catch (IOException ex) {
+                        // Без кэша следующее открытие будет медленнее, но данные уже загружены
+                        System.err.println("Не удалось сохранить кэш сеанса: " + ex.getMessage());
+                    }
+                }
+            }
+            return new LoadedSession(newDim, newDat, newReader);
+        }, loaded -> loadFinished(loaded, follow), this::loadFailed);
+    }
 
-        SwingWorker<Void, Void> worker = new SwingWorker<>() {
-            @Override
-            protected Void doInBackground() throws Exception {
-                Dim newDim = new Dim();
-                newDim.load(selectedDimFile);
-
-                DatXML newDat = new DatXML();
-                newDat.load(selectedXmlFile);
+    /**
+     * Результат загрузки; если загрузку отменили, хранилище закрывается
+     */
+    private static class LoadedSession implements AutoCloseable {
+        final Dim dim;
+        final DatXML datXML;
+        final ReadTMI reader;
+
+        LoadedSession(Dim dim, DatXML datXML, ReadTMI reader) {
+            this.dim = dim;
+            this.datXML = datXML;
+            this.reader = reader;
+        }
 
-                ReadTMI newReader = new ReadTMI();
-                newReader.load(selectedTmFile, newDim, newDat);
+        @Override
+        public void close() throws IOException {
+            reader.getStore().close();
+        }
+    }
 
-                dim = newDim;
-                datXML = newDat;
-                reader = newReader;
-                return null;
+    private void loadFinished(LoadedSession loaded, boolean follow) {
+        loadEnded();
+        // Старое хранилище закрывается после того, как таблица перестанет его читать
+        ReadTMI oldReader = reader;
+        tasks.cancel(TASK_QUERY);
+        dim = loaded.dim;
+        datXML = loaded.datXML;
+        reader = loaded.reader;
+        updateUIAfterLoad();
+        if (oldReader != null) {
+            try {
+                oldReader.getStore().close();
+            } catch (IOException ex) {
+                System.err.println("Не удалось закрыть прежнее хранилище: " + ex.getMessage());
             }
-
-            @Override
-            protected void done() {
-                try {
-                    get();
-                    updateUIAfterLoad();
-                    JOptionPane.showMessageDialog(TelemetryDialogFinal.this,
-                            "Данные успешно загружены.",
-                            "Успех", JOptionPane.INFORMATION_MESSAGE);
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                    JOptionPane.showMessageDialog(TelemetryDialogFinal.this,
-                            "Ошибка загрузки:\n" + ex.getMessage(),
-                            "Ошибка", JOptionPane.ERROR_MESSAGE);
-                } finally {
-                    btnLoad.setEnabled(true);
-                    btnLoad.setText("Загрузить данные");
-                }
+        }
+        try {
+            if (follow) {
+                startFollowing();
             }
-        };
-        worker.execute();
+            JOptionPane.showMessageDialog(this,
+                    "Данные успешно загружены.",
+                    "Успех", JOptionPane.INFORMATION_MESSAGE);
+        } catch (IOException ex) {
+            loadFailed(ex);
+        }
+    }
+
+    private void loadFailed(Exception ex) {
+        loadEnded();
+        if (ex instanceof CancellationException) {
+            return;
+        }
+        ex.printStackTrace();
+        JOptionPane.showMessageDialog(this,
+                "Ошибка загрузки:\n" + ex.getMessage(),
+                "Ошибка", JOptionPane.ERROR_MESSAGE);
+    }
+
+    private void loadEnded() {
+        btnLoad.setEnabled(true);
+        btnLoad.setText("Загрузить данные");
+        btnCancel.setVisible(false);
     }
 
     private void updateUIAfterLoad() {
         listModel.clear();
-        for (String name : reader.getRecordsByName().keySet()) {
+        for (String name : reader.getStore().getNames()) {
             listModel.addElement(name);
         }
         buildStatistics();
-        valueArea.setText("");
+        clearValues();
 
         // Сбросить состояния чекбоксов
         for (int i = 0; i < statSelectedGeneral.length; i++) {
@@ -370,36 +576,289 @@ public class TelemetryDialogFinal extends JFrame {
         statListGeneral.repaint();
     }
 
+    // ---------- Слежение за файлом ----------
+
+    /**
+     * Запускает опрос дописываемого ТМ-файла. Опрос идёт по таймеру в потоке событий:
+     * записи добавляются и серии упорядочиваются только в нём и только под writeLock хранилища,
+     * фоновые выборки, выгрузка и построение уровней графика читают хранилище под readLock.
+     * За один опрос разбирается не больше FOLLOW_SLICE_BYTES, поэтому поток событий не замирает,
+     * даже если файл долго не опрашивался.
+     */
+    private void startFollowing() throws IOException {
+        tail = reader.follow(firstTmFile());
+        followTimer = new Timer(FOLLOW_INTERVAL_MS, e -> followTick());
+        followTimer.start();
+    }
+
+    private void stopFollowing() {
+        if (followTimer != null) {
+            followTimer.stop();
+            followTimer = null;
+        }
+        if (tail != null) {
+            try {
+                tail.close();
+            } catch (IOException ignored) {
+            }
+            tail = null;
+        }
+    }
+
+    private void followTick() {
+        TmStore store = reader.getStore();
+        // Пока фоновая задача читает хранилище (в том числе уже отменённая), новые записи не добавляются
+        Lock write = store.getLock().writeLock();
+        if (!write.tryLock()) {
+            return;
+        }
+        try {
+            if (tail.poll(FOLLOW_SLICE_BYTES) > 0) {
+                // Запись не по порядку времени снимает упорядоченность серии; восстанавливается
+                // она здесь же, чтобы фоновые задачи и отрисовка серии не упорядочивали
+                store.sortByTime();
+                updateUIAfterTail();
+            }
+        } catch (IOException ex) {
+            stopFollowing();
+            JOptionPane.showMessageDialog(this,
+                    "Слежение за файлом остановлено:\n" + ex.getMessage(),
+                    "Ошибка", JOptionPane.ERROR_MESSAGE);
+        } finally {
+            write.unlock();
+        }
+    }
+
+    /**
+     * Добавляет в интерфейс только то, что принесли новые записи:
+     * новые параметры в список, новые значения выбранного параметра, статистику
+     */
+    private void updateUIAfterTail() {
+        TmStore store = reader.getStore();
+        if (store.getSeriesCount() != listModel.size()) {
+            updatingList = true;
+            try {
+                int i = 0;
+                for (String name : store.getNames()) {
+                    if (i == listModel.size() || !listModel.get(i).equals(name)) {
+                        listModel.add(i, name);
+                    }
+                    i++;
+                }
+            } finally {
+                updatingList = false;
+            }
+        }
+
+        // Таблица сама находит новые записи показанных параметров
+        valueModel.refresh();
+        chartPanel.refresh();
+        updateChartLevels();
+        buildStatistics();
+    }
+
+    /**
+     * Достраивает в фоне уровни прореживания показанной на графике серии и перерисовывает график.
+     * До этого график рисует новые записи по одной.
+     */
+    private void updateChartLevels() {
+        TmSeries series = chartPanel.getSeries();
+        if (series == null || tasks.isRunning(TASK_CHART)) {
+            return;
+        }
+        Lock read = reader.getStore().getLock().readLock();
+        tasks.submit(TASK_CHART, "График", progress -> {
+            read.lock();
+            try {
+                series.getPyramid().update();
+            } finally {
+                read.unlock();
+            }
+            return series;
+        }, built -> chartPanel.repaint(), ex -> {
+            // График по-прежнему рисуется, только по отдельным записям
+        });
+    }
+
     // ---------- Обработчики ----------
 
     private void paramSelected(ListSelectionEvent e) {
-        if (e.getValueIsAdjusting() || reader == null) return;
+        if (e.getValueIsAdjusting() || reader == null || updatingList) return;
         String selected = paramList.getSelectedValue();
         if (selected == null) return;
+        showParameter(selected);
+        buildStatistics();
+    }
+
+    /**
+     * Показывает значения параметра в интервале времени из полей фильтра.
+     * Параметр добавляется в таблицу рядом с уже показанными (или заменяет свой прежний интервал).
+     * Серия упорядочивается здесь, в потоке событий, без ожидания блокировки (обычно она упорядочена
+     * уже при загрузке и после каждого опроса в режиме слежения), а уровни прореживания для графика строятся в фоне; выбор другого параметра отменяет
+     * незаконченную выборку.
+     */
+    private void showParameter(String selected) {
+        TmStore store = reader.getStore();
+        TmSeries series = store.getSeries(selected);
+        if (series == null) return;
+        if (!series.isSortedByTime()) {
+            // Поток событий не ждёт фоновую задачу: пока она читает хранилище, выбор откладывается
+            Lock write = store.getLock().writeLock();
+            if (!write.tryLock()) {
+                lblValueInfo.setText("Параметр: " + selected + " - хранилище занято фоновой задачей, выберите его позже");
+                return;
+            }
+            try {
+                series.sortByTime();
+            } finally {
+                write.unlock();
+            }
+        }
+        Lock read = store.getLock().readLock();
+
+        long[] range = timeFilter();
+        if (range == null) return;
+        long from = range[0];
+        long to = range[1];
+
+        lblValueInfo.setText("Параметр: " + selected + "...");
+        tasks.submit(TASK_QUERY, "Выборка", progress -> {
+            // Уровни прореживания для графика строятся один раз на серию, потом только достраиваются
+            read.lock();
+            try {
+                series.getPyramid().update();
+            } finally {
+                read.unlock();
+            }
+            return series;
+        }, sorted -> {
+            int inRange = valueModel.show(sorted, from, to);
+            resizeValueColumns();
+            chartPanel.show(sorted, from, to);
+
+            String info = "Параметр: " + selected + ", всего записей: " + sorted.size();
+            if (from != Long.MIN_VALUE || to != Long.MAX_VALUE) {
+                info += ", в интервале: " + inRange;
+            }
+            lblValueInfo.setText(info);
+            valueTable.scrollRectToVisible(valueTable.getCellRect(0, 0, true));
+        }, ex -> {
+            // Выборку вытеснила более новая - она и выведет свой результат
+            if (!(ex instanceof CancellationException)) {
+                lblValueInfo.setText("Ошибка выборки: " + ex.getMessage());
+            }
+        });
+    }
 
-        List<TmDat> records = reader.getRecordsByName().get(selected);
-        if (records == null) return;
+    /**
+     * Интервал времени из полей фильтра; пустое поле - без границы
+     * @return {с, по} или null, если время введено неверно (сообщение уже показано)
+     */
+    private long[] timeFilter() {
+        try {
+            long from = txtTimeFrom.getText().isBlank() ? Long.MIN_VALUE : TmDat.parseTime(txtTimeFrom.getText());
+            long to = txtTimeTo.getText().isBlank() ? Long.MAX_VALUE : TmDat.parseTime(txtTimeTo.getText());
+            return new long[]{from, to};
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Ошибка", JOptionPane.ERROR_MESSAGE);
+            return null;
+        }
+    }
 
-        records.sort(Comparator.comparingLong(TmDat::getTime));
+    /**
+     * Выгружает выбранный параметр или все параметры (в интервале из полей фильтра)
+     * в CSV или в столбцовый формат. Выгрузка идёт в фоне, её можно отменить.
+     */
+    private void exportAction(ActionEvent e) {
+        if (reader == null) {
+            JOptionPane.showMessageDialog(this, "Нет загруженных данных.");
+            return;
+        }
+        if (tasks.isRunning(TASK_LOAD) || tasks.isRunning(TASK_EXPORT)) {
+            JOptionPane.showMessageDialog(this, "Дождитесь окончания загрузки или экспорта.");
+            return;
+        }
+        long[] range = timeFilter();
+        if (range == null) return;
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("Параметр: ").append(selected).append("\n");
-        sb.append("Всего записей: ").append(records.size()).append("\n");
-        sb.append("--------------------------------------------------\n");
-        for (TmDat rec : records) {
-            sb.append(TmDat.formatTime(rec.getTime()))
-                    .append("  ")
-                    .append(rec.getValueAsString())
-                    .append("\n");
-        }
-
-        String currentText = valueArea.getText();
-        if (!currentText.isEmpty()) {
-            valueArea.setText(currentText + "\n----------------------\n\n" + sb.toString());
-        } else {
-            valueArea.setText(sb.toString());
+        String selected = paramList.getSelectedValue();
+        List<String> parameters = null;
+        if (selected != null) {
+            Object[] options = {"Выбранный параметр", "Все параметры", "Отмена"};
+            int choice = JOptionPane.showOptionDialog(this, "Что выгрузить?", "Экспорт",
+                    JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+            if (choice == 0) {
+                parameters = List.of(selected);
+            } else if (choice != 1) {
+                return;
+            }
+        }
+
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Экспорт записей");
+        FileNameExtensionFilter csvFilter = new FileNameExtensionFilter("CSV (*.csv)", "csv");
+        FileNameExtensionFilter columnarFilter = new FileNameExtensionFilter("Столбцовый формат (*.tmcol)", "tmcol");
+        chooser.addChoosableFileFilter(csvFilter);
+        chooser.addChoosableFileFilter(columnarFilter);
+        chooser.setFileFilter(csvFilter);
+        chooser.setSelectedFile(new File("telemetry.csv"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        TmExporter.Format format = chooser.getFileFilter() == columnarFilter
+                ? TmExporter.Format.COLUMNAR : TmExporter.Format.CSV;
+        File file = chooser.getSelectedFile();
+        if (!file.getName().contains(".")) {
+            file = new File(file.getPath() + format.getSuffix());
+        }
+
+        TmExporter exporter = new TmExporter(format);
+        exporter.setTimeRange(range[0], range[1]);
+        exporter.setParameters(parameters);
+        TmStore store = reader.getStore();
+        File target = file;
+        btnCancel.setVisible(true);
+        Lock read = store.getLock().readLock();
+        tasks.submit(TASK_EXPORT, "Экспорт", progress -> {
+            exporter.setProgress(progress);
+            // Слежение за файлом не добавляет записей, пока идёт выгрузка
+            read.lock();
+            try {
+                return exporter.exportStore(store, target.toPath());
+            } finally {
+                read.unlock();
+            }
+        }, bytes -> {
+            btnCancel.setVisible(false);
+            JOptionPane.showMessageDialog(this,
+                    "Записи выгружены в файл:\n" + target.getAbsolutePath() + "\n(" + bytes + " байт)",
+                    "Успех", JOptionPane.INFORMATION_MESSAGE);
+        }, ex -> {
+            btnCancel.setVisible(false);
+            if (!(ex instanceof CancellationException)) {
+                ex.printStackTrace();
+                JOptionPane.showMessageDialog(this,
+                        "Ошибка при экспорте: " + ex.getMessage(),
+                        "Ошибка", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+    }
+
+    private void clearValues() {
+        valueModel.clear();
+        chartPanel.clear();
+        lblValueInfo.setText(" ");
+    }
+
+    /**
+     * Ширина столбцов: время - по образцу "00:00:00,000", значение - шире
+     */
+    private void resizeValueColumns() {
+        FontMetrics metrics = valueTable.getFontMetrics(valueTable.getFont());
+        int timeWidth = metrics.stringWidth("00:00:00,000") + 16;
+        for (int c = 0; c < valueTable.getColumnCount(); c++) {
+            valueTable.getColumnModel().getColumn(c).setPreferredWidth(c % 2 == 0 ? timeWidth : timeWidth * 2);
         }
-        valueArea.setCaretPosition(0);
     }
 
     private void buildStatistics() {
@@ -414,19 +873,69 @@ public class TelemetryDialogFinal extends JFrame {
         sb.append("  Полезных записей: ").append(reader.getUsefulRecords()).append("\n");
         sb.append("  Записей с неизвестным типом: ").append(reader.getUnknownRecords()).append("\n");
 
-        int[] typeCounts = reader.getTypeCounts();
+        long[] typeCounts = reader.getTypeCounts();
         sb.append("  Распределение полезных по типам:\n");
         sb.append("    Long  (0): ").append(typeCounts[0]).append("\n");
         sb.append("    Double(1): ").append(typeCounts[1]).append("\n");
         sb.append("    Code  (2): ").append(typeCounts[2]).append("\n");
         sb.append("    Point (3): ").append(typeCounts[3]).append("\n");
 
-        sb.append("  Уникальных параметров: ").append(reader.getRecordsByName().size()).append("\n");
+        sb.append("  Уникальных параметров: ").append(reader.getStore().getSeriesCount()).append("\n");
         sb.append("  Point < 4 байт: ").append(reader.getPointLess4()).append("\n");
         sb.append("  Point > 4 байт: ").append(reader.getPointGreater4()).append("\n");
         sb.append("  Code < 8 разрядов: ").append(reader.getCodeLess8()).append("\n");
         sb.append("  Code > 8 разрядов: ").append(reader.getCodeGreater8()).append("\n");
+
+        String selected = paramList.getSelectedValue();
+        if (selected != null) {
+            sb.append("\n");
+            appendParamStatistics(sb, selected);
+        }
         statsArea.setText(sb.toString());
+        statsArea.setCaretPosition(0);
+    }
+
+    /**
+     * Сводка по параметру из статистики, собранной при разборе
+     */
+    private void appendParamStatistics(StringBuilder sb, String name) {
+        TmSeries series = reader.getStore().getSeries(name);
+        TmParamStats.Summary summary = series == null ? null
+                : reader.getParamStats().get(series.getParamNumber());
+        sb.append("Параметр ").append(name).append(":\n");
+        if (summary == null) {
+            sb.append("  Нет данных.\n");
+            return;
+        }
+        sb.append("  Записей: ").append(summary.getCount()).append("\n");
+        if (summary.getValueCount() > 0) {
+            sb.append("  Числовых значений: ").append(summary.getValueCount()).append("\n");
+            sb.append("  Минимум: ").append(formatNumber(summary.getMin())).append("\n");
+            sb.append("  Максимум: ").append(formatNumber(summary.getMax())).append("\n");
+            sb.append("  Среднее: ").append(formatNumber(summary.getMean())).append("\n");
+            sb.append("  СКО: ").append(formatNumber(summary.getStdDev())).append("\n");
+        }
+        sb.append("  Время: ").append(TmDat.formatTime(summary.getFirstTime()))
+                .append(" - ").append(TmDat.formatTime(summary.getLastTime())).append("\n");
+        sb.append("  Частота, записей/с: ").append(formatNumber(summary.getRate())).append("\n");
+        sb.append("  Наибольший интервал, мс: ").append(summary.getMaxInterval()).append("\n");
+        sb.append("  Разрывов (> ").append(TmParamStats.GAP_MS).append(" мс): ")
+                .append(summary.getGaps()).append("\n");
+        if (summary.getBackward() > 0) {
+            sb.append("  Записей с временем меньше предыдущего: ").append(summary.getBackward()).append("\n");
+        }
+        sb.append("  Признаки:");
+        int[] attributes = summary.getAttributeCounts();
+        for (int a = 0; a < attributes.length; a++) {
+            if (attributes[a] > 0) {
+                sb.append(" ").append(a).append(": ").append(attributes[a]).append(";");
+            }
+        }
+        sb.append("\n");
+    }
+
+    private static String formatNumber(double value) {
+        return Double.isNaN(value) ? "-" : String.format("%.6g", value);
     }
 
     private void updateStatsPlaceholder() {
@@ -445,7 +954,7 @@ public class TelemetryDialogFinal extends JFrame {
 
         boolean anySelected = false;
 
-        int[] tc = reader.getTypeCounts();
+        long[] tc = reader.getTypeCounts();
 
         if (statSelectedGeneral[0]) {
             sb.append(STAT_ITEMS_GENERAL[0]).append(": ").append(reader.getTotalRecords()).append("\n");
@@ -480,7 +989,7 @@ public class TelemetryDialogFinal extends JFrame {
             anySelected = true;
         }
         if (statSelectedGeneral[8]) {
-            sb.append(STAT_ITEMS_GENERAL[8]).append(": ").append(reader.getRecordsByName().size()).append("\n");
+            sb.append(STAT_ITEMS_GENERAL[8]).append(": ").append(reader.getStore().getSeriesCount()).append("\n");
             anySelected = true;
         }
         if (statSelectedGeneral[9]) {
@@ -499,6 +1008,15 @@ public class TelemetryDialogFinal extends JFrame {
             sb.append(STAT_ITEMS_GENERAL[12]).append(": ").append(reader.getCodeGreater8()).append("\n");
             anySelected = true;
         }
+        if (statSelectedGeneral[13]) {
+            String selected = paramList.getSelectedValue();
+            if (selected == null) {
+                sb.append(STAT_ITEMS_GENERAL[13]).append(": параметр не выбран\n");
+            } else {
+                appendParamStatistics(sb, selected);
+            }
+            anySelected = true;
+        }
 
         if (!anySelected) {
             sb.append("Ничего не выбрано.");
@@ -0,0 +1,417 @@
+package telemetry.finalstage;
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пакетная обработка ТМ-файлов без окна (например, на сервере).
+ *
+ * Запуск: java telemetry.finalstage.TmBatch [ключи] [tmFile | каталог ...]
+ *   --config FILE    пути к файлам из config.xml (ТМ-файлы - если они не заданы в командной строке)
+ *   --xml FILE       XML-файл с параметрами
+ *   --dim FILE       файл размерностей
+ *   --threads N      сколько файлов обрабатывается одновременно (по умолчанию - по числу процессоров)
+ *   --stats          статистика по каждому параметру (TmParamStats)
+ *   --index          сохранить рядом с каждым файлом список его записей (TmRecordIndex)
+ *   --export DIR     выгрузить полезные записи каждого файла в каталог
+ *   --format F       формат выгрузки: csv (по умолчанию) или tmcol
+ *   --params A,B     выгружать только эти параметры (по именам)
+ *   --from T, --to T интервал выгрузки, ЧЧ:ММ:СС,мс
+ *   --output FILE    куда писать итог (по умолчанию - стандартный вывод)
+ *
+ * Итог - JSON Lines: по строке на каждый файл в порядке командной строки, последняя строка -
+ * сумма ("total": true). Сообщения и ошибки идут в стандартный поток ошибок.
+ * Код завершения: 0 - все файлы обработаны, 1 - были ошибки, 2 - неверные аргументы.
+ *
+ * Файлы не загружаются в хранилище: счётчики и статистика считаются потоковым разбором
+ * (TmDecoder с блоком фиксированного размера), поэтому память зависит от числа потоков,
+ * а не от размера файлов. Выгрузка идёт напрямую из отображённого файла (TmExporter.exportFile),
+ * ей дополнительно нужен только список смещений записей (MappedTmFile).
+ * Классы Swing и AWT при этом не загружаются.
+ *
+ * За ходом обработки можно следить в JConsole/JMC: счётчики TmMonitor (прочитано байт, записей
+ * в секунду, записи по типам, файлы в очереди) и события JFR из TmEvents.
+ */
+public class TmBatch {
+    private static final String USAGE = "Использование: TmBatch [--config FILE] [--xml FILE] [--dim FILE]"
+            + " [--threads N] [--stats] [--index] [--export DIR] [--format csv|tmcol] [--params A,B]"
+            + " [--from ЧЧ:ММ:СС] [--to ЧЧ:ММ:СС] [--output FILE] [tmFile | каталог ...]";
+
+    private String configFile;
+    private String xmlFile;
+    private String dimFile;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean paramStats;
+    private boolean recordIndex;
+    private Path exportDir;
+    private TmExporter.Format format = TmExporter.Format.CSV;
+    private List<String> parameters;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private String outputFile;
+    private final List<String> tmFiles = new ArrayList<>();
+
+    public static void main(String[] args) {
+        // Итог - только в настоящий стандартный вывод, всё остальное (сводки, предупреждения) - в поток ошибок
+        PrintStream stdout = System.out;
+        System.setOut(System.err);
+
+        TmBatch batch = new TmBatch();
+        try {
+            batch.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        int status;
+        try {
+            status = batch.run(stdout);
+        } catch (Exception e) {
+            System.err.println("Ошибка: " + e);
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--config": configFile = value(args, ++i, arg); break;
+                case "--xml": xmlFile = value(args, ++i, arg); break;
+                case "--dim": dimFile = value(args, ++i, arg); break;
+                case "--threads":
+                    try {
+                        threads = Integer.parseInt(value(args, ++i, arg));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("--threads: нужно целое число");
+                    }
+                    if (threads < 1) {
+                        throw new IllegalArgumentException("--threads: нужно не меньше 1");
+                    }
+                    break;
+                case "--stats": paramStats = true; break;
+                case "--index": recordIndex = true; break;
+                case "--export": exportDir = Paths.get(value(args, ++i, arg)); break;
+                case "--format": {
+                    String name = value(args, ++i, arg);
+                    if (name.equalsIgnoreCase("csv")) {
+                        format = TmExporter.Format.CSV;
+                    } else if (name.equalsIgnoreCase("tmcol")) {
+                        format = TmExporter.Format.COLUMNAR;
+                    } else {
+                        throw new IllegalArgumentException("--format: csv или tmcol, а не " + name);
+                    }
+                    break;
+                }
+                case "--params":
+                    parameters = new ArrayList<>();
+                    for (String name : value(args, ++i, arg).split(",")) {
+                        if (!name.trim().isEmpty()) {
+                            parameters.add(name.trim());
+                        }
+                    }
+                    break;
+                case "--from": from = TmDat.parseTime(value(args, ++i, arg)); break;
+                case "--to": to = TmDat.parseTime(value(args, ++i, arg)); break;
+                case "--output": outputFile = value(args, ++i, arg); break;
+                default:
+                    if (arg.startsWith("--")) {
+                        throw new IllegalArgumentException("Неизвестный ключ " + arg);
+                    }
+                    tmFiles.addAll(Config.splitTmFiles(arg));
+            }
+        }
+        if (configFile == null && (xmlFile == null || dimFile == null)) {
+            throw new IllegalArgumentException("Нужны --xml и --dim или --config");
+        }
+        if (configFile == null && tmFiles.isEmpty()) {
+            throw new IllegalArgumentException("Не заданы ТМ-файлы");
+        }
+    }
+
+    private static String value(String[] args, int i, String key) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(key + ": не задано значение");
+        }
+        return args[i];
+    }
+
+    /**
+     * Обрабатывает файлы и печатает итог
+     * @return код завершения
+     */
+    private int run(PrintStream stdout) throws Exception {
+        if (configFile != null) {
+            Config config = new Config();
+            config.load(configFile);
+            if (xmlFile == null) xmlFile = config.getXmlFile();
+            if (dimFile == null) dimFile = config.getDimFile();
+            if (tmFiles.isEmpty()) tmFiles.addAll(config.getTmFiles());
+        }
+        if (tmFiles.isEmpty()) {
+            System.err.println("Не найдено ни одного ТМ-файла");
+            return 1;
+        }
+        DatXML datXML = new DatXML();
+        Dim dim = new Dim();
+        DictionarySnapshot.load(xmlFile, dimFile, datXML, dim);
+        TmMetadata metadata = new TmMetadata(dim, datXML);
+        if (exportDir != null) {
+            Files.createDirectories(exportDir);
+        }
+
+        OutputStream target = outputFile != null ? new FileOutputStream(outputFile) : stdout;
+        PrintStream out = new PrintStream(target, false, StandardCharsets.UTF_8);
+        // Одновременно обрабатывается не больше threads файлов; одиночный файл выгружается в threads потоков
+        int workers = Math.min(threads, tmFiles.size());
+        int exportThreads = Math.max(1, threads / workers);
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "tm-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        int failed = 0;
+        long bytes = 0;
+        long exported = 0;
+        TmCounters total = new TmCounters();
+        // Файлы, ещё не взятые в обработку (длина очереди в TmMonitor)
+        AtomicInteger waiting = new AtomicInteger(tmFiles.size());
+        String queue = TmMonitor.get().addQueue("batch-files", waiting::get);
+        try {
+            List<Future<FileResult>> futures = new ArrayList<>();
+            for (int i = 0; i < tmFiles.size(); i++) {
+                String tmFile = tmFiles.get(i);
+                futures.add(pool.submit(() -> {
+                    waiting.decrementAndGet();
+                    return process(tmFile, metadata, exportThreads);
+                }));
+            }
+            // Итог печатается в порядке файлов, по мере готовности
+            for (Future<FileResult> future : futures) {
+                FileResult result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+                if (result.error != null) {
+                    failed++;
+                    System.err.println(result.file + ": " + result.error);
+                } else {
+                    bytes += result.bytes;
+                    exported += result.exportBytes;
+                    total.add(result.counters);
+                }
+                out.println(result.toJson(metadata));
+                out.flush();
+            }
+        } finally {
+            pool.shutdownNow();
+            TmMonitor.get().removeQueue(queue);
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        StringBuilder json = new StringBuilder("{\"total\":true");
+        field(json, "files", tmFiles.size());
+        field(json, "failed", failed);
+        field(json, "bytes", bytes);
+        appendCounters(json, total);
+        if (exportDir != null) {
+            field(json, "exportBytes", exported);
+        }
+        field(json, "millis", millis);
+        field(json, "megabytesPerSecond", millis > 0 ? Math.round(bytes / 1e3 / millis * 10) / 10.0 : 0);
+        json.append('}');
+        out.println(json);
+        out.flush();
+        if (outputFile != null) {
+            out.close();
+        }
+        return failed > 0 ? 1 : 0;
+    }
+
+    /**
+     * Один файл: счётчики и статистика за один проход, затем выгрузка.
+     * Ошибка файла записывается в результат, а не прерывает остальные файлы.
+     */
+    private FileResult process(String tmFile, TmMetadata metadata, int exportThreads) {
+        FileResult result = new FileResult(tmFile);
+        long start = System.nanoTime();
+        try {
+            TmCounters counters = new TmCounters();
+            TmParamStats stats = new TmParamStats();
+            // Список записей строится тем же проходом
+            TmRecordIndex.Builder index = recordIndex ? new TmRecordIndex.Builder() : null;
+            TmDecoder decoder;
+            TmMonitor.get().track(counters);
+            try {
+                decoder = TmDecoder.decodeFile(tmFile, index == null
+                        ? TmRecordListener.of(counters, stats)
+                        : TmRecordListener.of(counters, stats, index));
+            } finally {
+                TmMonitor.get().finish(counters);
+            }
+            TmMonitor.get().filesLoaded(1);
+            result.bytes = decoder.getBytesRead();
+            if (index != null) {
+                index.build().write(tmFile);
+            }
+            result.counters = counters;
+            result.stats = stats;
+            if (exportDir != null) {
+                String name = Paths.get(tmFile).getFileName().toString();
+                int dot = name.lastIndexOf('.');
+                Path target = exportDir.resolve((dot > 0 ? name.substring(0, dot) : name) + format.getSuffix());
+                TmExporter exporter = new TmExporter(format);
+                exporter.setParallelism(exportThreads);
+                exporter.setTimeRange(from, to);
+                exporter.setParameters(parameters);
+                result.exportFile = target.toString();
+                result.exportBytes = exporter.exportFile(tmFile, metadata, target);
+            }
+        } catch (Exception e) {
+            result.error = e.toString();
+        }
+        result.millis = (System.nanoTime() - start) / 1_000_000;
+        return result;
+    }
+
+    private class FileResult {
+        final String file;
+        long bytes;
+        TmCounters counters;
+        TmParamStats stats;
+        String exportFile;
+        long exportBytes;
+        long millis;
+        String error;
+
+        FileResult(String file) {
+            this.file = file;
+        }
+
+        String toJson(TmMetadata metadata) {
+            StringBuilder json = new StringBuilder("{\"file\":");
+            quote(json, file);
+            if (error != null) {
+                string(json, "error", error);
+                field(json, "millis", millis);
+                return json.append('}').toString();
+            }
+            field(json, "bytes", bytes);
+            appendCounters(json, counters);
+            field(json, "params", stats.getParamCount());
+            long first = Long.MAX_VALUE;
+            long last = Long.MIN_VALUE;
+            int[] numbers = stats.getParamNumbers();
+            for (int number : numbers) {
+                TmParamStats.Summary summary = stats.get(number);
+                first = Math.min(first, summary.getFirstTime());
+                last = Math.max(last, summary.getLastTime());
+            }
+            if (numbers.length > 0) {
+                field(json, "firstTime", first);
+                field(json, "lastTime", last);
+            }
+            if (exportFile != null) {
+                string(json, "exportFile", exportFile);
+                field(json, "exportBytes", exportBytes);
+            }
+            field(json, "millis", millis);
+            if (paramStats) {
+                json.append(",\"parameters\":[");
+                for (int i = 0; i < numbers.length; i++) {
+                    TmParamStats.Summary summary = stats.get(numbers[i]);
+                    json.append(i > 0 ? ",{" : "{");
+                    json.append("\"number\":").append(summary.getParamNumber());
+                    string(json, "name", metadata.paramName(summary.getParamNumber()));
+                    field(json, "count", summary.getCount());
+                    field(json, "values", summary.getValueCount());
+                    field(json, "min", summary.getMin());
+                    field(json, "max", summary.getMax());
+                    field(json, "mean", summary.getMean());
+                    field(json, "stdDev", summary.getStdDev());
+                    field(json, "firstTime", summary.getFirstTime());
+                    field(json, "lastTime", summary.getLastTime());
+                    field(json, "maxInterval", summary.getMaxInterval());
+                    field(json, "gaps", summary.getGaps());
+                    field(json, "backward", summary.getBackward());
+                    json.append(",\"attributes\":").append(Arrays.toString(summary.getAttributeCounts()).replace(" ", ""));
+                    json.append('}');
+                }
+                json.append(']');
+            }
+            return json.append('}').toString();
+        }
+    }
+
+    // ---------- JSON ----------
+
+    private static void appendCounters(StringBuilder json, TmCounters counters) {
+        field(json, "records", counters.getTotalRecords());
+        field(json, "service", counters.getServiceRecords());
+        field(json, "useful", counters.getUsefulRecords());
+        field(json, "unknown", counters.getUnknownRecords());
+        long[] types = counters.getTypeCounts();
+        field(json, "long", types[TmFormat.TYPE_LONG]);
+        field(json, "double", types[TmFormat.TYPE_DOUBLE]);
+        field(json, "code", types[TmFormat.TYPE_CODE]);
+        field(json, "point", types[TmFormat.TYPE_POINT]);
+    }
+
+    private static void field(StringBuilder json, String name, long value) {
+        json.append(",\"").append(name).append("\":").append(value);
+    }
+
+    /** NaN и бесконечности в JSON не допускаются - вместо них null */
+    private static void field(StringBuilder json, String name, double value) {
+        json.append(",\"").append(name).append("\":");
+        if (Double.isFinite(value)) {
+            json.append(value);
+        } else {
+            json.append("null");
+        }
+    }
+
+    private static void string(StringBuilder json, String name, String value) {
+        json.append(",\"").append(name).append("\":");
+        quote(json, value);
+    }
+
+    private static void quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,233 @@
+package telemetry.finalstage;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+
+/**
+ * График числовых значений одного параметра.
+ * Каждый пиксель по горизонтали - столбец TmSeriesPyramid: вертикальная линия от минимума
+ * до максимума и ломаная средних, поэтому отрисовка не зависит от количества записей.
+ *
+ * Колесо мыши - масштаб относительно точки под курсором, перетаскивание - сдвиг,
+ * двойной щелчок - весь интервал.
+ */
+public class TmChartPanel extends JPanel {
+    private static final int LEFT = 80;
+    private static final int RIGHT = 12;
+    private static final int TOP = 20;
+    private static final int BOTTOM = 24;
+    // Наименьший показываемый интервал, мс
+    private static final long MIN_SPAN = 10;
+    private static final double ZOOM_STEP = 1.25;
+
+    private static final Color ENVELOPE_COLOR = new Color(160, 190, 230);
+    private static final Color AVERAGE_COLOR = new Color(20, 60, 150);
+
+    private TmSeries series;
+    // Интервал фильтра (границы прокрутки) и показанный интервал
+    private long rangeFrom;
+    private long rangeTo;
+    private boolean openEnd;
+    private long viewFrom;
+    private long viewTo;
+
+    private int dragX = -1;
+    private long dragFrom;
+    private long dragTo;
+
+    public TmChartPanel() {
+        setBackground(Color.WHITE);
+        setPreferredSize(new Dimension(600, 300));
+
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                zoom(e.getX(), e.getWheelRotation() > 0 ? ZOOM_STEP : 1 / ZOOM_STEP);
+            }
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                dragX = e.getX();
+                dragFrom = viewFrom;
+                dragTo = viewTo;
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (series != null && dragX >= 0) {
+                    long shift = (long) ((double) (dragX - e.getX()) * (dragTo - dragFrom) / plotWidth());
+                    setView(dragFrom + shift, dragTo + shift);
+                }
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                dragX = -1;
+            }
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2 && series != null) {
+                    setView(rangeFrom, rangeTo);
+                }
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        addMouseWheelListener(mouse);
+    }
+
+    /**
+     * Показывает серию в интервале времени (Long.MIN_VALUE / Long.MAX_VALUE - без границы).
+     * Серия должна быть упорядочена по времени. Уровни прореживания строятся вне потока событий
+     * (getPyramid().update()); отрисовка их не строит и, пока их нет, идёт по отдельным записям.
+     */
+    public void show(TmSeries series, long from, long to) {
+        this.series = series;
+        openEnd = to == Long.MAX_VALUE;
+        int first = series.lowerBound(from);
+        int last = series.upperBound(to);
+        if (first < last) {
+            rangeFrom = Math.max(from, series.getTime(first));
+            rangeTo = Math.min(to, series.getTime(last - 1));
+        } else {
+            rangeFrom = from == Long.MIN_VALUE ? 0 : from;
+            rangeTo = openEnd ? rangeFrom : to;
+        }
+        viewFrom = rangeFrom;
+        viewTo = rangeTo;
+        repaint();
+    }
+
+    /** Показанная серия или null */
+    public TmSeries getSeries() {
+        return series;
+    }
+
+    public void clear() {
+        series = null;
+        repaint();
+    }
+
+    /**
+     * После новых записей: при открытом конце интервала граница сдвигается к последней записи,
+     * а показанный до конца интервал продолжает показывать конец
+     */
+    public void refresh() {
+        if (series == null) {
+            return;
+        }
+        if (openEnd && series.size() > 0) {
+            long last = series.getTime(series.size() - 1);
+            if (last > rangeTo) {
+                if (viewTo == rangeTo) {
+                    viewFrom += last - rangeTo;
+                    viewTo = last;
+                }
+                rangeTo = last;
+            }
+        }
+        repaint();
+    }
+
+    private void zoom(int x, double factor) {
+        if (series == null) {
+            return;
+        }
+        double position = Math.max(0, Math.min(1, (double) (x - LEFT) / plotWidth()));
+        long center = viewFrom + (long) ((viewTo - viewFrom) * position);
+        long span = Math.max(MIN_SPAN, (long) ((viewTo - viewFrom) * factor));
+        long from = center - (long) (span * position);
+        setView(from, from + span);
+    }
+
+    /** Показанный интервал остаётся внутри интервала фильтра */
+    private void setView(long from, long to) {
+        long span = Math.min(to - from, rangeTo - rangeFrom);
+        if (from < rangeFrom) {
+            from = rangeFrom;
+        }
+        if (from + span > rangeTo) {
+            from = rangeTo - span;
+        }
+        viewFrom = from;
+        viewTo = from + span;
+        repaint();
+    }
+
+    private int plotWidth() {
+        return Math.max(1, getWidth() - LEFT - RIGHT);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Graphics2D g2 = (Graphics2D) g;
+        int width = plotWidth();
+        int height = Math.max(1, getHeight() - TOP - BOTTOM);
+        FontMetrics metrics = g2.getFontMetrics();
+
+        g2.setColor(Color.GRAY);
+        g2.drawRect(LEFT, TOP, width, height);
+        if (series == null) {
+            g2.drawString("Выберите параметр", LEFT + 10, TOP + 20);
+            return;
+        }
+
+        TmSeriesPyramid.Envelope envelope = series.getPyramid().query(viewFrom, viewTo, width);
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < envelope.getColumns(); c++) {
+            if (envelope.getCount(c) > 0) {
+                min = Math.min(min, envelope.getMin(c));
+                max = Math.max(max, envelope.getMax(c));
+            }
+        }
+        g2.setColor(Color.DARK_GRAY);
+        g2.drawString(series.getName() + ", записей: " + envelope.getRecords(), LEFT, TOP - 6);
+        g2.drawString(TmDat.formatTime(viewFrom), LEFT, TOP + height + metrics.getAscent() + 4);
+        String end = TmDat.formatTime(viewTo);
+        g2.drawString(end, LEFT + width - metrics.stringWidth(end), TOP + height + metrics.getAscent() + 4);
+        if (min > max) {
+            g2.drawString("Нет числовых значений в интервале", LEFT + 10, TOP + 20);
+            return;
+        }
+        if (min == max) {
+            min -= 1;
+            max += 1;
+        }
+        g2.drawString(formatValue(max), 4, TOP + metrics.getAscent());
+        g2.drawString(formatValue(min), 4, TOP + height);
+
+        // Столбцы выборки - по записям, а ось - по показанному интервалу
+        double scaleX = (double) width / (viewTo - viewFrom + 1);
+        double scaleY = height / (max - min);
+        int previousX = -1;
+        int previousY = 0;
+        for (int c = 0; c < envelope.getColumns(); c++) {
+            if (envelope.getCount(c) == 0) {
+                previousX = -1;
+                continue;
+            }
+            int x = LEFT + (int) ((envelope.getColumnTime(c) - viewFrom) * scaleX);
+            int yMin = TOP + height - (int) ((envelope.getMin(c) - min) * scaleY);
+            int yMax = TOP + height - (int) ((envelope.getMax(c) - min) * scaleY);
+            int yAverage = TOP + height - (int) ((envelope.getAverage(c) - min) * scaleY);
+            g2.setColor(ENVELOPE_COLOR);
+            g2.drawLine(x, yMin, x, yMax);
+            if (previousX >= 0) {
+                g2.setColor(AVERAGE_COLOR);
+                g2.drawLine(previousX, previousY, x, yAverage);
+            }
+            previousX = x;
+            previousY = yAverage;
+        }
+    }
+
+    private static String formatValue(double value) {
+        return String.format("%.6g", value);
+    }
+}
@@ -3,6 +3,7 @@ package telemetry.finalstage;
 public class TmCode extends TmDat {
     private int codeLength; // длина кода в битах (байт 9)
     private int codeValue;  // 32-разрядное целое (код)
+    private String text;    // текст кода из словаря (null, если нет)
 
     public int getCodeLength() { return codeLength; }
     public void setCodeLength(int codeLength) { this.codeLength = codeLength; }
@@ -10,8 +11,14 @@ public class TmCode extends TmDat {
     public int getCodeValue() { return codeValue; }
     public void setCodeValue(int codeValue) { this.codeValue = codeValue; }
 
+    public String getText() { return text; }
+    public void setText(String text) { this.text = text; }
+
     @Override
     public String getValueAsString() {
+        if (text != null) {
+            return String.format("Code(len=%d): %d (%s) %s", codeLength, codeValue, text, dimension);
+        }
         return String.format("Code(len=%d): %d %s", codeLength, codeValue, dimension);
     }
 }
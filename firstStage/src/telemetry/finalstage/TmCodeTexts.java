@@ -0,0 +1,128 @@
+package telemetry.finalstage;
+
+import java.util.Arrays;
+
+/**
+ * Текстовые значения кодов одного параметра (Textes/Text в словаре): код -> строка.
+ * Таблица строится один раз при загрузке словаря и дальше не меняется, поэтому ей можно
+ * пользоваться из нескольких потоков.
+ *
+ * Обычно коды идут подряд с нуля, и тогда строка берётся из массива прямо по коду.
+ * Для разреженных кодов (например, битовых масок) - открытая адресация по степени двойки
+ * с мультипликативным хешем; таблица заполнена не больше чем наполовину, так что поиск
+ * почти всегда заканчивается на первой ячейке.
+ *
+ * slot(code) - номер ячейки кода; по нему можно хранить свои данные (например, уже
+ * закодированный текст), параллельные ячейкам таблицы.
+ */
+public final class TmCodeTexts {
+    // Плотный массив допускается, если в нём не больше DENSE_FACTOR ячеек на одно значение
+    private static final int DENSE_FACTOR = 4;
+    private static final int DENSE_MIN = 64;
+    private static final int HASH_MULTIPLIER = 0x9E3779B9;
+
+    private final String[] texts;
+    // Коды ячеек; null - плотный массив, ячейка и есть код
+    private final int[] codes;
+    private final int shift;
+    private final int size;
+
+    private TmCodeTexts(String[] texts, int[] codes, int shift, int size) {
+        this.texts = texts;
+        this.codes = codes;
+        this.shift = shift;
+        this.size = size;
+    }
+
+    /**
+     * @param codes различные коды
+     * @param texts строки в том же порядке
+     */
+    public static TmCodeTexts of(int[] codes, String[] texts) {
+        int n = codes.length;
+        int max = -1;
+        boolean negative = false;
+        for (int code : codes) {
+            max = Math.max(max, code);
+            negative |= code < 0;
+        }
+        if (!negative && max < Math.max(DENSE_MIN, n * DENSE_FACTOR)) {
+            String[] dense = new String[max + 1];
+            for (int i = 0; i < n; i++) {
+                dense[codes[i]] = texts[i];
+            }
+            return new TmCodeTexts(dense, null, 0, n);
+        }
+
+        int bits = 1;
+        while ((1 << bits) < n * 2) {
+            bits++;
+        }
+        String[] table = new String[1 << bits];
+        int[] keys = new int[1 << bits];
+        TmCodeTexts result = new TmCodeTexts(table, keys, 32 - bits, n);
+        int mask = table.length - 1;
+        for (int i = 0; i < n; i++) {
+            int slot = result.home(codes[i]);
+            while (table[slot] != null && keys[slot] != codes[i]) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = texts[i];
+            keys[slot] = codes[i];
+        }
+        return result;
+    }
+
+    private int home(int code) {
+        return (code * HASH_MULTIPLIER) >>> shift;
+    }
+
+    /** Ячейка кода или -1, если у кода нет текста */
+    public int slot(int code) {
+        String[] t = texts;
+        if (codes == null) {
+            return code >= 0 && code < t.length && t[code] != null ? code : -1;
+        }
+        int mask = t.length - 1;
+        for (int slot = home(code); t[slot] != null; slot = (slot + 1) & mask) {
+            if (codes[slot] == code) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /** Текст кода или null */
+    public String get(int code) {
+        int slot = slot(code);
+        return slot >= 0 ? texts[slot] : null;
+    }
+
+    /** Количество ячеек (для массивов, параллельных таблице) */
+    public int getSlotCount() {
+        return texts.length;
+    }
+
+    /** Текст в ячейке */
+    public String getText(int slot) {
+        return texts[slot];
+    }
+
+    /** Количество кодов с текстом */
+    public int size() {
+        return size;
+    }
+
+    /** Все коды по возрастанию */
+    public int[] getCodes() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int slot = 0; slot < texts.length; slot++) {
+            if (texts[slot] != null) {
+                result[n++] = codes == null ? slot : codes[slot];
+            }
+        }
+        Arrays.sort(result);
+        return result;
+    }
+}
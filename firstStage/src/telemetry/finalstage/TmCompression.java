@@ -0,0 +1,246 @@
+package telemetry.finalstage;
+
+import java.util.Arrays;
+
+/**
+ * Примитивы сжатия для CompressedTmSeries: переменная длина целых (varint, по 7 бит в байте),
+ * zig-zag для знаковых разностей и XOR-кодирование чисел double (как в Gorilla, Facebook 2015).
+ *
+ * XOR-кодирование: первое значение пишется целиком (64 бита), каждое следующее - как XOR
+ * с предыдущим. Совпадающее значение - один бит 0. Иначе бит 1 и значащие разряды XOR:
+ * если они помещаются в окно предыдущего значения (те же или больше нулей слева и справа) -
+ * бит 0 и разряды окна, иначе бит 1, 6 бит числа нулей слева, 6 бит длины (64 пишется как 0)
+ * и сами разряды.
+ */
+final class TmCompression {
+
+    private TmCompression() {
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Растущий массив байт с записью varint */
+    static final class ByteWriter {
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+
+        void write(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        /** Беззнаковое целое, по 7 бит в байте, младшие первыми */
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeSigned(long value) {
+            writeVarLong(zigZag(value));
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /** Чтение varint из массива байт */
+    static final class ByteReader {
+        private final byte[] bytes;
+        private int position;
+
+        ByteReader(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        int read() {
+            return bytes[position++] & 0xFF;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                int b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        long readSigned() {
+            return unZigZag(readVarLong());
+        }
+
+        int position() {
+            return position;
+        }
+    }
+
+    /** Запись битов подряд, старшие первыми, в ByteWriter */
+    static final class BitWriter {
+        private final ByteWriter out;
+        private long buffer = 0;   // неполный байт в младших разрядах
+        private int count = 0;     // сколько в нём бит
+
+        BitWriter(ByteWriter out) {
+            this.out = out;
+        }
+
+        /** Младшие bits разрядов value (bits от 0 до 64) */
+        void writeBits(long value, int bits) {
+            while (bits > 0) {
+                int take = Math.min(bits, 8 - count);
+                long chunk = (value >>> (bits - take)) & ((1L << take) - 1);
+                buffer = (buffer << take) | chunk;
+                count += take;
+                bits -= take;
+                if (count == 8) {
+                    out.write((int) buffer);
+                    buffer = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        void writeBit(boolean bit) {
+            writeBits(bit ? 1 : 0, 1);
+        }
+
+        /** Дописывает неполный байт нулями */
+        void flush() {
+            if (count > 0) {
+                writeBits(0, 8 - count);
+            }
+        }
+    }
+
+    /** Чтение битов, записанных BitWriter */
+    static final class BitReader {
+        private final byte[] bytes;
+        private int position;      // следующий байт
+        private int bit = 8;       // следующий бит текущего байта, 8 - байт прочитан
+        private int current;
+
+        BitReader(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        long readBits(int bits) {
+            long value = 0;
+            while (bits > 0) {
+                if (bit == 8) {
+                    current = bytes[position++] & 0xFF;
+                    bit = 0;
+                }
+                int take = Math.min(bits, 8 - bit);
+                int chunk = (current >>> (8 - bit - take)) & ((1 << take) - 1);
+                value = (value << take) | chunk;
+                bit += take;
+                bits -= take;
+            }
+            return value;
+        }
+
+        boolean readBit() {
+            return readBits(1) != 0;
+        }
+    }
+
+    /**
+     * XOR-кодирование последовательности double (разряды сравниваются побитно, поэтому
+     * NaN и -0.0 сохраняются как есть)
+     */
+    static final class DoubleEncoder {
+        private final BitWriter out;
+        private long previous;
+        private int leading = -1;  // окно значащих разрядов предыдущего XOR; -1 - окна ещё нет
+        private int trailing;
+        private boolean first = true;
+
+        DoubleEncoder(BitWriter out) {
+            this.out = out;
+        }
+
+        void write(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            if (first) {
+                out.writeBits(bits, 64);
+                previous = bits;
+                first = false;
+                return;
+            }
+            long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                out.writeBit(false);
+                return;
+            }
+            out.writeBit(true);
+            int lead = Math.min(Long.numberOfLeadingZeros(xor), 63);
+            int trail = Long.numberOfTrailingZeros(xor);
+            if (leading >= 0 && lead >= leading && trail >= trailing) {
+                out.writeBit(false);
+                out.writeBits(xor >>> trailing, 64 - leading - trailing);
+            } else {
+                out.writeBit(true);
+                int length = 64 - lead - trail;
+                out.writeBits(lead, 6);
+                out.writeBits(length & 63, 6);
+                out.writeBits(xor >>> trail, length);
+                leading = lead;
+                trailing = trail;
+            }
+        }
+    }
+
+    /** Чтение последовательности, записанной DoubleEncoder */
+    static final class DoubleDecoder {
+        private final BitReader in;
+        private long previous;
+        private int leading;
+        private int trailing;
+        private boolean first = true;
+
+        DoubleDecoder(BitReader in) {
+            this.in = in;
+        }
+
+        double read() {
+            if (first) {
+                previous = in.readBits(64);
+                first = false;
+            } else if (in.readBit()) {
+                if (in.readBit()) {
+                    leading = (int) in.readBits(6);
+                    int length = (int) in.readBits(6);
+                    if (length == 0) {
+                        length = 64;
+                    }
+                    trailing = 64 - leading - length;
+                }
+                previous ^= in.readBits(64 - leading - trailing) << trailing;
+            }
+            return Double.longBitsToDouble(previous);
+        }
+    }
+}
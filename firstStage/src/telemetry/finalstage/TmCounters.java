@@ -0,0 +1,136 @@
+package telemetry.finalstage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Общая статистика по ТМ-файлу. Считается по ходу разбора, сами записи не сохраняются.
+ * Счётчики - long: суммы по многим файлам (TmBatch, TmMonitor) и файлы больше 32 ГБ
+ * содержат больше 2^31 записей.
+ */
+public class TmCounters implements TmRecordListener {
+    private long totalRecords = 0;
+    private long serviceRecords = 0;
+    private long usefulRecords = 0;
+    private long unknownRecords = 0;
+    private final long[] typeCounts = new long[4];
+
+    private long pointLess4 = 0;
+    private long pointGreater4 = 0;
+    private long codeLess8 = 0;
+    private long codeGreater8 = 0;
+
+    @Override
+    public void onStart() {
+        // Первый заголовок (32 байта) - служебная запись "начало сеанса",
+        // она учитывается отдельно от служебных записей внутри заголовка
+        serviceRecords++;
+        totalRecords++;
+    }
+
+    @Override
+    public void onServiceRecord(TmRecordView record) {
+        serviceRecords++;
+        totalRecords++;
+    }
+
+    @Override
+    public void onRecord(TmRecordView record) {
+        totalRecords++;
+        int type = record.getValueType();
+        switch (type) {
+            case TmFormat.TYPE_LONG:
+            case TmFormat.TYPE_DOUBLE:
+                break;
+            case TmFormat.TYPE_CODE:
+                if (record.getCodeLength() < 8) {
+                    codeLess8++;
+                } else {
+                    codeGreater8++;
+                }
+                break;
+            case TmFormat.TYPE_POINT:
+                if (record.getPointLength() < 4) {
+                    pointLess4++;
+                } else {
+                    pointGreater4++;
+                }
+                break;
+            default:
+                unknownRecords++;
+                return;
+        }
+        typeCounts[type]++;
+        usefulRecords++;
+    }
+
+    /**
+     * Прибавляет счётчики другой части того же файла (или другого файла)
+     */
+    public void add(TmCounters other) {
+        totalRecords += other.totalRecords;
+        serviceRecords += other.serviceRecords;
+        usefulRecords += other.usefulRecords;
+        unknownRecords += other.unknownRecords;
+        for (int i = 0; i < typeCounts.length; i++) {
+            typeCounts[i] += other.typeCounts[i];
+        }
+        pointLess4 += other.pointLess4;
+        pointGreater4 += other.pointGreater4;
+        codeLess8 += other.codeLess8;
+        codeGreater8 += other.codeGreater8;
+    }
+
+    /** Обнуляет все счётчики */
+    void reset() {
+        totalRecords = 0;
+        serviceRecords = 0;
+        usefulRecords = 0;
+        unknownRecords = 0;
+        Arrays.fill(typeCounts, 0);
+        pointLess4 = 0;
+        pointGreater4 = 0;
+        codeLess8 = 0;
+        codeGreater8 = 0;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeLong(totalRecords);
+        out.writeLong(serviceRecords);
+        out.writeLong(usefulRecords);
+        out.writeLong(unknownRecords);
+        for (long count : typeCounts) {
+            out.writeLong(count);
+        }
+        out.writeLong(pointLess4);
+        out.writeLong(pointGreater4);
+        out.writeLong(codeLess8);
+        out.writeLong(codeGreater8);
+    }
+
+    void read(DataInput in) throws IOException {
+        totalRecords = in.readLong();
+        serviceRecords = in.readLong();
+        usefulRecords = in.readLong();
+        unknownRecords = in.readLong();
+        for (int i = 0; i < typeCounts.length; i++) {
+            typeCounts[i] = in.readLong();
+        }
+        pointLess4 = in.readLong();
+        pointGreater4 = in.readLong();
+        codeLess8 = in.readLong();
+        codeGreater8 = in.readLong();
+    }
+
+    public long getTotalRecords() { return totalRecords; }
+    public long getServiceRecords() { return serviceRecords; }
+    public long getUsefulRecords() { return usefulRecords; }
+    public long getUnknownRecords() { return unknownRecords; }
+    public long[] getTypeCounts() { return typeCounts; }
+    public long getPointLess4() { return pointLess4; }
+    public long getPointGreater4() { return pointGreater4; }
+    public long getCodeLess8() { return codeLess8; }
+    public long getCodeGreater8() { return codeGreater8; }
+}
@@ -1,10 +1,16 @@
 package telemetry.finalstage;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * Базовый класс для всех телеметрических записей.
  * Содержит общие поля и методы, включая сравнение для сортировки.
  */
 public abstract class TmDat implements Comparable<TmDat> {
+    // ЧЧ:ММ:СС[,ммм]; часов не больше шести цифр, чтобы результат не переполнился
+    private static final Pattern TIME_PATTERN = Pattern.compile("(\\d{1,6}):(\\d{1,2}):(\\d{1,2})(?:[,.](\\d{1,3}))?");
+
     protected int number;          // номер параметра (2 байта)
     protected String name;         // имя параметра (из XML)
     protected long time;           // время в миллисекундах от начала суток
@@ -43,6 +49,34 @@ public abstract class TmDat implements Comparable<TmDat> {
         return String.format("%02d:%02d:%02d,%03d", hours, minutes, seconds, ms);
     }
 
+    /**
+     * Разбирает время вида ЧЧ:ММ:СС или ЧЧ:ММ:СС,мс (обратно formatTime).
+     * Минуты и секунды - от 0 до 59; дробная часть - доли секунды, от одной до трёх цифр
+     * ("12:00:00,5" - 500 мс). Часы не ограничены сутками: formatTime их тоже не ограничивает.
+     * @throws IllegalArgumentException если строка не в этом формате или поле вне диапазона
+     */
+    public static long parseTime(String text) {
+        Matcher m = TIME_PATTERN.matcher(text.trim());
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Время должно быть в виде ЧЧ:ММ:СС,мс: " + text);
+        }
+        long hours = Long.parseLong(m.group(1));
+        int minutes = Integer.parseInt(m.group(2));
+        int seconds = Integer.parseInt(m.group(3));
+        if (minutes > 59 || seconds > 59) {
+            throw new IllegalArgumentException("Минуты и секунды должны быть от 0 до 59: " + text);
+        }
+        int ms = 0;
+        if (m.group(4) != null) {
+            String fraction = m.group(4);
+            ms = Integer.parseInt(fraction);
+            for (int i = fraction.length(); i < 3; i++) {
+                ms *= 10;
+            }
+        }
+        return hours * 3_600_000 + minutes * 60_000L + seconds * 1000L + ms;
+    }
+
     /** Сравнение сначала по имени, потом по времени (чтобы избежать потери записей). */
     @Override
     public int compareTo(TmDat other) {
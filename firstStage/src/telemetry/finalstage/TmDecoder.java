@@ -0,0 +1,361 @@
+package telemetry.finalstage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Потоковый разбор ТМ-файла. Записи передаются получателю (TmRecordListener) по мере чтения,
+ * декодер сам ничего не накапливает: в памяти только блок чтения.
+ *
+ * Декодер можно продолжать: next возвращает false, когда полные записи в канале кончились,
+ * а незавершённая запись остаётся в буфере до следующего вызова.
+ */
+public class TmDecoder {
+    // Размер блока чтения; вмещает любую запись, включая Point максимальной длины
+    private static final int BLOCK_SIZE = 1 << 20;
+    // Через сколько записей отображённого файла сообщать о ходе разбора
+    private static final int PROGRESS_RECORDS = 1 << 16;
+
+    // Буфер всегда в режиме чтения: от position до limit - непрочитанные байты
+    private final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE).flip();
+    private final TmRecordView view = new TmRecordView();
+
+    private long position = 0;     // смещение в файле байта buffer.position()
+    private long bytesRead = 0;
+    private long readTime = 0;     // время внутри channel.read, нс
+    private long index = 0;        // номер следующей записи
+    private int length = 0;        // длина текущей записи
+
+    private TmProgress progress = TmProgress.NONE;
+    private long progressTotal = 0;
+
+    public TmDecoder() {
+    }
+
+    /**
+     * Декодер, продолжающий разбор с середины файла
+     * @param position смещение в файле, с которого канал будет читаться
+     * @param index номер записи, начинающейся по этому смещению
+     */
+    public TmDecoder(long position, long index) {
+        this.position = position;
+        this.index = index;
+    }
+
+    /**
+     * Переводит декодер на другое место файла; непрочитанные данные буфера отбрасываются.
+     * Канал должен читаться дальше с того же смещения (например, после FileChannel.position).
+     * @param position смещение в файле начала записи
+     * @param index номер этой записи
+     */
+    public void seek(long position, long index) {
+        buffer.clear().flip();
+        this.position = position;
+        this.index = index;
+        this.length = 0;
+    }
+
+    /**
+     * Включает сообщения о ходе разбора: после каждого прочитанного блока передаётся
+     * количество прочитанных байт и проверяется, не отменён ли разбор
+     * @param total размер канала в байтах
+     */
+    public void setProgress(TmProgress progress, long total) {
+        this.progress = progress;
+        this.progressTotal = total;
+    }
+
+    /**
+     * Переходит к следующей полной записи, при необходимости дочитывая канал
+     * @return false, если в канале больше нет полных записей
+     * @throws IOException при ошибках чтения
+     * @throws java.util.concurrent.CancellationException если разбор отменён (см. setProgress)
+     */
+    public boolean next(ReadableByteChannel channel) throws IOException {
+        buffer.position(buffer.position() + length);
+        position += length;
+        length = 0;
+        while (true) {
+            int off = buffer.position();
+            int recordLength = TmFormat.recordLength(buffer, off, buffer.limit());
+            if (recordLength >= 0 && off + recordLength <= buffer.limit()) {
+                view.reset(buffer, off, position, index++);
+                length = recordLength;
+                return true;
+            }
+            // Незавершённая запись переносится в начало буфера
+            buffer.compact();
+            long started = System.nanoTime();
+            int n = channel.read(buffer);
+            readTime += System.nanoTime() - started;
+            buffer.flip();
+            if (n == -1) {
+                return false;
+            }
+            bytesRead += n;
+            TmMonitor.get().addBytesRead(n);
+            progress.update(bytesRead, progressTotal);
+            progress.checkCancelled();
+        }
+    }
+
+    /**
+     * Текущая запись; действительна до следующего вызова next
+     */
+    public TmRecordView current() {
+        return view;
+    }
+
+    /**
+     * Передаёт получателю все полные записи канала
+     * @throws IOException при ошибках чтения
+     */
+    public void decode(ReadableByteChannel channel, TmRecordListener listener) throws IOException {
+        decode(channel, listener, Long.MAX_VALUE);
+    }
+
+    /**
+     * Передаёт получателю полные записи канала, пока они занимают меньше maxBytes байт
+     * (последняя переданная запись может выйти за предел)
+     * @return true, если разбор остановлен по пределу и в канале, возможно, есть ещё записи
+     * @throws IOException при ошибках чтения
+     */
+    public boolean decode(ReadableByteChannel channel, TmRecordListener listener, long maxBytes)
+            throws IOException {
+        long start = getPosition();
+        while (getPosition() - start < maxBytes) {
+            if (!next(channel)) {
+                return false;
+            }
+            dispatch(view, listener);
+        }
+        return true;
+    }
+
+    /** Сколько байт прочитано из канала */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /** Сколько времени (нс) декодер ждал чтения канала */
+    public long getReadTime() {
+        return readTime;
+    }
+
+    /** Смещение в файле первой ещё не разобранной записи */
+    public long getPosition() {
+        return position + length;
+    }
+
+    /** Смещение в файле, с которого канал должен читаться дальше (конец данных в буфере) */
+    public long getReadPosition() {
+        return position + buffer.remaining();
+    }
+
+    /** Номер следующей записи (количество разобранных записей, если разбор начат с начала файла) */
+    public long getRecordIndex() {
+        return index;
+    }
+
+    /**
+     * Разбирает ТМ-файл целиком: onStart, все записи, onEnd
+     * @return декодер, остановившийся в конце файла (позиция и количество записей)
+     * @throws IOException при ошибках чтения
+     */
+    public static TmDecoder decodeFile(String filename, TmRecordListener listener) throws IOException {
+        return decodeFile(filename, listener, TmProgress.NONE);
+    }
+
+    /**
+     * Разбирает ТМ-файл целиком, сообщая о ходе разбора (прочитано байт из размера файла)
+     * @throws java.util.concurrent.CancellationException если разбор отменён; onEnd тогда не вызывается
+     */
+    public static TmDecoder decodeFile(String filename, TmRecordListener listener, TmProgress progress)
+            throws IOException {
+        TmDecoder decoder = new TmDecoder();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            decoder.setProgress(progress, channel.size());
+            listener.onStart();
+            decoder.decode(channel, listener);
+        }
+        listener.onEnd(decoder.getBytesRead());
+        return decoder;
+    }
+
+    /**
+     * Разбирает отображённый ТМ-файл целиком: onStart, все записи, onEnd.
+     * Представления записей указывают прямо в отображение.
+     */
+    public static void decodeFile(MappedTmFile file, TmRecordListener listener) {
+        decodeFile(file, listener, TmProgress.NONE);
+    }
+
+    /**
+     * Разбирает отображённый ТМ-файл целиком, сообщая о ходе разбора (смещение из размера файла)
+     * @throws java.util.concurrent.CancellationException если разбор отменён; onEnd тогда не вызывается
+     */
+    public static void decodeFile(MappedTmFile file, TmRecordListener listener, TmProgress progress) {
+        listener.onStart();
+        decode(file, 0, file.getRecordCount(), listener, progress);
+        listener.onEnd(file.size());
+    }
+
+    /**
+     * Передаёт получателю записи отображённого файла с номерами [from, to), без onStart и onEnd
+     */
+    public static void decode(MappedTmFile file, long from, long to, TmRecordListener listener) {
+        decode(file, from, to, listener, TmProgress.NONE);
+    }
+
+    /**
+     * Передаёт получателю записи [from, to), каждые PROGRESS_RECORDS записей сообщая смещение
+     * и проверяя, не отменён ли разбор. Смещение ищется только для from, дальше записи идут подряд.
+     */
+    public static void decode(MappedTmFile file, long from, long to, TmRecordListener listener,
+                              TmProgress progress) {
+        to = Math.min(to, file.getRecordCount());
+        if (from >= to) {
+            return;
+        }
+        TmRecordView view = file.view();
+        long offset = file.getOffset(from);
+        // Прочитанные байты сообщаются в TmMonitor вместе с ходом разбора
+        long reported = offset;
+        for (long i = from; i < to; i++) {
+            if ((i - from) % PROGRESS_RECORDS == 0 && i > from) {
+                TmMonitor.get().addBytesRead(offset - reported);
+                reported = offset;
+                progress.update(offset, file.size());
+                progress.checkCancelled();
+            }
+            view.moveTo(offset, i);
+            int length = view.getLength();
+            dispatch(view, listener);
+            offset += length;
+        }
+        TmMonitor.get().addBytesRead(offset - reported);
+    }
+
+    /**
+     * Передаёт получателю записи ТМ-файла со временем от from до to включительно, без onStart и onEnd.
+     * Читаются только блоки списка записей, границы времени которых пересекают интервал:
+     * канал переводится на начало блока (FileChannel.position), остальное не читается.
+     * Записи передаются в порядке файла.
+     * @param index список записей этого файла (см. TmRecordIndex.read)
+     * @return сколько записей передано
+     * @throws IOException при ошибках чтения
+     */
+    public static long decodeTimeRange(String filename, TmRecordIndex index, long from, long to,
+                                      TmRecordListener listener) throws IOException {
+        long passed = 0;
+        TmDecoder decoder = new TmDecoder();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            int blocks = index.getBlockCount();
+            int block = 0;
+            while (block < blocks) {
+                if (!index.blockOverlaps(block, from, to)) {
+                    block++;
+                    continue;
+                }
+                // Подряд идущие подходящие блоки читаются за один переход
+                int last = block + 1;
+                while (last < blocks && index.blockOverlaps(last, from, to)) {
+                    last++;
+                }
+                long end = last < blocks ? index.getBlockRecord(last) : index.getRecordCount();
+                channel.position(index.getBlockOffset(block));
+                decoder.seek(index.getBlockOffset(block), index.getBlockRecord(block));
+                while (decoder.getRecordIndex() < end && decoder.next(channel)) {
+                    long time = decoder.view.getTime();
+                    if (time >= from && time <= to) {
+                        dispatch(decoder.view, listener);
+                        passed++;
+                    }
+                }
+                block = last;
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Передаёт получателю записи ТМ-файла с номерами [from, to), без onStart и onEnd.
+     * Чтение начинается с блока списка записей, в котором лежит запись from,
+     * так что перед ней разбирается не больше TmRecordIndex.STEP - 1 записей.
+     * @param index список записей этого файла (см. TmRecordIndex.read)
+     * @throws IOException при ошибках чтения
+     */
+    public static void decodeRecords(String filename, TmRecordIndex index, long from, long to,
+                                     TmRecordListener listener) throws IOException {
+        to = Math.min(to, index.getRecordCount());
+        if (from < 0 || from >= to) {
+            return;
+        }
+        int block = index.blockOf(from);
+        TmDecoder decoder = new TmDecoder(index.getBlockOffset(block), index.getBlockRecord(block));
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            channel.position(index.getBlockOffset(block));
+            while (decoder.getRecordIndex() < to && decoder.next(channel)) {
+                if (decoder.view.getIndex() >= from) {
+                    dispatch(decoder.view, listener);
+                }
+            }
+        }
+    }
+
+    private static void dispatch(TmRecordView record, TmRecordListener listener) {
+        if (record.isSystemMessage()) {
+            listener.onServiceRecord(record);
+        } else {
+            listener.onRecord(record);
+        }
+    }
+
+    /**
+     * Полезные записи ТМ-файла в виде потока. Объекты TmDat создаются по одному при чтении
+     * и ничем не удерживаются. Файл закрывается при закрытии потока, поэтому поток
+     * следует использовать в try-with-resources.
+     * Ошибки чтения передаются как UncheckedIOException.
+     * @throws IOException если файл не открывается
+     */
+    public static Stream<TmDat> stream(String filename, Dim dim, DatXML datXML) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        TmDecoder decoder = new TmDecoder();
+        TmMetadata metadata = new TmMetadata(dim, datXML);
+        Spliterator<TmDat> records = new Spliterators.AbstractSpliterator<TmDat>(
+                Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super TmDat> action) {
+                try {
+                    while (decoder.next(channel)) {
+                        TmRecordView r = decoder.current();
+                        if (!r.isSystemMessage()) {
+                            action.accept(metadata.toTmDat(r));
+                            return true;
+                        }
+                    }
+                    return false;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        return StreamSupport.stream(records, false).onClose(() -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,128 @@
+package telemetry.finalstage;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * События Java Flight Recorder для загрузки ТМ-файлов, словарей и действий интерфейса.
+ * Записываются, только когда запись JFR включена (например, -XX:StartFlightRecording или из JMC),
+ * иначе создание события почти ничего не стоит. Все события - в категории "Telemetry".
+ *
+ * Пример: java -XX:StartFlightRecording=filename=tm.jfr,settings=profile ...
+ * затем jfr print --events "telemetry.*" tm.jfr
+ */
+public final class TmEvents {
+
+    private TmEvents() {
+    }
+
+    /** Загрузка одного ТМ-файла (ReadTMI.load*) целиком */
+    @Name("telemetry.Load")
+    @Label("Загрузка ТМ-файла")
+    @Category("Telemetry")
+    @StackTrace(false)
+    public static class Load extends Event {
+        @Label("Файл")
+        public String file;
+
+        @Label("Способ")
+        @Description("load, mapped, parallel или files")
+        public String mode;
+
+        @Label("Байт")
+        @DataAmount
+        public long bytes;
+
+        @Label("Записей")
+        public long records;
+
+        @Label("Полезных записей")
+        public long usefulRecords;
+
+        @Label("Выделено памяти")
+        @Description("Выделено потоками разбора за время загрузки; -1, если JVM этого не считает")
+        @DataAmount
+        public long allocated;
+
+        @Label("Ожидание чтения")
+        @Description("Время внутри FileChannel.read (для отображённого файла - 0)")
+        @Timespan(Timespan.NANOSECONDS)
+        public long ioTime;
+    }
+
+    /**
+     * Этап загрузки: scan (поиск границ записей), decode (разбор и добавление в серии),
+     * merge (объединение порций и файлов), sort (упорядочение серий), index (сохранение списка записей)
+     */
+    @Name("telemetry.LoadPhase")
+    @Label("Этап загрузки")
+    @Category("Telemetry")
+    @StackTrace(false)
+    public static class Phase extends Event {
+        @Label("Файл")
+        public String file;
+
+        @Label("Этап")
+        public String phase;
+
+        @Label("Записей")
+        public long records;
+    }
+
+    /** Загрузка словаря: XML параметров, файла размерностей или их снимка */
+    @Name("telemetry.Dictionary")
+    @Label("Загрузка словаря")
+    @Category("Telemetry")
+    @StackTrace(false)
+    public static class Dictionary extends Event {
+        @Label("Файл")
+        public String file;
+
+        @Label("Вид")
+        @Description("xml, dim или snapshot")
+        public String kind;
+
+        @Label("Элементов")
+        public int entries;
+    }
+
+    /** Фоновое задание интерфейса (TmTaskRunner): загрузка, выборка, экспорт и т.п. */
+    @Name("telemetry.Task")
+    @Label("Задание интерфейса")
+    @Category("Telemetry")
+    @StackTrace(false)
+    public static class Task extends Event {
+        @Label("Ключ")
+        public String key;
+
+        @Label("Название")
+        public String title;
+
+        @Label("Ожидание в очереди")
+        @Timespan(Timespan.NANOSECONDS)
+        public long queueTime;
+
+        @Label("Итог")
+        @Description("ok, error или cancelled")
+        public String outcome;
+    }
+
+    /** Передача результата задания в интерфейс (в потоке событий): заполнение таблиц, графиков */
+    @Name("telemetry.UiUpdate")
+    @Label("Обновление интерфейса")
+    @Category("Telemetry")
+    @StackTrace(false)
+    public static class UiUpdate extends Event {
+        @Label("Ключ")
+        public String key;
+
+        @Label("Название")
+        public String title;
+    }
+}
@@ -0,0 +1,765 @@
+package telemetry.finalstage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Выгрузка записей сеанса в CSV или в двоичный столбцовый формат.
+ *
+ * Записи делятся на порции (до CHUNK_ROWS записей одной серии или подряд идущих записей файла),
+ * порции форматируются параллельно, а пишутся в файл по порядку. Каждая порция форматируется
+ * в байтовый буфер из общего набора: после записи в файл буфер возвращается в набор и служит
+ * следующей порции, поэтому в установившемся режиме выгрузка почти не создаёт объектов.
+ * Числа и время переводятся в текст вручную, без String.format.
+ *
+ * Источник - загруженное хранилище (exportStore, записи сгруппированы по сериям и упорядочены
+ * по времени) или ТМ-файл (exportFile, записи в порядке файла, без загрузки в хранилище).
+ *
+ * CSV: кодировка UTF-8, разделитель ';', первая строка - CSV_HEADER.
+ * Тип - Long, Double, Code, Point или код типа; значение Point - байты в шестнадцатеричном виде;
+ * text - текст кода из словаря (только для Code).
+ *
+ * Столбцовый формат (".tmcol"), все числа big-endian:
+ *   заголовок: int 0x544D434C ("TMCL"), int версия, long смещение оглавления;
+ *   группы строк: int количество строк n, затем столбцы по n значений -
+ *     long время, short номер параметра, byte код размерности, byte признак, byte тип,
+ *     byte длина кода, long значение (Long и Code - целое, Double - биты double),
+ *     int длина данных Point, затем данные Point всех строк подряд;
+ *   оглавление: int количество групп, для каждой long смещение и int количество строк;
+ *     int количество параметров, для каждого short номер и UTF имя;
+ *     int количество размерностей, для каждой byte код и UTF строка;
+ *     int количество параметров с текстами кодов, для каждого short номер, int количество кодов
+ *     и для каждого кода int код и UTF текст.
+ */
+public class TmExporter {
+
+    public enum Format {
+        CSV(".csv"),
+        COLUMNAR(".tmcol");
+
+        private final String suffix;
+
+        Format(String suffix) {
+            this.suffix = suffix;
+        }
+
+        /** Обычное расширение файла */
+        public String getSuffix() {
+            return suffix;
+        }
+    }
+
+    public static final String CSV_HEADER = "ms;time;number;name;type;value;code_length;dimension;attribute;text\n";
+
+    private static final int COLUMNAR_MAGIC = 0x544D434C; // "TMCL"
+    private static final int COLUMNAR_VERSION = 2;
+    private static final int COLUMNAR_HEADER = 16;
+    // Записей в одной порции (группе строк)
+    private static final int CHUNK_ROWS = 1 << 14;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final Format format;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    // Имена выгружаемых параметров (null - все)
+    private Set<String> parameters;
+    private TmProgress progress = TmProgress.NONE;
+
+    public TmExporter(Format format) {
+        this.format = format;
+    }
+
+    /** Количество потоков форматирования */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /** Выгружаются записи со временем от from до to включительно */
+    public void setTimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /** Выгружаемые параметры по именам; null - все */
+    public void setParameters(Collection<String> names) {
+        this.parameters = names == null ? null : new HashSet<>(names);
+    }
+
+    /** Куда сообщать о ходе выгрузки (записано строк из общего количества) и откуда ждать отмены */
+    public void setProgress(TmProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Выгружает серии хранилища; внутри серии записи идут по времени
+     * @return количество записанных байт
+     * @throws IOException при ошибках записи
+     */
+    public long exportStore(TmStore store, Path target) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        for (TmSeries series : store.getAllSeries()) {
+            if (parameters != null && !parameters.contains(series.getName())) {
+                continue;
+            }
+            int first = series.lowerBound(from);
+            int last = series.upperBound(to);
+            for (int start = first; start < last; start += CHUNK_ROWS) {
+                chunks.add(new SeriesChunk(series, start, Math.min(start + CHUNK_ROWS, last)));
+            }
+        }
+        return export(chunks, store.getMetadata(), target);
+    }
+
+    /**
+     * Выгружает полезные записи ТМ-файла в порядке файла, не загружая их в хранилище
+     * @return количество записанных байт
+     * @throws IOException при ошибках чтения или записи
+     */
+    public long exportFile(String tmFile, TmMetadata metadata, Path target) throws IOException {
+        MappedTmFile file = MappedTmFile.open(tmFile);
+        // Выбор параметра по номеру: 0 - ещё не проверен, 1 - выгружается, 2 - нет
+        byte[] selected = new byte[1 << 16];
+        List<Chunk> chunks = new ArrayList<>();
+        for (long start = 0; start < file.getRecordCount(); start += CHUNK_ROWS) {
+            chunks.add(new FileChunk(file, metadata, selected, start,
+                    Math.min(start + CHUNK_ROWS, file.getRecordCount())));
+        }
+        return export(chunks, metadata, target);
+    }
+
+    private long export(List<Chunk> chunks, TmMetadata metadata, Path target) throws IOException {
+        long totalRows = 0;
+        for (Chunk chunk : chunks) {
+            totalRows += chunk.size();
+        }
+        Path tmp = Paths.get(target + ".tmp");
+        int window = parallelism * 2;
+        BlockingQueue<RowWriter> writers = new ArrayBlockingQueue<>(window);
+        for (int i = 0; i < window; i++) {
+            writers.add(format == Format.CSV ? new CsvWriter(metadata) : new ColumnarWriter());
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "tm-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long position = 0;
+        boolean done = false;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (format == Format.CSV) {
+                position += writeFully(channel, ByteBuffer.wrap(CSV_HEADER.getBytes(StandardCharsets.UTF_8)));
+            } else {
+                position += writeFully(channel, ByteBuffer.allocate(COLUMNAR_HEADER));
+            }
+
+            // Порции форматируются не дальше window порций вперёд от записываемой
+            ArrayDeque<Future<RowWriter>> pending = new ArrayDeque<>();
+            int next = 0;
+            int written = 0;
+            long writtenRows = 0;
+            List<long[]> groups = new ArrayList<>();
+            BitSet numbers = new BitSet(1 << 16);
+            BitSet dimensions = new BitSet(256);
+            while (next < chunks.size() || !pending.isEmpty()) {
+                while (next < chunks.size() && pending.size() < window) {
+                    Chunk chunk = chunks.get(next++);
+                    RowWriter writer = writers.remove();
+                    pending.add(pool.submit(() -> {
+                        writer.reset();
+                        chunk.format(writer);
+                        writer.finish();
+                        return writer;
+                    }));
+                }
+                RowWriter writer = await(pending.remove());
+                if (writer.rows > 0) {
+                    if (format == Format.COLUMNAR) {
+                        groups.add(new long[]{position, writer.rows});
+                        numbers.or(writer.numbers);
+                        dimensions.or(writer.dimensions);
+                    }
+                    position += writeFully(channel, ByteBuffer.wrap(writer.out.bytes, 0, writer.out.length));
+                }
+                writers.add(writer);
+                writtenRows += chunks.get(written++).size();
+                progress.update(writtenRows, totalRows);
+                progress.checkCancelled();
+            }
+
+            if (format == Format.COLUMNAR) {
+                long footerOffset = position;
+                position += writeFully(channel, ByteBuffer.wrap(footer(groups, numbers, dimensions, metadata)));
+                ByteBuffer header = ByteBuffer.allocate(COLUMNAR_HEADER);
+                header.putInt(COLUMNAR_MAGIC).putInt(COLUMNAR_VERSION).putLong(footerOffset).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+            }
+            channel.force(false);
+            done = true;
+        } finally {
+            pool.shutdownNow();
+            if (!done) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return position;
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return length;
+    }
+
+    private static RowWriter await(Future<RowWriter> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Выгрузка прервана");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Оглавление столбцового файла: группы строк, имена параметров и строки размерностей
+     */
+    private static byte[] footer(List<long[]> groups, BitSet numbers, BitSet dimensions,
+                                 TmMetadata metadata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(groups.size());
+        for (long[] group : groups) {
+            out.writeLong(group[0]);
+            out.writeInt((int) group[1]);
+        }
+        out.writeInt(numbers.cardinality());
+        for (int n = numbers.nextSetBit(0); n >= 0; n = numbers.nextSetBit(n + 1)) {
+            out.writeShort(n);
+            out.writeUTF(metadata.paramName(n));
+        }
+        out.writeInt(dimensions.cardinality());
+        for (int d = dimensions.nextSetBit(0); d >= 0; d = dimensions.nextSetBit(d + 1)) {
+            out.writeByte(d);
+            out.writeUTF(metadata.dimensionName(d));
+        }
+        int withTexts = 0;
+        for (int n = numbers.nextSetBit(0); n >= 0; n = numbers.nextSetBit(n + 1)) {
+            if (metadata.codeTexts(n) != null) {
+                withTexts++;
+            }
+        }
+        out.writeInt(withTexts);
+        for (int n = numbers.nextSetBit(0); n >= 0; n = numbers.nextSetBit(n + 1)) {
+            TmCodeTexts texts = metadata.codeTexts(n);
+            if (texts != null) {
+                out.writeShort(n);
+                out.writeInt(texts.size());
+                for (int code : texts.getCodes()) {
+                    out.writeInt(code);
+                    out.writeUTF(texts.get(code));
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // ---------- Порции ----------
+
+    private abstract static class Chunk {
+        /** Сколько записей просматривает порция (для хода выгрузки) */
+        abstract int size();
+
+        abstract void format(RowWriter writer);
+    }
+
+    private static class SeriesChunk extends Chunk {
+        private final TmSeries series;
+        private final int first;
+        private final int last;
+
+        SeriesChunk(TmSeries series, int first, int last) {
+            this.series = series;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        int size() {
+            return last - first;
+        }
+
+        @Override
+        void format(RowWriter writer) {
+            TmSeries s = series;
+            for (int i = first; i < last; i++) {
+                int type = s.getValueType(i);
+                long value;
+                int codeLength = 0;
+                ByteBuffer point = null;
+                switch (type) {
+                    case TmFormat.TYPE_LONG:
+                        value = s.getIntValue(i);
+                        break;
+                    case TmFormat.TYPE_DOUBLE:
+                        value = Double.doubleToRawLongBits(s.getDoubleValue(i));
+                        break;
+                    case TmFormat.TYPE_CODE:
+                        value = s.getIntValue(i);
+                        codeLength = s.getCodeLength(i);
+                        break;
+                    case TmFormat.TYPE_POINT:
+                        value = 0;
+                        point = s.getPointData(i);
+                        break;
+                    default:
+                        value = 0;
+                        break;
+                }
+                writer.row(s.getNumber(i), s.getTime(i), s.getDimensionCode(i), s.getAttribute(i),
+                        type, value, codeLength, point);
+            }
+        }
+    }
+
+    private class FileChunk extends Chunk implements TmRecordListener {
+        private final MappedTmFile file;
+        private final TmMetadata metadata;
+        private final byte[] selected;
+        private final long first;
+        private final long last;
+        private RowWriter writer;
+
+        FileChunk(MappedTmFile file, TmMetadata metadata, byte[] selected, long first, long last) {
+            this.file = file;
+            this.metadata = metadata;
+            this.selected = selected;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        int size() {
+            return (int) (last - first);
+        }
+
+        @Override
+        void format(RowWriter writer) {
+            this.writer = writer;
+            TmDecoder.decode(file, first, last, this);
+            this.writer = null;
+        }
+
+        @Override
+        public void onRecord(TmRecordView record) {
+            long time = record.getTime();
+            int number = record.getParamNumber();
+            if (time < from || time > to || !isSelected(number)) {
+                return;
+            }
+            int type = record.getValueType();
+            long value;
+            int codeLength = 0;
+            ByteBuffer point = null;
+            switch (type) {
+                case TmFormat.TYPE_LONG:
+                    value = record.getIntValue();
+                    break;
+                case TmFormat.TYPE_DOUBLE:
+                    value = Double.doubleToRawLongBits(record.getDoubleValue());
+                    break;
+                case TmFormat.TYPE_CODE:
+                    value = record.getIntValue();
+                    codeLength = record.getCodeLength();
+                    break;
+                case TmFormat.TYPE_POINT:
+                    value = 0;
+                    point = record.getPointData();
+                    break;
+                default:
+                    value = 0;
+                    break;
+            }
+            writer.row(number, time, record.getDimensionCode(), record.getAttribute(),
+                    type, value, codeLength, point);
+        }
+
+        /** Гонка при первой проверке номера безопасна: оба потока запишут одно и то же */
+        private boolean isSelected(int number) {
+            if (parameters == null) {
+                return true;
+            }
+            byte state = selected[number];
+            if (state == 0) {
+                state = parameters.contains(metadata.paramName(number)) ? (byte) 1 : (byte) 2;
+                selected[number] = state;
+            }
+            return state == 1;
+        }
+    }
+
+    // ---------- Форматирование ----------
+
+    /** Растущий байтовый буфер; числа big-endian */
+    private static final class Bytes {
+        byte[] bytes = new byte[1 << 16];
+        int length;
+
+        void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        void put(byte b) {
+            ensure(1);
+            bytes[length++] = b;
+        }
+
+        void put(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+        }
+
+        void putShort(int v) {
+            ensure(2);
+            bytes[length++] = (byte) (v >>> 8);
+            bytes[length++] = (byte) v;
+        }
+
+        void putInt(int v) {
+            ensure(4);
+            bytes[length++] = (byte) (v >>> 24);
+            bytes[length++] = (byte) (v >>> 16);
+            bytes[length++] = (byte) (v >>> 8);
+            bytes[length++] = (byte) v;
+        }
+
+        void putLong(long v) {
+            putInt((int) (v >>> 32));
+            putInt((int) v);
+        }
+
+        /** Десятичная запись целого */
+        void putDecimal(long v) {
+            ensure(20);
+            if (v < 0) {
+                if (v == Long.MIN_VALUE) {
+                    put(Long.toString(v).getBytes(StandardCharsets.US_ASCII));
+                    return;
+                }
+                bytes[length++] = '-';
+                v = -v;
+            }
+            int start = length;
+            do {
+                bytes[length++] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v != 0);
+            for (int a = start, b = length - 1; a < b; a++, b--) {
+                byte t = bytes[a];
+                bytes[a] = bytes[b];
+                bytes[b] = t;
+            }
+        }
+
+        /** Не меньше width цифр, с ведущими нулями */
+        void putDigits(long v, int width) {
+            ensure(width);
+            long limit = 1;
+            for (int i = 1; i < width; i++) {
+                limit *= 10;
+            }
+            while (limit > 1 && v < limit) {
+                bytes[length++] = '0';
+                limit /= 10;
+            }
+            putDecimal(v);
+        }
+    }
+
+    /**
+     * Форматирует строки одной порции; объекты переиспользуются от порции к порции
+     */
+    private abstract static class RowWriter {
+        final Bytes out = new Bytes();
+        final BitSet numbers = new BitSet(1 << 16);
+        final BitSet dimensions = new BitSet(256);
+        int rows;
+
+        void reset() {
+            out.length = 0;
+            numbers.clear();
+            dimensions.clear();
+            rows = 0;
+        }
+
+        /** Строка: value - целое (Long, Code) или биты double (Double) */
+        abstract void row(int number, long time, int dimensionCode, int attribute, int type,
+                          long value, int codeLength, ByteBuffer point);
+
+        void finish() {
+        }
+    }
+
+    private static final class CsvWriter extends RowWriter {
+        private static final byte[][] TYPE_NAMES = {
+                ascii("Long"), ascii("Double"), ascii("Code"), ascii("Point")
+        };
+        private static final byte[][] NO_TEXTS = new byte[0][];
+
+        private final TmMetadata metadata;
+        // Имена и размерности в UTF-8 (и в кавычках, если нужно), по номеру и коду
+        private final byte[][] names = new byte[1 << 16][];
+        private final byte[][] dimensionNames = new byte[256][];
+        // Тексты кодов в UTF-8 по ячейкам таблицы TmCodeTexts параметра (NO_TEXTS - текстов нет)
+        private final TmCodeTexts[] codeTables = new TmCodeTexts[1 << 16];
+        private final byte[][][] codeTexts = new byte[1 << 16][][];
+
+        CsvWriter(TmMetadata metadata) {
+            this.metadata = metadata;
+        }
+
+        @Override
+        void row(int number, long time, int dimensionCode, int attribute, int type,
+                 long value, int codeLength, ByteBuffer point) {
+            Bytes o = out;
+            rows++;
+            o.putDecimal(time);
+            o.put((byte) ';');
+            putTime(o, time);
+            o.put((byte) ';');
+            o.putDecimal(number);
+            o.put((byte) ';');
+            byte[] name = names[number];
+            if (name == null) {
+                name = field(metadata.paramName(number));
+                names[number] = name;
+            }
+            o.put(name);
+            o.put((byte) ';');
+            if (type < TYPE_NAMES.length) {
+                o.put(TYPE_NAMES[type]);
+            } else {
+                o.putDecimal(type);
+            }
+            o.put((byte) ';');
+            switch (type) {
+                case TmFormat.TYPE_LONG:
+                case TmFormat.TYPE_CODE:
+                    o.putDecimal(value);
+                    break;
+                case TmFormat.TYPE_DOUBLE:
+                    putDouble(o, Double.longBitsToDouble(value));
+                    break;
+                case TmFormat.TYPE_POINT:
+                    o.ensure(point.remaining() * 2);
+                    for (int p = point.position(); p < point.limit(); p++) {
+                        int b = point.get(p) & 0xFF;
+                        o.bytes[o.length++] = HEX[b >>> 4];
+                        o.bytes[o.length++] = HEX[b & 0x0F];
+                    }
+                    break;
+                default:
+                    break;
+            }
+            o.put((byte) ';');
+            if (type == TmFormat.TYPE_CODE) {
+                o.putDecimal(codeLength);
+            }
+            o.put((byte) ';');
+            byte[] dimension = dimensionNames[dimensionCode];
+            if (dimension == null) {
+                dimension = field(metadata.dimensionName(dimensionCode));
+                dimensionNames[dimensionCode] = dimension;
+            }
+            o.put(dimension);
+            o.put((byte) ';');
+            o.putDecimal(attribute);
+            o.put((byte) ';');
+            if (type == TmFormat.TYPE_CODE) {
+                putCodeText(o, number, (int) value);
+            }
+            o.put((byte) '\n');
+        }
+
+        /** Текст кода: ячейка таблицы параметра и уже закодированная строка этой ячейки */
+        private void putCodeText(Bytes o, int number, int code) {
+            byte[][] texts = codeTexts[number];
+            if (texts == null) {
+                TmCodeTexts table = metadata.codeTexts(number);
+                texts = table == null ? NO_TEXTS : new byte[table.getSlotCount()][];
+                codeTables[number] = table;
+                codeTexts[number] = texts;
+            }
+            if (texts == NO_TEXTS) {
+                return;
+            }
+            int slot = codeTables[number].slot(code);
+            if (slot < 0) {
+                return;
+            }
+            byte[] text = texts[slot];
+            if (text == null) {
+                text = field(codeTables[number].getText(slot));
+                texts[slot] = text;
+            }
+            o.put(text);
+        }
+
+        /** ЧЧ:ММ:СС,ммм, как TmDat.formatTime */
+        private static void putTime(Bytes o, long millis) {
+            o.putDigits(millis / 3_600_000, 2);
+            o.put((byte) ':');
+            o.putDigits((millis % 3_600_000) / 60_000, 2);
+            o.put((byte) ':');
+            o.putDigits((millis % 60_000) / 1000, 2);
+            o.put((byte) ',');
+            o.putDigits(millis % 1000, 3);
+        }
+
+        /**
+         * Целые значения меньше 10^7 по модулю - без Double.toString (и без создания строки),
+         * остальные - Double.toString; запись в обоих случаях одна и та же (с 10^7 Double.toString
+         * переходит к виду 1.0E7)
+         */
+        private static void putDouble(Bytes o, double value) {
+            if (value == Math.rint(value) && Math.abs(value) < 1e7) {
+                if (value == 0 && Double.doubleToRawLongBits(value) != 0) {
+                    o.put((byte) '-');
+                }
+                o.putDecimal((long) value);
+                o.put((byte) '.');
+                o.put((byte) '0');
+            } else {
+                o.put(ascii(Double.toString(value)));
+            }
+        }
+
+        /** Поле CSV в UTF-8; в кавычках, если содержит разделитель, кавычку или перевод строки */
+        private static byte[] field(String text) {
+            if (text.indexOf(';') >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0) {
+                text = '"' + text.replace("\"", "\"\"") + '"';
+            }
+            return text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static byte[] ascii(String text) {
+            return text.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final class ColumnarWriter extends RowWriter {
+        private long[] times = new long[CHUNK_ROWS];
+        private int[] numberColumn = new int[CHUNK_ROWS];
+        private byte[] dimensionColumn = new byte[CHUNK_ROWS];
+        private byte[] attributes = new byte[CHUNK_ROWS];
+        private byte[] types = new byte[CHUNK_ROWS];
+        private byte[] codeLengths = new byte[CHUNK_ROWS];
+        private long[] values = new long[CHUNK_ROWS];
+        private int[] pointLengths = new int[CHUNK_ROWS];
+        private final Bytes pointData = new Bytes();
+
+        @Override
+        void reset() {
+            super.reset();
+            pointData.length = 0;
+        }
+
+        @Override
+        void row(int number, long time, int dimensionCode, int attribute, int type,
+                 long value, int codeLength, ByteBuffer point) {
+            int r = rows++;
+            times[r] = time;
+            numberColumn[r] = number;
+            dimensionColumn[r] = (byte) dimensionCode;
+            attributes[r] = (byte) attribute;
+            types[r] = (byte) type;
+            codeLengths[r] = (byte) codeLength;
+            values[r] = value;
+            int pointLength = point == null ? 0 : point.remaining();
+            pointLengths[r] = pointLength;
+            if (pointLength > 0) {
+                pointData.ensure(pointLength);
+                point.duplicate().get(pointData.bytes, pointData.length, pointLength);
+                pointData.length += pointLength;
+            }
+            numbers.set(number);
+            dimensions.set(dimensionCode);
+        }
+
+        @Override
+        void finish() {
+            int n = rows;
+            if (n == 0) {
+                return;
+            }
+            Bytes o = out;
+            o.ensure(n * 28 + 4 + pointData.length);
+            o.putInt(n);
+            for (int r = 0; r < n; r++) {
+                o.putLong(times[r]);
+            }
+            for (int r = 0; r < n; r++) {
+                o.putShort(numberColumn[r]);
+            }
+            putBytes(o, dimensionColumn, n);
+            putBytes(o, attributes, n);
+            putBytes(o, types, n);
+            putBytes(o, codeLengths, n);
+            for (int r = 0; r < n; r++) {
+                o.putLong(values[r]);
+            }
+            for (int r = 0; r < n; r++) {
+                o.putInt(pointLengths[r]);
+            }
+            System.arraycopy(pointData.bytes, 0, o.bytes, o.length, pointData.length);
+            o.length += pointData.length;
+        }
+
+        private static void putBytes(Bytes o, byte[] column, int n) {
+            System.arraycopy(column, 0, o.bytes, o.length, n);
+            o.length += n;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package telemetry.finalstage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Раскладка записи ТМ-файла. Все многобайтовые поля хранятся в порядке big-endian.
+ *
+ *   0-1   номер параметра (0xFFFF - служебная запись)
+ *   2-5   время в миллисекундах от начала суток
+ *   6     код размерности (у служебной записи - тип сообщения)
+ *   7     атрибут (старшие 4 бита) и тип значения (младшие 4 бита)
+ *   8-15  значение; у Point байт 8 - размер элемента, байты 10-11 - длина массива,
+ *         а сами данные идут сразу после байта 11
+ *
+ * Методы читают поля записи, начинающейся со смещения off, не трогая позицию буфера.
+ */
+public final class TmFormat {
+    public static final int SYSTEM_MESSAGE_PARAM = 0xFFFF;
+
+    public static final int TYPE_LONG = 0;
+    public static final int TYPE_DOUBLE = 1;
+    public static final int TYPE_CODE = 2;
+    public static final int TYPE_POINT = 3;
+
+    /** Размер обычной и служебной записи */
+    public static final int RECORD_SIZE = 16;
+    /** Размер заголовка записи Point (без данных) */
+    public static final int POINT_HEADER_SIZE = 12;
+    /** Максимально возможная длина записи */
+    public static final int MAX_RECORD_SIZE = POINT_HEADER_SIZE + 0xFFFF;
+
+    private TmFormat() {
+    }
+
+    public static int paramNumber(ByteBuffer buf, int off) {
+        return buf.getShort(off) & 0xFFFF;
+    }
+
+    public static long milliseconds(ByteBuffer buf, int off) {
+        return buf.getInt(off + 2) & 0xFFFFFFFFL;
+    }
+
+    public static int dimensionCode(ByteBuffer buf, int off) {
+        return buf.get(off + 6) & 0xFF;
+    }
+
+    public static int attribute(ByteBuffer buf, int off) {
+        return (buf.get(off + 7) & 0xF0) >> 4;
+    }
+
+    public static int valueType(ByteBuffer buf, int off) {
+        return buf.get(off + 7) & 0x0F;
+    }
+
+    public static int elementSize(ByteBuffer buf, int off) {
+        return buf.get(off + 8) & 0xFF;
+    }
+
+    public static int codeLength(ByteBuffer buf, int off) {
+        return buf.get(off + 9) & 0xFF;
+    }
+
+    public static int pointLength(ByteBuffer buf, int off) {
+        return buf.getShort(off + 10) & 0xFFFF;
+    }
+
+    /** Значение Long и Code (байты 12-15) */
+    public static int intValue(ByteBuffer buf, int off) {
+        return buf.getInt(off + 12);
+    }
+
+    /**
+     * Значение Double (байты 8-15).
+     * Битовые образы со старшим единичным битом всегда читались как 0.0,
+     * поэтому отрицательные числа по-прежнему дают 0.0.
+     */
+    public static double doubleValue(ByteBuffer buf, int off) {
+        long bits = buf.getLong(off + 8);
+        return bits < 0 ? 0.0 : Double.longBitsToDouble(bits);
+    }
+
+    public static boolean isSystemMessage(ByteBuffer buf, int off) {
+        return paramNumber(buf, off) == SYSTEM_MESSAGE_PARAM;
+    }
+
+    /**
+     * Полная длина записи с учётом данных Point.
+     * @param limit граница доступных байтов в буфере
+     * @return длина записи или -1, если байтов не хватает даже для определения длины
+     */
+    public static int recordLength(ByteBuffer buf, int off, int limit) {
+        int available = limit - off;
+        if (available < 8) {
+            return -1;
+        }
+        if (isSystemMessage(buf, off) || valueType(buf, off) != TYPE_POINT) {
+            return RECORD_SIZE;
+        }
+        if (available < POINT_HEADER_SIZE) {
+            return -1;
+        }
+        // Пустой массив Point всё равно занимает один байт после заголовка
+        return POINT_HEADER_SIZE + Math.max(pointLength(buf, off), 1);
+    }
+}
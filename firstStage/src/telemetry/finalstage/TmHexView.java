@@ -0,0 +1,400 @@
+package telemetry.finalstage;
+
+import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.Arrays;
+
+/**
+ * Шестнадцатеричный просмотр ТМ-файла любого размера.
+ * Файл отображается в память (MappedTmFile.map), рисуются только видимые строки по 16 байт,
+ * поэтому ни открытие, ни прокрутка не зависят от размера файла. Полоса прокрутки считает
+ * в строках (до 2^31 строк, то есть до 32 ГБ).
+ *
+ * Когда задан список записей (TmRecordIndex), байты раскрашиваются по полям записи:
+ * номер параметра, время, размерность, признак и тип, значение, заголовок и данные Point;
+ * соседние записи различаются оттенком, служебные записи и оборванный хвост - своим цветом.
+ * Щелчок выбирает байт, выбранная запись обводится рамкой.
+ */
+public class TmHexView extends JPanel {
+    private static final int BYTES_PER_ROW = 16;
+    // Колонки строки в символах: смещение, байты, текст
+    private static final int OFFSET_CHARS = 10;
+    private static final int HEX_COLUMN = OFFSET_CHARS + 2;
+    private static final int TEXT_COLUMN = HEX_COLUMN + BYTES_PER_ROW * 3 + 1;
+    private static final int LINE_CHARS = TEXT_COLUMN + BYTES_PER_ROW;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    // Назначение байта
+    private static final int NONE = 0;
+    private static final int PARAM = 1;
+    private static final int TIME = 2;
+    private static final int DIMENSION = 3;
+    private static final int TYPE = 4;
+    private static final int VALUE = 5;
+    private static final int VALUE_HEADER = 6;
+    private static final int POINT_DATA = 7;
+    private static final int SERVICE = 8;
+    private static final int TAIL = 9;
+
+    private static final Color[] ROLE_COLORS = {
+            null,
+            new Color(200, 220, 255),
+            new Color(200, 240, 200),
+            new Color(255, 245, 180),
+            new Color(255, 220, 170),
+            new Color(255, 205, 215),
+            new Color(225, 225, 225),
+            new Color(230, 215, 255),
+            new Color(210, 210, 210),
+            new Color(255, 160, 160)
+    };
+    // Те же цвета чуть темнее - для записей с нечётным номером
+    private static final Color[] ODD_COLORS = new Color[ROLE_COLORS.length];
+
+    static {
+        for (int i = 1; i < ROLE_COLORS.length; i++) {
+            Color c = ROLE_COLORS[i];
+            ODD_COLORS[i] = new Color(c.getRed() * 9 / 10, c.getGreen() * 9 / 10, c.getBlue() * 9 / 10);
+        }
+    }
+
+    private final Page page = new Page();
+    private final JScrollBar scrollBar = new JScrollBar(JScrollBar.VERTICAL);
+
+    private MappedTmFile file;
+    private TmRecordIndex index;
+    private TmMetadata metadata;
+    private long selected = -1;
+
+    public TmHexView() {
+        super(new BorderLayout());
+        page.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        page.setBackground(Color.WHITE);
+        page.setOpaque(true);
+        add(page, BorderLayout.CENTER);
+        add(scrollBar, BorderLayout.EAST);
+        scrollBar.addAdjustmentListener(e -> page.repaint());
+        page.addMouseWheelListener(e -> scrollBar.setValue(scrollBar.getValue() + e.getWheelRotation() * 3));
+        page.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                long offset = page.offsetAt(e.getX(), e.getY());
+                if (offset >= 0) {
+                    selected = offset;
+                    page.repaint();
+                    fireStateChanged();
+                }
+            }
+        });
+        page.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                updateScrollBar();
+            }
+        });
+    }
+
+    /** Показывает файл с начала; список записей сбрасывается */
+    public void setFile(MappedTmFile file) {
+        this.file = file;
+        this.index = null;
+        selected = -1;
+        updateScrollBar();
+        scrollBar.setValue(0);
+        page.repaint();
+        fireStateChanged();
+    }
+
+    /** Список записей файла (строится отдельно, например в фоне) */
+    public void setIndex(TmRecordIndex index) {
+        this.index = index;
+        page.repaint();
+        fireStateChanged();
+    }
+
+    public TmRecordIndex getIndex() {
+        return index;
+    }
+
+    /** Словари для имён параметров и значений в описании записи; null - только номера */
+    public void setMetadata(TmMetadata metadata) {
+        this.metadata = metadata;
+        fireStateChanged();
+    }
+
+    /** Выбранный байт или -1 */
+    public long getSelectedOffset() {
+        return selected;
+    }
+
+    /** Выбирает байт и прокручивает к нему */
+    public void goToOffset(long offset) {
+        if (file == null || file.size() == 0) {
+            return;
+        }
+        selected = Math.max(0, Math.min(offset, file.size() - 1));
+        long row = selected / BYTES_PER_ROW;
+        int visible = page.visibleRows();
+        if (row < scrollBar.getValue() || row >= scrollBar.getValue() + visible - 1) {
+            scrollBar.setValue((int) Math.max(0, row - visible / 3));
+        }
+        page.repaint();
+        fireStateChanged();
+    }
+
+    /**
+     * Переходит к записи по номеру
+     * @return false, если списка записей ещё нет или номер вне файла
+     */
+    public boolean goToRecord(long record) {
+        if (index == null || record < 0 || record >= index.getRecordCount()) {
+            return false;
+        }
+        goToOffset(index.offsetOf(file, record));
+        return true;
+    }
+
+    /**
+     * Переходит к первой записи со временем не меньше ms
+     * @return false, если списка записей ещё нет или таких записей нет
+     */
+    public boolean goToTime(long ms) {
+        long record = index == null ? -1 : index.findTime(file, ms);
+        return record >= 0 && goToRecord(record);
+    }
+
+    /** Описание выбранного байта и записи, в которую он попадает */
+    public String describeSelection() {
+        if (file == null) {
+            return "";
+        }
+        if (selected < 0) {
+            return "Размер файла: " + file.size() + " байт";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("Смещение ").append(selected).append(" (0x").append(Long.toHexString(selected).toUpperCase())
+                .append(")");
+        if (index == null) {
+            return sb.append(", список записей строится...").toString();
+        }
+        long record = index.indexAt(file, selected);
+        if (record < 0) {
+            return sb.append(", оборванная запись в конце файла").toString();
+        }
+        long start = index.offsetOf(file, record);
+        TmRecordView view = new TmRecordView();
+        view.reset(file.segmentFor(start), MappedTmFile.localOffset(start), start, record);
+        sb.append(", запись ").append(record).append(" [").append(start).append(", ")
+                .append(start + view.getLength()).append("): ");
+        if (view.isSystemMessage()) {
+            sb.append("служебная, тип ").append(view.getDimensionCode())
+                    .append(", время ").append(TmDat.formatTime(view.getTime()));
+            return sb.toString();
+        }
+        int number = view.getParamNumber();
+        sb.append("параметр ").append(number);
+        if (metadata != null) {
+            TmDat dat = metadata.toTmDat(view);
+            sb.append(" ").append(dat.getName()).append(", ").append(TmDat.formatTime(dat.getTime()))
+                    .append(", признак ").append(dat.getAttribute()).append(", ").append(dat.getValueAsString());
+        } else {
+            sb.append(", ").append(TmDat.formatTime(view.getTime())).append(", размерность ")
+                    .append(view.getDimensionCode()).append(", признак ").append(view.getAttribute())
+                    .append(", тип ").append(view.getValueType());
+        }
+        return sb.toString();
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        listenerList.add(ChangeListener.class, listener);
+    }
+
+    private void fireStateChanged() {
+        ChangeEvent event = new ChangeEvent(this);
+        for (ChangeListener listener : listenerList.getListeners(ChangeListener.class)) {
+            listener.stateChanged(event);
+        }
+    }
+
+    private void updateScrollBar() {
+        long rows = file == null ? 0 : (file.size() + BYTES_PER_ROW - 1) / BYTES_PER_ROW;
+        int total = (int) Math.min(rows, Integer.MAX_VALUE - 1);
+        int visible = Math.max(1, page.visibleRows() - 1);
+        scrollBar.setValues(Math.min(scrollBar.getValue(), Math.max(0, total - visible)), visible, 0,
+                Math.max(total, visible));
+        scrollBar.setBlockIncrement(visible);
+    }
+
+    /**
+     * Назначение байтов [from, to) по записям; для байтов после последней полной записи - TAIL.
+     * Номер записи каждого байта нужен для оттенка: записи чередуются.
+     */
+    private void roles(long from, long to, byte[] roles, long[] records) {
+        Arrays.fill(roles, 0, (int) (to - from), (byte) NONE);
+        if (index == null) {
+            return;
+        }
+        long dataEnd = index.getDataEnd();
+        long record = index.indexAt(file, from);
+        long offset = record >= 0 ? index.offsetOf(file, record) : dataEnd;
+        TmRecordView view = new TmRecordView();
+        while (offset < to && offset < dataEnd) {
+            view.reset(file.segmentFor(offset), MappedTmFile.localOffset(offset), offset, record);
+            int length = view.getLength();
+            boolean service = view.isSystemMessage();
+            int type = view.getValueType();
+            for (long b = Math.max(offset, from); b < Math.min(offset + length, to); b++) {
+                int i = (int) (b - from);
+                roles[i] = (byte) (service ? SERVICE : role(type, (int) (b - offset)));
+                records[i] = record;
+            }
+            offset += length;
+            record++;
+        }
+        for (long b = Math.max(dataEnd, from); b < to; b++) {
+            roles[(int) (b - from)] = TAIL;
+        }
+    }
+
+    private static int role(int type, int position) {
+        if (position < 2) {
+            return PARAM;
+        }
+        if (position < 6) {
+            return TIME;
+        }
+        if (position == 6) {
+            return DIMENSION;
+        }
+        if (position == 7) {
+            return TYPE;
+        }
+        switch (type) {
+            case TmFormat.TYPE_POINT:
+                return position < TmFormat.POINT_HEADER_SIZE ? VALUE_HEADER : POINT_DATA;
+            case TmFormat.TYPE_LONG:
+            case TmFormat.TYPE_CODE:
+                // Long и Code - байты 12-15, у Code в байте 9 длина кода
+                return position < 12 ? VALUE_HEADER : VALUE;
+            default:
+                return VALUE;
+        }
+    }
+
+    /**
+     * Область рисования: только видимые строки
+     */
+    private class Page extends JComponent {
+        private byte[] roles = new byte[0];
+        private long[] records = new long[0];
+        private final char[] line = new char[LINE_CHARS];
+
+        int visibleRows() {
+            FontMetrics metrics = getFontMetrics(getFont());
+            return Math.max(1, getHeight() / metrics.getHeight());
+        }
+
+        /** Байт под точкой или -1 */
+        long offsetAt(int x, int y) {
+            if (file == null) {
+                return -1;
+            }
+            FontMetrics metrics = getFontMetrics(getFont());
+            int charWidth = metrics.charWidth('0');
+            int column = x / charWidth;
+            int b;
+            if (column >= HEX_COLUMN && column < HEX_COLUMN + BYTES_PER_ROW * 3) {
+                b = (column - HEX_COLUMN) / 3;
+            } else if (column >= TEXT_COLUMN && column < TEXT_COLUMN + BYTES_PER_ROW) {
+                b = column - TEXT_COLUMN;
+            } else {
+                return -1;
+            }
+            long offset = ((long) scrollBar.getValue() + y / metrics.getHeight()) * BYTES_PER_ROW + b;
+            return offset < file.size() ? offset : -1;
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+            if (file == null) {
+                return;
+            }
+            FontMetrics metrics = g.getFontMetrics(getFont());
+            g.setFont(getFont());
+            int lineHeight = metrics.getHeight();
+            int charWidth = metrics.charWidth('0');
+            int rows = visibleRows() + 1;
+
+            long from = (long) scrollBar.getValue() * BYTES_PER_ROW;
+            long to = Math.min(file.size(), from + (long) rows * BYTES_PER_ROW);
+            int count = (int) Math.max(0, to - from);
+            if (roles.length < count) {
+                roles = new byte[count];
+                records = new long[count];
+            }
+            roles(from, to, roles, records);
+
+            // Границы выбранной записи
+            long selectedStart = -1;
+            long selectedEnd = -1;
+            if (selected >= 0 && index != null) {
+                long record = index.indexAt(file, selected);
+                if (record >= 0) {
+                    selectedStart = index.offsetOf(file, record);
+                    selectedEnd = record + 1 < index.getRecordCount() ? index.offsetOf(file, record + 1) : index.getDataEnd();
+                }
+            }
+
+            for (int row = 0; row * BYTES_PER_ROW < count; row++) {
+                long rowOffset = from + (long) row * BYTES_PER_ROW;
+                int y = row * lineHeight;
+                Arrays.fill(line, ' ');
+                for (int d = OFFSET_CHARS - 1, shift = 0; d >= 0; d--, shift += 4) {
+                    line[d] = HEX[(int) (rowOffset >>> shift) & 0xF];
+                }
+                int n = Math.min(BYTES_PER_ROW, count - row * BYTES_PER_ROW);
+                for (int b = 0; b < n; b++) {
+                    int i = row * BYTES_PER_ROW + b;
+                    int value = file.getByte(rowOffset + b);
+                    line[HEX_COLUMN + b * 3] = HEX[value >>> 4];
+                    line[HEX_COLUMN + b * 3 + 1] = HEX[value & 0xF];
+                    line[TEXT_COLUMN + b] = value >= 0x20 && value < 0x7F ? (char) value : '.';
+
+                    int role = roles[i];
+                    if (role != NONE) {
+                        g.setColor((records[i] & 1) == 0 ? ROLE_COLORS[role] : ODD_COLORS[role]);
+                        g.fillRect((HEX_COLUMN + b * 3) * charWidth, y, charWidth * 3, lineHeight);
+                        g.fillRect((TEXT_COLUMN + b) * charWidth, y, charWidth, lineHeight);
+                    }
+                    long offset = rowOffset + b;
+                    if (offset == selected) {
+                        g.setColor(Color.BLUE);
+                        g.fillRect((HEX_COLUMN + b * 3) * charWidth, y + lineHeight - 2, charWidth * 2, 2);
+                    }
+                    if (offset >= selectedStart && offset < selectedEnd) {
+                        g.setColor(Color.RED);
+                        int x = (HEX_COLUMN + b * 3) * charWidth;
+                        g.drawLine(x, y, x + charWidth * 3, y);
+                        g.drawLine(x, y + lineHeight - 1, x + charWidth * 3, y + lineHeight - 1);
+                        if (offset == selectedStart || b == 0) {
+                            g.drawLine(x, y, x, y + lineHeight - 1);
+                        }
+                        if (offset == selectedEnd - 1 || b == n - 1) {
+                            g.drawLine(x + charWidth * 3, y, x + charWidth * 3, y + lineHeight - 1);
+                        }
+                    }
+                }
+                g.setColor(Color.BLACK);
+                g.drawChars(line, 0, TEXT_COLUMN + n, 0, y + metrics.getAscent());
+            }
+        }
+    }
+}
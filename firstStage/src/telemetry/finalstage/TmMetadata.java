@@ -0,0 +1,76 @@
+package telemetry.finalstage;
+
+/**
+ * Сведения из словарей для разбора записей: имя параметра по номеру и строка размерности по коду.
+ * Пара (номер параметра, код размерности) переводится в строки по частям, каждая часть
+ * ищется в словаре один раз, дальше берётся из массива. Все записи с одним номером (кодом)
+ * получают один и тот же объект строки, записи хранят только номер и код.
+ *
+ * Объект можно использовать из нескольких потоков (параллельный разбор): гонка при первом
+ * обращении безопасна, оба потока получат равные неизменяемые строки.
+ */
+public class TmMetadata {
+    private static final int PARAM_COUNT = 0x10000;
+    private static final int DIMENSION_COUNT = 256;
+
+    private final Dim dim;
+    private final DatXML datXML;
+
+    private final String[] paramNames = new String[PARAM_COUNT];
+    private final String[] dimensionNames = new String[DIMENSION_COUNT];
+
+    public TmMetadata(Dim dim, DatXML datXML) {
+        this.dim = dim;
+        this.datXML = datXML;
+    }
+
+    /** Имя параметра по номеру (для неизвестных номеров - "UNKNOWN_номер") */
+    public String paramName(int number) {
+        String name = paramNames[number];
+        if (name == null) {
+            name = datXML.getName(number).intern();
+            paramNames[number] = name;
+        }
+        return name;
+    }
+
+    /** Строка размерности по коду. Коды меньше 32 - форматы, а не размерности ("fmt" + код). */
+    public String dimensionName(int code) {
+        String name = dimensionNames[code];
+        if (name == null) {
+            name = dim.getDimensionOrFormat(code).intern();
+            dimensionNames[code] = name;
+        }
+        return name;
+    }
+
+    /** Тексты кодов параметра или null, если их нет */
+    public TmCodeTexts codeTexts(int number) {
+        return datXML.getCodeTexts(number);
+    }
+
+    /** Текст кода параметра из словаря или null */
+    public String codeText(int number, int code) {
+        return datXML.getCodeText(number, code);
+    }
+
+    /**
+     * Создаёт объект записи; имя и размерность берутся из кэша
+     */
+    public TmDat toTmDat(TmRecordView record) {
+        TmDat dat = record.toTmDat(paramName(record.getParamNumber()), dimensionName(record.getDimensionCode()));
+        if (dat instanceof TmCode) {
+            TmCode code = (TmCode) dat;
+            code.setText(codeText(code.getNumber(), code.getCodeValue()));
+        }
+        return dat;
+    }
+
+    public Dim getDim() {
+        return dim;
+    }
+
+    public DatXML getDatXML() {
+        return datXML;
+    }
+}
@@ -0,0 +1,206 @@
+package telemetry.finalstage;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Счётчики загрузки для JMX (TmMonitorMXBean). Регистрируется в платформенном MBeanServer
+ * в фоне при первом обращении; -Dtelemetry.jmx=false отключает регистрацию (счётчики всё равно ведутся).
+ *
+ * Счётчики записей не увеличиваются на каждой записи: загрузка сообщает свои TmCounters (track),
+ * и при опросе они суммируются с уже законченными загрузками (finish). Поля TmCounters читаются
+ * из другого потока без синхронизации, поэтому значения идущих загрузок могут слегка отставать.
+ * Прочитанные байты прибавляются блоками чтения (TmDecoder) или порциями отображённого файла.
+ */
+public final class TmMonitor implements TmMonitorMXBean {
+    public static final String OBJECT_NAME = "telemetry.finalstage:type=TmMonitor";
+    // Скорость пересчитывается не чаще раза в секунду
+    private static final long RATE_INTERVAL = 1_000_000_000L;
+
+    private static final TmMonitor INSTANCE = new TmMonitor();
+
+    static {
+        if (!"false".equals(System.getProperty("telemetry.jmx"))) {
+            // Запуск MBeanServer занимает заметное время, первая загрузка его не ждёт
+            Thread thread = new Thread(() -> {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+                } catch (Exception e) {
+                    System.err.println("Счётчики загрузки не зарегистрированы в JMX: " + e);
+                }
+            }, "tm-monitor-jmx");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder filesLoaded = new LongAdder();
+    // Законченные загрузки
+    private final TmCounters completed = new TmCounters();
+    // Идущие загрузки
+    private final Set<TmCounters> active = ConcurrentHashMap.newKeySet();
+    private final Map<String, IntSupplier> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger queueIds = new AtomicInteger();
+
+    // Последний замер скорости
+    private long rateTime = System.nanoTime();
+    private long rateRecords = 0;
+    private double rate = 0;
+
+    private TmMonitor() {
+    }
+
+    public static TmMonitor get() {
+        return INSTANCE;
+    }
+
+    /** Загрузка начата: её счётчики учитываются при опросе, пока не вызван finish */
+    public void track(TmCounters counters) {
+        active.add(counters);
+    }
+
+    /** Загрузка закончена (или прервана): её счётчики переходят в накопленные */
+    public void finish(TmCounters counters) {
+        synchronized (completed) {
+            if (active.remove(counters)) {
+                completed.add(counters);
+            }
+        }
+    }
+
+    /** Полностью загружено ещё files файлов */
+    public void filesLoaded(int files) {
+        filesLoaded.add(files);
+    }
+
+    /** Загрузка больше не учитывается отдельно (её счётчики прибавлены к другой идущей загрузке) */
+    public void untrack(TmCounters counters) {
+        active.remove(counters);
+    }
+
+    public void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * Добавляет очередь для getQueueDepths
+     * @return ключ очереди для removeQueue (к имени добавляется номер, если оно занято)
+     */
+    public String addQueue(String name, IntSupplier depth) {
+        String key = name;
+        while (queues.putIfAbsent(key, depth) != null) {
+            key = name + "#" + queueIds.incrementAndGet();
+        }
+        return key;
+    }
+
+    public void removeQueue(String key) {
+        queues.remove(key);
+    }
+
+    /**
+     * Сколько байт выделил текущий поток с его запуска
+     * @return -1, если JVM этого не считает
+     */
+    static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    /** Сумма законченных и идущих загрузок */
+    private TmCounters snapshot() {
+        TmCounters sum = new TmCounters();
+        synchronized (completed) {
+            sum.add(completed);
+            for (TmCounters counters : active) {
+                sum.add(counters);
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getRecords() {
+        return snapshot().getTotalRecords();
+    }
+
+    @Override
+    public long getServiceRecords() {
+        return snapshot().getServiceRecords();
+    }
+
+    @Override
+    public long getUsefulRecords() {
+        return snapshot().getUsefulRecords();
+    }
+
+    @Override
+    public long getUnknownRecords() {
+        return snapshot().getUnknownRecords();
+    }
+
+    @Override
+    public long[] getTypeCounts() {
+        return snapshot().getTypeCounts().clone();
+    }
+
+    @Override
+    public synchronized double getRecordsPerSecond() {
+        long now = System.nanoTime();
+        if (now - rateTime >= RATE_INTERVAL) {
+            long records = getRecords();
+            rate = Math.max(0, records - rateRecords) * 1e9 / (now - rateTime);
+            rateTime = now;
+            rateRecords = records;
+        }
+        return rate;
+    }
+
+    @Override
+    public long getFilesLoaded() {
+        return filesLoaded.sum();
+    }
+
+    @Override
+    public int getActiveLoads() {
+        return active.size();
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> result = new TreeMap<>();
+        queues.forEach((name, depth) -> result.put(name, depth.getAsInt()));
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        synchronized (completed) {
+            completed.reset();
+        }
+        bytesRead.reset();
+        filesLoaded.reset();
+        synchronized (this) {
+            rateTime = System.nanoTime();
+            rateRecords = getRecords();
+            rate = 0;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package telemetry.finalstage;
+
+import java.util.Map;
+
+/**
+ * Счётчики загрузки ТМ-файлов для JConsole/JMC (объект telemetry.finalstage:type=TmMonitor).
+ * Считаются все загрузки процесса с его запуска, включая идущие сейчас.
+ */
+public interface TmMonitorMXBean {
+
+    /** Прочитано байт ТМ-файлов */
+    long getBytesRead();
+
+    /** Разобрано записей (как TmCounters.getTotalRecords) */
+    long getRecords();
+
+    long getServiceRecords();
+
+    long getUsefulRecords();
+
+    long getUnknownRecords();
+
+    /** Полезные записи по типам значения: Long, Double, Code, Point (как TmCounters.getTypeCounts) */
+    long[] getTypeCounts();
+
+    /** Скорость разбора за последний интервал между опросами (не короче секунды) */
+    double getRecordsPerSecond();
+
+    /** Загружено файлов полностью */
+    long getFilesLoaded();
+
+    /** Загрузок, идущих сейчас */
+    int getActiveLoads();
+
+    /** Длина очередей: задания интерфейса, файлы пакетной обработки, порции параллельной загрузки */
+    Map<String, Integer> getQueueDepths();
+
+    /** Обнуляет накопленные счётчики (идущие загрузки продолжают считаться) */
+    void reset();
+}
@@ -0,0 +1,385 @@
+package telemetry.finalstage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Статистика по каждому параметру ТМ-файла. Считается по ходу разбора за один проход,
+ * как и TmCounters, поэтому после загрузки сводка по параметру выдаётся сразу.
+ *
+ * Для каждого встреченного номера параметра хранятся: количество записей, минимум, максимум,
+ * среднее и сумма квадратов отклонений (по Уэлфорду) значений Long и Double, первое и последнее
+ * время, наибольший интервал между соседними записями, количество разрывов (интервалов больше
+ * GAP_MS) и записей с временем меньше предыдущего, распределение по признакам.
+ * Интервалы считаются между соседними записями параметра в порядке файла.
+ *
+ * Данные лежат в параллельных массивах по номеру ячейки; номер параметра переводится в ячейку
+ * таблицей на 65536 элементов. Объект заполняется одним потоком.
+ */
+public class TmParamStats implements TmRecordListener {
+    /** Интервал между записями параметра, начиная с которого он считается разрывом, мс */
+    public static final long GAP_MS = 1000;
+
+    private static final int ATTRIBUTES = 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Ячейка параметра по его номеру плюс один (0 - параметр не встречался)
+    private final int[] slotOf = new int[1 << 16];
+    private int slotCount = 0;
+
+    private int[] numbers;
+    private int[] counts;
+    private int[] gaps;
+    private int[] backward;
+    private int[] attributes;
+    // Значения Long и Double
+    private int[] valueCounts;
+    private double[] mins;
+    private double[] maxs;
+    private double[] means;
+    private double[] m2s;
+    // Наименьшее и наибольшее время
+    private long[] firstTimes;
+    private long[] lastTimes;
+    // Время первой и последней записи в порядке файла (для интервалов)
+    private long[] headTimes;
+    private long[] tailTimes;
+    private long[] maxIntervals;
+
+    public TmParamStats() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    @Override
+    public void onRecord(TmRecordView record) {
+        int slot = slot(record.getParamNumber());
+        long time = record.getTime();
+
+        if (counts[slot] == 0) {
+            firstTimes[slot] = time;
+            lastTimes[slot] = time;
+            headTimes[slot] = time;
+        } else {
+            interval(slot, time - tailTimes[slot]);
+            if (time < firstTimes[slot]) {
+                firstTimes[slot] = time;
+            }
+            if (time > lastTimes[slot]) {
+                lastTimes[slot] = time;
+            }
+        }
+        tailTimes[slot] = time;
+        counts[slot]++;
+        attributes[slot * ATTRIBUTES + record.getAttribute()]++;
+
+        switch (record.getValueType()) {
+            case TmFormat.TYPE_LONG:
+                addValue(slot, record.getIntValue());
+                break;
+            case TmFormat.TYPE_DOUBLE:
+                addValue(slot, record.getDoubleValue());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void interval(int slot, long interval) {
+        if (interval < 0) {
+            backward[slot]++;
+            return;
+        }
+        if (interval > GAP_MS) {
+            gaps[slot]++;
+        }
+        if (interval > maxIntervals[slot]) {
+            maxIntervals[slot] = interval;
+        }
+    }
+
+    /**
+     * Шаг Уэлфорда: среднее и сумма квадратов отклонений без повторного прохода.
+     * NaN и бесконечности в числовую статистику не входят.
+     */
+    private void addValue(int slot, double value) {
+        if (!Double.isFinite(value)) {
+            return;
+        }
+        int n = ++valueCounts[slot];
+        if (n == 1) {
+            mins[slot] = value;
+            maxs[slot] = value;
+        } else {
+            if (value < mins[slot]) {
+                mins[slot] = value;
+            }
+            if (value > maxs[slot]) {
+                maxs[slot] = value;
+            }
+        }
+        double delta = value - means[slot];
+        means[slot] += delta / n;
+        m2s[slot] += delta * (value - means[slot]);
+    }
+
+    /**
+     * Прибавляет статистику следующей части того же файла (порции параллельного разбора):
+     * интервал между последней записью этой части и первой записью следующей тоже учитывается
+     */
+    public void add(TmParamStats next) {
+        merge(next, true);
+    }
+
+    /**
+     * Прибавляет статистику другого файла: записи файлов перемежаются по времени,
+     * поэтому интервалы на стыке не считаются
+     */
+    public void combine(TmParamStats other) {
+        merge(other, false);
+    }
+
+    private void merge(TmParamStats other, boolean continuation) {
+        for (int o = 0; o < other.slotCount; o++) {
+            int count = other.counts[o];
+            if (count == 0) {
+                continue;
+            }
+            int slot = slot(other.numbers[o]);
+            if (counts[slot] == 0) {
+                firstTimes[slot] = other.firstTimes[o];
+                lastTimes[slot] = other.lastTimes[o];
+                headTimes[slot] = other.headTimes[o];
+                tailTimes[slot] = other.tailTimes[o];
+            } else {
+                if (continuation) {
+                    interval(slot, other.headTimes[o] - tailTimes[slot]);
+                    tailTimes[slot] = other.tailTimes[o];
+                }
+                firstTimes[slot] = Math.min(firstTimes[slot], other.firstTimes[o]);
+                lastTimes[slot] = Math.max(lastTimes[slot], other.lastTimes[o]);
+            }
+            counts[slot] += count;
+            gaps[slot] += other.gaps[o];
+            backward[slot] += other.backward[o];
+            maxIntervals[slot] = Math.max(maxIntervals[slot], other.maxIntervals[o]);
+            for (int a = 0; a < ATTRIBUTES; a++) {
+                attributes[slot * ATTRIBUTES + a] += other.attributes[o * ATTRIBUTES + a];
+            }
+            mergeValues(slot, other, o);
+        }
+    }
+
+    /**
+     * Объединение среднего и суммы квадратов двух частей (Чан и др.)
+     */
+    private void mergeValues(int slot, TmParamStats other, int o) {
+        int nb = other.valueCounts[o];
+        if (nb == 0) {
+            return;
+        }
+        int na = valueCounts[slot];
+        if (na == 0) {
+            valueCounts[slot] = nb;
+            mins[slot] = other.mins[o];
+            maxs[slot] = other.maxs[o];
+            means[slot] = other.means[o];
+            m2s[slot] = other.m2s[o];
+            return;
+        }
+        double n = (double) na + nb;
+        double delta = other.means[o] - means[slot];
+        means[slot] += delta * nb / n;
+        m2s[slot] += other.m2s[o] + delta * delta * na * nb / n;
+        mins[slot] = Math.min(mins[slot], other.mins[o]);
+        maxs[slot] = Math.max(maxs[slot], other.maxs[o]);
+        valueCounts[slot] = na + nb;
+    }
+
+    private int slot(int number) {
+        int slot = slotOf[number] - 1;
+        if (slot < 0) {
+            if (slotCount == numbers.length) {
+                allocate(slotCount * 2);
+            }
+            slot = slotCount++;
+            numbers[slot] = number;
+            slotOf[number] = slot + 1;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        numbers = grow(numbers, capacity);
+        counts = grow(counts, capacity);
+        gaps = grow(gaps, capacity);
+        backward = grow(backward, capacity);
+        attributes = grow(attributes, capacity * ATTRIBUTES);
+        valueCounts = grow(valueCounts, capacity);
+        mins = grow(mins, capacity);
+        maxs = grow(maxs, capacity);
+        means = grow(means, capacity);
+        m2s = grow(m2s, capacity);
+        firstTimes = grow(firstTimes, capacity);
+        lastTimes = grow(lastTimes, capacity);
+        headTimes = grow(headTimes, capacity);
+        tailTimes = grow(tailTimes, capacity);
+        maxIntervals = grow(maxIntervals, capacity);
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        return array == null ? new int[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    private static double[] grow(double[] array, int capacity) {
+        return array == null ? new double[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    private static long[] grow(long[] array, int capacity) {
+        return array == null ? new long[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    /** Количество встреченных параметров */
+    public int getParamCount() {
+        return slotCount;
+    }
+
+    /** Номера встреченных параметров по возрастанию */
+    public int[] getParamNumbers() {
+        int[] result = Arrays.copyOf(numbers, slotCount);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Сводка по параметру
+     * @return сводка или null, если записей параметра не было
+     */
+    public Summary get(int paramNumber) {
+        if (paramNumber < 0 || paramNumber >= slotOf.length) {
+            return null;
+        }
+        int slot = slotOf[paramNumber] - 1;
+        return slot < 0 ? null : new Summary(this, slot);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(slotCount);
+        for (int s = 0; s < slotCount; s++) {
+            out.writeShort(numbers[s]);
+            out.writeInt(counts[s]);
+            out.writeInt(gaps[s]);
+            out.writeInt(backward[s]);
+            for (int a = 0; a < ATTRIBUTES; a++) {
+                out.writeInt(attributes[s * ATTRIBUTES + a]);
+            }
+            out.writeInt(valueCounts[s]);
+            out.writeDouble(mins[s]);
+            out.writeDouble(maxs[s]);
+            out.writeDouble(means[s]);
+            out.writeDouble(m2s[s]);
+            out.writeLong(firstTimes[s]);
+            out.writeLong(lastTimes[s]);
+            out.writeLong(headTimes[s]);
+            out.writeLong(tailTimes[s]);
+            out.writeLong(maxIntervals[s]);
+        }
+    }
+
+    void read(DataInput in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int s = slot(in.readUnsignedShort());
+            counts[s] = in.readInt();
+            gaps[s] = in.readInt();
+            backward[s] = in.readInt();
+            for (int a = 0; a < ATTRIBUTES; a++) {
+                attributes[s * ATTRIBUTES + a] = in.readInt();
+            }
+            valueCounts[s] = in.readInt();
+            mins[s] = in.readDouble();
+            maxs[s] = in.readDouble();
+            means[s] = in.readDouble();
+            m2s[s] = in.readDouble();
+            firstTimes[s] = in.readLong();
+            lastTimes[s] = in.readLong();
+            headTimes[s] = in.readLong();
+            tailTimes[s] = in.readLong();
+            maxIntervals[s] = in.readLong();
+        }
+    }
+
+    /**
+     * Сводка по одному параметру (копия на момент запроса)
+     */
+    public static final class Summary {
+        private final int paramNumber;
+        private final int count;
+        private final int valueCount;
+        private final double min;
+        private final double max;
+        private final double mean;
+        private final double m2;
+        private final long firstTime;
+        private final long lastTime;
+        private final long maxInterval;
+        private final int gaps;
+        private final int backward;
+        private final int[] attributeCounts;
+
+        private Summary(TmParamStats stats, int slot) {
+            paramNumber = stats.numbers[slot];
+            count = stats.counts[slot];
+            valueCount = stats.valueCounts[slot];
+            min = stats.mins[slot];
+            max = stats.maxs[slot];
+            mean = stats.means[slot];
+            m2 = stats.m2s[slot];
+            firstTime = stats.firstTimes[slot];
+            lastTime = stats.lastTimes[slot];
+            maxInterval = stats.maxIntervals[slot];
+            gaps = stats.gaps[slot];
+            backward = stats.backward[slot];
+            attributeCounts = Arrays.copyOfRange(stats.attributes, slot * ATTRIBUTES, (slot + 1) * ATTRIBUTES);
+        }
+
+        public int getParamNumber() { return paramNumber; }
+        /** Количество записей любого типа */
+        public int getCount() { return count; }
+        /** Количество числовых значений (Long и Double), по которым считаются min/max/mean */
+        public int getValueCount() { return valueCount; }
+        public double getMin() { return valueCount > 0 ? min : Double.NaN; }
+        public double getMax() { return valueCount > 0 ? max : Double.NaN; }
+        public double getMean() { return valueCount > 0 ? mean : Double.NaN; }
+
+        /** Выборочная дисперсия (делитель n - 1) */
+        public double getVariance() {
+            return valueCount > 1 ? m2 / (valueCount - 1) : Double.NaN;
+        }
+
+        public double getStdDev() {
+            return Math.sqrt(getVariance());
+        }
+
+        /** Наименьшее время записи, мс от начала суток */
+        public long getFirstTime() { return firstTime; }
+        /** Наибольшее время записи, мс от начала суток */
+        public long getLastTime() { return lastTime; }
+
+        /** Средняя частота записей, в секунду (NaN, если все записи в одну миллисекунду) */
+        public double getRate() {
+            long span = lastTime - firstTime;
+            return span > 0 ? (count - 1) * 1000.0 / span : Double.NaN;
+        }
+
+        /** Наибольший интервал между соседними записями, мс */
+        public long getMaxInterval() { return maxInterval; }
+        /** Количество интервалов больше GAP_MS */
+        public int getGaps() { return gaps; }
+        /** Количество записей с временем меньше, чем у предыдущей */
+        public int getBackward() { return backward; }
+        /** Количество записей с каждым признаком (индекс - признак 0..15) */
+        public int[] getAttributeCounts() { return attributeCounts.clone(); }
+    }
+}
@@ -1,9 +1,11 @@
 package telemetry.finalstage;
 
+import java.nio.ByteBuffer;
+
 public class TmPoint extends TmDat {
     private int elementSize;   // размер элемента (байт 8)
     private int dataLength;    // длина массива в байтах (байты 10-11)
-    private byte[] data;       // сами данные
+    private ByteBuffer data;   // сами данные (обёртка массива или срез отображённого файла)
 
     public int getElementSize() { return elementSize; }
     public void setElementSize(int elementSize) { this.elementSize = elementSize; }
@@ -11,8 +13,21 @@ public class TmPoint extends TmDat {
     public int getDataLength() { return dataLength; }
     public void setDataLength(int dataLength) { this.dataLength = dataLength; }
 
-    public byte[] getData() { return data; }
-    public void setData(byte[] data) { this.data = data; }
+    /** Данные в виде массива; срез отображения при этом копируется */
+    public byte[] getData() {
+        if (data == null) return null;
+        if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.remaining()) {
+            return data.array();
+        }
+        byte[] copy = new byte[data.remaining()];
+        data.duplicate().get(copy);
+        return copy;
+    }
+    public void setData(byte[] data) { this.data = data == null ? null : ByteBuffer.wrap(data); }
+
+    /** Данные без копирования; позиция возвращённого буфера не влияет на запись */
+    public ByteBuffer getDataBuffer() { return data == null ? null : data.duplicate(); }
+    public void setDataBuffer(ByteBuffer data) { this.data = data; }
 
     @Override
     public String getValueAsString() {
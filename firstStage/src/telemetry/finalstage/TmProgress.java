@@ -0,0 +1,34 @@
+package telemetry.finalstage;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Ход длительной операции (разбора файла): сколько сделано из скольких и не отменена ли она.
+ * Разбор сообщает о ходе не на каждой записи, а порциями (блок чтения, пачка записей),
+ * поэтому реализация может быть сколько угодно медленной.
+ */
+public interface TmProgress {
+    /** Ничего не отслеживает и никогда не отменяется */
+    TmProgress NONE = (done, total) -> { };
+
+    /**
+     * @param done сколько сделано (например, байт файла)
+     * @param total сколько всего
+     */
+    void update(long done, long total);
+
+    /** Просили ли отменить операцию */
+    default boolean isCancelled() {
+        return false;
+    }
+
+    /**
+     * Прерывает операцию, если её отменили
+     * @throws CancellationException если операция отменена
+     */
+    default void checkCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Операция отменена");
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package telemetry.finalstage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Разреженный список записей ТМ-файла: для каждого блока из STEP записей - смещение его первой
+ * записи, наименьшее и наибольшее время записей блока. Номер первой записи блока - номер блока,
+ * умноженный на STEP. Занимает 24 байта на STEP записей (для файла в 10 ГБ - несколько мегабайт).
+ *
+ * Записи Point разной длины, поэтому без списка до записи N или до времени T можно добраться
+ * только разобрав всё, что лежит перед ней. Со списком разбор начинается прямо с нужного блока
+ * (FileChannel.position, см. TmDecoder.decodeTimeRange и decodeRecords), а до любой записи
+ * остаётся пройти не больше STEP - 1 длин записей (offsetOf, indexAt, findTime для отображённого файла).
+ *
+ * Список строится по ходу любого разбора с начала файла (Builder - получатель записей)
+ * или отдельным просмотром отображённого файла (build) и сохраняется рядом с ТМ-файлом
+ * (файл "имя ТМ-файла.tmidx"). Сохранённый список действителен, пока у ТМ-файла те же размер
+ * и время изменения.
+ */
+public class TmRecordIndex {
+    private static final int MAGIC = 0x544D4958; // "TMIX"
+    private static final int FORMAT_VERSION = 2;
+    private static final int SHIFT = 10;
+    /** Записей в блоке */
+    public static final int STEP = 1 << SHIFT;
+    private static final int PROGRESS_RECORDS = 1 << 16;
+
+    public static final String SUFFIX = ".tmidx";
+
+    private final long[] offsets;
+    private final long[] minTimes;
+    private final long[] maxTimes;
+    private final int blockCount;
+    private final long recordCount;
+    private final long dataEnd;
+
+    private TmRecordIndex(long[] offsets, long[] minTimes, long[] maxTimes, int blockCount,
+                          long recordCount, long dataEnd) {
+        this.offsets = offsets;
+        this.minTimes = minTimes;
+        this.maxTimes = maxTimes;
+        this.blockCount = blockCount;
+        this.recordCount = recordCount;
+        this.dataEnd = dataEnd;
+    }
+
+    public static Path indexPath(String tmFile) {
+        return Paths.get(tmFile + SUFFIX);
+    }
+
+    /**
+     * Просматривает отображённый файл (только длины и время записей)
+     * @throws java.util.concurrent.CancellationException если просмотр отменён
+     */
+    public static TmRecordIndex build(MappedTmFile file, TmProgress progress) {
+        Builder builder = new Builder();
+        long offset = 0;
+        long size = file.size();
+        while (offset < size) {
+            ByteBuffer buf = file.segmentFor(offset);
+            int local = MappedTmFile.localOffset(offset);
+            int length = TmFormat.recordLength(buf, local, buf.limit());
+            if (length < 0 || local + length > buf.limit()) {
+                // Оборванная запись в конце файла
+                break;
+            }
+            long index = builder.nextRecord;
+            if (index % PROGRESS_RECORDS == 0 && index > 0) {
+                progress.update(offset, size);
+                progress.checkCancelled();
+            }
+            builder.add(index, offset, length, TmFormat.milliseconds(buf, local));
+            offset += length;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Сохранённый список ТМ-файла, если он есть и файл с тех пор не менялся, иначе просмотр
+     * отображённого файла (и сохранение нового списка; ошибка сохранения только печатается)
+     */
+    public static TmRecordIndex load(String tmFile, MappedTmFile file, TmProgress progress) {
+        TmRecordIndex index = read(tmFile);
+        if (index == null) {
+            index = build(file, progress);
+            try {
+                index.write(tmFile);
+            } catch (IOException e) {
+                System.err.println("Не удалось сохранить список записей: " + e.getMessage());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Читает сохранённый список
+     * @return список или null, если его нет, он повреждён или ТМ-файл изменился
+     */
+    public static TmRecordIndex read(String tmFile) {
+        Path path = indexPath(tmFile);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Path source = Paths.get(tmFile);
+            if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION || buf.getInt() != STEP
+                    || buf.getLong() != Files.size(source)
+                    || buf.getLong() != Files.getLastModifiedTime(source).toMillis()) {
+                return null;
+            }
+            long recordCount = buf.getLong();
+            long dataEnd = buf.getLong();
+            int blockCount = buf.getInt();
+            if (blockCount != (recordCount + STEP - 1) / STEP) {
+                return null;
+            }
+            long[] offsets = new long[blockCount];
+            long[] minTimes = new long[blockCount];
+            long[] maxTimes = new long[blockCount];
+            // Столбцы читаются целиком
+            buf.asLongBuffer().get(offsets);
+            buf.position(buf.position() + blockCount * 8);
+            buf.asLongBuffer().get(minTimes);
+            buf.position(buf.position() + blockCount * 8);
+            buf.asLongBuffer().get(maxTimes);
+            return new TmRecordIndex(offsets, minTimes, maxTimes, blockCount, recordCount, dataEnd);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Список записей не прочитан: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Сохраняет список рядом с ТМ-файлом (через временный файл)
+     * @throws IOException при ошибках записи
+     */
+    public void write(String tmFile) throws IOException {
+        Path source = Paths.get(tmFile);
+        Path target = indexPath(tmFile);
+        Path tmp = Paths.get(target + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(STEP);
+                out.writeLong(Files.size(source));
+                out.writeLong(Files.getLastModifiedTime(source).toMillis());
+                out.writeLong(recordCount);
+                out.writeLong(dataEnd);
+                out.writeInt(blockCount);
+                for (int b = 0; b < blockCount; b++) {
+                    out.writeLong(offsets[b]);
+                }
+                for (int b = 0; b < blockCount; b++) {
+                    out.writeLong(minTimes[b]);
+                }
+                for (int b = 0; b < blockCount; b++) {
+                    out.writeLong(maxTimes[b]);
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Количество полных записей */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /** Конец последней полной записи; дальше - оборванная запись или конец файла */
+    public long getDataEnd() {
+        return dataEnd;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /** Номер первой записи блока */
+    public long getBlockRecord(int block) {
+        return (long) block << SHIFT;
+    }
+
+    /** Смещение первой записи блока */
+    public long getBlockOffset(int block) {
+        return offsets[block];
+    }
+
+    public long getBlockMinTime(int block) {
+        return minTimes[block];
+    }
+
+    public long getBlockMaxTime(int block) {
+        return maxTimes[block];
+    }
+
+    /** Блок, в котором лежит запись */
+    public int blockOf(long record) {
+        return (int) (record >>> SHIFT);
+    }
+
+    /** Есть ли в блоке записи со временем от from до to включительно (по границам времени блока) */
+    public boolean blockOverlaps(int block, long from, long to) {
+        return minTimes[block] <= to && maxTimes[block] >= from;
+    }
+
+    // Переходы внутри блока - по отображению того же файла
+
+    /** Смещение записи по номеру */
+    public long offsetOf(MappedTmFile file, long index) {
+        if (index < 0 || index >= recordCount) {
+            throw new IndexOutOfBoundsException("Record " + index + " of " + recordCount);
+        }
+        long offset = offsets[blockOf(index)];
+        for (int i = (int) (index & (STEP - 1)); i > 0; i--) {
+            offset += length(file, offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Номер записи, в которую попадает байт со смещением offset
+     * @return номер записи или -1, если смещение за последней полной записью
+     */
+    public long indexAt(MappedTmFile file, long offset) {
+        if (offset < 0 || offset >= dataEnd) {
+            return -1;
+        }
+        int block = Arrays.binarySearch(offsets, 0, blockCount, offset);
+        if (block >= 0) {
+            return getBlockRecord(block);
+        }
+        block = -block - 2;
+        long index = getBlockRecord(block);
+        long start = offsets[block];
+        while (true) {
+            long next = start + length(file, start);
+            if (next > offset) {
+                return index;
+            }
+            start = next;
+            index++;
+        }
+    }
+
+    /**
+     * Первая запись со временем не меньше ms
+     * @return номер записи или -1, если таких нет
+     */
+    public long findTime(MappedTmFile file, long ms) {
+        for (int block = 0; block < blockCount; block++) {
+            if (maxTimes[block] < ms) {
+                continue;
+            }
+            long index = getBlockRecord(block);
+            long offset = offsets[block];
+            while (true) {
+                ByteBuffer buf = file.segmentFor(offset);
+                int local = MappedTmFile.localOffset(offset);
+                if (TmFormat.milliseconds(buf, local) >= ms) {
+                    return index;
+                }
+                offset += TmFormat.recordLength(buf, local, buf.limit());
+                index++;
+            }
+        }
+        return -1;
+    }
+
+    /** Длина записи по смещению; запись должна быть полной */
+    private static int length(MappedTmFile file, long offset) {
+        ByteBuffer buf = file.segmentFor(offset);
+        int local = MappedTmFile.localOffset(offset);
+        return TmFormat.recordLength(buf, local, buf.limit());
+    }
+
+    /**
+     * Строит список по ходу разбора: получает все записи файла (или его части) по порядку.
+     * Если записи пришли не по порядку (например, разбор начат не с той записи), список не строится.
+     */
+    public static class Builder implements TmRecordListener {
+        private long[] offsets = new long[64];
+        private long[] minTimes = new long[64];
+        private long[] maxTimes = new long[64];
+        private int blockCount = 0;
+        // Номер и смещение первой записи части
+        private final long firstRecord;
+        private final long startOffset;
+        // Номер и смещение следующей ожидаемой записи
+        private long nextRecord;
+        private long dataEnd;
+        private boolean broken = false;
+
+        /** Список всего файла, с первой записи */
+        public Builder() {
+            this(0, 0);
+        }
+
+        /**
+         * Список части файла, начинающейся с записи first по смещению offset;
+         * first должен быть номером первой записи блока (кратным STEP), см. append
+         */
+        public Builder(long first, long offset) {
+            if ((first & (STEP - 1)) != 0) {
+                throw new IllegalArgumentException("Часть должна начинаться с первой записи блока: " + first);
+            }
+            this.firstRecord = first;
+            this.startOffset = offset;
+            this.nextRecord = first;
+            this.dataEnd = offset;
+        }
+
+        @Override
+        public void onServiceRecord(TmRecordView record) {
+            add(record.getIndex(), record.getOffset(), record.getLength(), record.getTime());
+        }
+
+        @Override
+        public void onRecord(TmRecordView record) {
+            add(record.getIndex(), record.getOffset(), record.getLength(), record.getTime());
+        }
+
+        void add(long index, long offset, int length, long time) {
+            if (index != nextRecord || offset != dataEnd) {
+                broken = true;
+                return;
+            }
+            long relative = index - firstRecord;
+            int block = (int) (relative >>> SHIFT);
+            if ((relative & (STEP - 1)) == 0) {
+                ensureBlocks(block + 1);
+                offsets[block] = offset;
+                minTimes[block] = time;
+                maxTimes[block] = time;
+                blockCount++;
+            } else {
+                minTimes[block] = Math.min(minTimes[block], time);
+                maxTimes[block] = Math.max(maxTimes[block], time);
+            }
+            nextRecord++;
+            dataEnd = offset + length;
+        }
+
+        private void ensureBlocks(int count) {
+            if (count > offsets.length) {
+                int length = Math.max(count, offsets.length * 2);
+                offsets = Arrays.copyOf(offsets, length);
+                minTimes = Arrays.copyOf(minTimes, length);
+                maxTimes = Arrays.copyOf(maxTimes, length);
+            }
+        }
+
+        /**
+         * Продолжает список следующей частью файла, разобранной отдельно.
+         * Часть должна начинаться сразу за последней записью этого списка, а этот список -
+         * заканчиваться на границе блока (или быть последней частью перед пустой).
+         */
+        public void append(Builder next) {
+            if (next.nextRecord == next.firstRecord && next.startOffset == dataEnd) {
+                broken |= next.broken;
+                return;
+            }
+            if (broken || next.broken || next.firstRecord != nextRecord || next.startOffset != dataEnd) {
+                broken = true;
+                return;
+            }
+            ensureBlocks(blockCount + next.blockCount);
+            System.arraycopy(next.offsets, 0, offsets, blockCount, next.blockCount);
+            System.arraycopy(next.minTimes, 0, minTimes, blockCount, next.blockCount);
+            System.arraycopy(next.maxTimes, 0, maxTimes, blockCount, next.blockCount);
+            blockCount += next.blockCount;
+            nextRecord = next.nextRecord;
+            dataEnd = next.dataEnd;
+        }
+
+        /** Построенный список или null, если записи пришли не по порядку или список не с начала файла */
+        public TmRecordIndex build() {
+            if (broken || firstRecord != 0) {
+                return null;
+            }
+            return new TmRecordIndex(Arrays.copyOf(offsets, blockCount), Arrays.copyOf(minTimes, blockCount),
+                    Arrays.copyOf(maxTimes, blockCount), blockCount, nextRecord, dataEnd);
+        }
+    }
+}
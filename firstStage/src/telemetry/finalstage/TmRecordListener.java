@@ -0,0 +1,54 @@
+package telemetry.finalstage;
+
+/**
+ * Получатель записей, разбираемых TmDecoder.
+ * Представление записи действительно только во время вызова: декодер переиспользует его
+ * и свой буфер, поэтому всё, что нужно сохранить (например, данные Point), следует скопировать.
+ */
+public interface TmRecordListener {
+
+    /** Начало ТМ-файла */
+    default void onStart() {
+    }
+
+    /** Служебная запись (номер параметра 0xFFFF) */
+    default void onServiceRecord(TmRecordView record) {
+    }
+
+    /** Полезная запись любого, в том числе неизвестного, типа */
+    void onRecord(TmRecordView record);
+
+    /**
+     * Конец данных
+     * @param bytes сколько байт файла прочитано
+     */
+    default void onEnd(long bytes) {
+    }
+
+    /**
+     * Объединяет получателей: каждая запись передаётся всем по очереди
+     */
+    static TmRecordListener of(TmRecordListener... listeners) {
+        return new TmRecordListener() {
+            @Override
+            public void onStart() {
+                for (TmRecordListener l : listeners) l.onStart();
+            }
+
+            @Override
+            public void onServiceRecord(TmRecordView record) {
+                for (TmRecordListener l : listeners) l.onServiceRecord(record);
+            }
+
+            @Override
+            public void onRecord(TmRecordView record) {
+                for (TmRecordListener l : listeners) l.onRecord(record);
+            }
+
+            @Override
+            public void onEnd(long bytes) {
+                for (TmRecordListener l : listeners) l.onEnd(bytes);
+            }
+        };
+    }
+}
@@ -0,0 +1,139 @@
+package telemetry.finalstage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Лёгкое представление одной записи ТМ-файла.
+ * Объект переиспользуется: moveTo переводит его на другую запись без копирования байтов,
+ * геттеры читают поля прямо из отображения (или из буфера чтения TmDecoder).
+ */
+public class TmRecordView {
+    private final MappedTmFile file;   // null, если запись лежит в буфере TmDecoder
+
+    private long index = -1;
+    private long offset;
+    private ByteBuffer buffer;
+    private int bufferOffset;
+
+    TmRecordView(MappedTmFile file) {
+        this.file = file;
+    }
+
+    TmRecordView() {
+        this(null);
+    }
+
+    /**
+     * Переводит представление на запись с указанным номером
+     * @return это же представление
+     */
+    public TmRecordView moveTo(long index) {
+        return moveTo(file.getOffset(index), index);
+    }
+
+    /**
+     * Переводит представление на запись отображённого файла, смещение которой уже известно
+     * @return это же представление
+     */
+    TmRecordView moveTo(long offset, long index) {
+        reset(file.segmentFor(offset), MappedTmFile.localOffset(offset), offset, index);
+        return this;
+    }
+
+    /**
+     * Переводит представление на запись в произвольном буфере
+     * @param buffer буфер, в котором лежит запись
+     * @param bufferOffset смещение записи в буфере
+     * @param offset смещение записи в файле
+     * @param index номер записи в файле
+     */
+    void reset(ByteBuffer buffer, int bufferOffset, long offset, long index) {
+        this.buffer = buffer;
+        this.bufferOffset = bufferOffset;
+        this.offset = offset;
+        this.index = index;
+    }
+
+    public long getIndex() { return index; }
+    public long getOffset() { return offset; }
+
+    /** Буфер сегмента, в котором лежит запись */
+    ByteBuffer getBuffer() { return buffer; }
+
+    /** Смещение записи внутри буфера сегмента */
+    int getBufferOffset() { return bufferOffset; }
+
+    public int getLength() { return TmFormat.recordLength(buffer, bufferOffset, buffer.limit()); }
+
+    public boolean isSystemMessage() { return TmFormat.isSystemMessage(buffer, bufferOffset); }
+    public int getParamNumber() { return TmFormat.paramNumber(buffer, bufferOffset); }
+    public long getTime() { return TmFormat.milliseconds(buffer, bufferOffset); }
+    public int getDimensionCode() { return TmFormat.dimensionCode(buffer, bufferOffset); }
+    public int getAttribute() { return TmFormat.attribute(buffer, bufferOffset); }
+    public int getValueType() { return TmFormat.valueType(buffer, bufferOffset); }
+    public int getIntValue() { return TmFormat.intValue(buffer, bufferOffset); }
+    public double getDoubleValue() { return TmFormat.doubleValue(buffer, bufferOffset); }
+    public int getCodeLength() { return TmFormat.codeLength(buffer, bufferOffset); }
+    public int getElementSize() { return TmFormat.elementSize(buffer, bufferOffset); }
+    public int getPointLength() { return TmFormat.pointLength(buffer, bufferOffset); }
+
+    /** Данные Point как срез отображения (только для чтения, без копирования) */
+    public ByteBuffer getPointData() {
+        return buffer.slice(bufferOffset + TmFormat.POINT_HEADER_SIZE, getPointLength()).asReadOnlyBuffer();
+    }
+
+    /** Копия данных Point; остаётся верной после перехода к другой записи */
+    public byte[] copyPointData() {
+        byte[] copy = new byte[getPointLength()];
+        buffer.get(bufferOffset + TmFormat.POINT_HEADER_SIZE, copy);
+        return copy;
+    }
+
+    /**
+     * Создаёт объект записи. Все значения копируются, объект не зависит от буфера.
+     * @param name имя параметра
+     * @param dimension строка размерности
+     */
+    public TmDat toTmDat(String name, String dimension) {
+        TmDat record;
+        int type = getValueType();
+        switch (type) {
+            case TmFormat.TYPE_LONG: {
+                TmLong r = new TmLong();
+                r.setValue(getIntValue());
+                record = r;
+                break;
+            }
+            case TmFormat.TYPE_DOUBLE: {
+                TmDouble r = new TmDouble();
+                r.setValue(getDoubleValue());
+                record = r;
+                break;
+            }
+            case TmFormat.TYPE_CODE: {
+                TmCode r = new TmCode();
+                r.setCodeLength(getCodeLength());
+                r.setCodeValue(getIntValue());
+                record = r;
+                break;
+            }
+            case TmFormat.TYPE_POINT: {
+                TmPoint r = new TmPoint();
+                r.setDataLength(getPointLength());
+                r.setData(copyPointData());
+                record = r;
+                break;
+            }
+            default:
+                record = new TmUnknown();
+                break;
+        }
+        record.setNumber(getParamNumber());
+        record.setName(name);
+        record.setTime(getTime());
+        record.setDimension(dimension);
+        record.setAttribute(getAttribute());
+        record.setValueType(type);
+        return record;
+    }
+}
@@ -0,0 +1,334 @@
+package telemetry.finalstage;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Все значения одного параметра в порядке поступления.
+ * Значения хранятся в виде примитивов; объекты TmDat создаются только по запросу (get, asList).
+ * Имя параметра одно на всю серию, размерность хранится кодом и переводится в строку через хранилище.
+ *
+ * Серия помнит, упорядочена ли она по времени: после sortByTime (ReadTMI вызывает её один раз
+ * после загрузки) повторная сортировка ничего не стоит, пока не придёт запись "из прошлого".
+ * Выборки по времени (lowerBound, upperBound, getRange) - двоичный поиск по столбцу времени.
+ */
+public abstract class TmSeries {
+    protected final TmStore store;
+    protected final String name;
+    protected final int number;   // номер параметра первой записи серии
+    // Записи упорядочены по времени
+    private boolean sortedByTime = true;
+    // Сколько раз записи переставлялись (построенные по номерам записей сводки устаревают)
+    private int reorderCount = 0;
+    // Уровни прореживания для графика (строятся при первом запросе)
+    private TmSeriesPyramid pyramid;
+
+    protected TmSeries(TmStore store, String name, int number) {
+        this.store = store;
+        this.name = name;
+        this.number = number;
+    }
+
+    public String getName() { return name; }
+
+    /** Номер параметра серии (номер её первой записи) */
+    public int getParamNumber() { return number; }
+
+    /** Количество записей в серии */
+    public abstract int size();
+
+    public abstract int getNumber(int i);
+    public abstract long getTime(int i);
+    public abstract int getDimensionCode(int i);
+    public abstract int getAttribute(int i);
+    public abstract int getValueType(int i);
+
+    /** Значение Long или Code */
+    public abstract int getIntValue(int i);
+    /** Значение Double */
+    public abstract double getDoubleValue(int i);
+    /** Длина кода в разрядах (только для Code) */
+    public abstract int getCodeLength(int i);
+    /** Данные Point (только для Point) */
+    public abstract ByteBuffer getPointData(int i);
+
+    public String getDimension(int i) {
+        return store.dimensionName(getDimensionCode(i));
+    }
+
+    // Добавление записей
+
+    abstract void appendLong(int number, long time, int dimensionCode, int attribute, int value);
+    abstract void appendDouble(int number, long time, int dimensionCode, int attribute, double value);
+    abstract void appendCode(int number, long time, int dimensionCode, int attribute, int codeLength, int value);
+    abstract void appendPoint(int number, long time, int dimensionCode, int attribute, ByteBuffer data);
+    abstract void appendUnknown(int number, long time, int dimensionCode, int attribute, int valueType);
+
+    /**
+     * Добавляет в конец все записи другой серии
+     */
+    void appendAll(TmSeries other) {
+        for (int i = 0; i < other.size(); i++) {
+            appendFrom(other, i);
+        }
+    }
+
+    /**
+     * Сливает по времени записи нескольких серий и добавляет их в конец этой (k-путевое слияние).
+     * Каждая серия упорядочивается заранее; при равном времени записи идут в порядке серий
+     * в списке, внутри серии порядок сохраняется. Очередь - двоичная куча номеров серий,
+     * упорядоченная по времени их текущей записи.
+     */
+    void mergeByTime(List<TmSeries> sources) {
+        int k = sources.size();
+        TmSeries[] series = sources.toArray(new TmSeries[0]);
+        int[] positions = new int[k];
+        int[] heap = new int[k];
+        int heapSize = 0;
+        for (int s = 0; s < k; s++) {
+            series[s].sortByTime();
+            if (series[s].size() > 0) {
+                heap[heapSize++] = s;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, i, series, positions);
+        }
+        while (heapSize > 0) {
+            int s = heap[0];
+            appendFrom(series[s], positions[s]++);
+            if (positions[s] == series[s].size()) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, 0, series, positions);
+        }
+    }
+
+    private static void siftDown(int[] heap, int heapSize, int i, TmSeries[] series, int[] positions) {
+        while (true) {
+            int least = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heapSize && before(heap[left], heap[least], series, positions)) {
+                least = left;
+            }
+            if (right < heapSize && before(heap[right], heap[least], series, positions)) {
+                least = right;
+            }
+            if (least == i) {
+                return;
+            }
+            int tmp = heap[i];
+            heap[i] = heap[least];
+            heap[least] = tmp;
+            i = least;
+        }
+    }
+
+    /** Идёт ли текущая запись серии a раньше текущей записи серии b */
+    private static boolean before(int a, int b, TmSeries[] series, int[] positions) {
+        long timeA = series[a].getTime(positions[a]);
+        long timeB = series[b].getTime(positions[b]);
+        return timeA < timeB || (timeA == timeB && a < b);
+    }
+
+    /**
+     * Добавляет в конец копию записи i другой серии
+     */
+    private void appendFrom(TmSeries other, int i) {
+        int num = other.getNumber(i);
+        long time = other.getTime(i);
+        int dimensionCode = other.getDimensionCode(i);
+        int attribute = other.getAttribute(i);
+        int type = other.getValueType(i);
+        switch (type) {
+            case TmFormat.TYPE_LONG:
+                appendLong(num, time, dimensionCode, attribute, other.getIntValue(i));
+                break;
+            case TmFormat.TYPE_DOUBLE:
+                appendDouble(num, time, dimensionCode, attribute, other.getDoubleValue(i));
+                break;
+            case TmFormat.TYPE_CODE:
+                appendCode(num, time, dimensionCode, attribute, other.getCodeLength(i), other.getIntValue(i));
+                break;
+            case TmFormat.TYPE_POINT:
+                appendPoint(num, time, dimensionCode, attribute, other.getPointData(i));
+                break;
+            default:
+                appendUnknown(num, time, dimensionCode, attribute, type);
+                break;
+        }
+    }
+
+    /**
+     * Отмечает, что в конец серии добавляется запись со временем time.
+     * Наследники вызывают до увеличения размера.
+     */
+    protected final void trackOrder(long time) {
+        if (sortedByTime && size() > 0 && time < getTime(size() - 1)) {
+            sortedByTime = false;
+        }
+    }
+
+    /**
+     * Упорядочивает записи по времени; записи с одинаковым временем сохраняют порядок
+     */
+    public void sortByTime() {
+        if (!sortedByTime) {
+            sortRows();
+            sortedByTime = true;
+            reorderCount++;
+        }
+    }
+
+    public boolean isSortedByTime() {
+        return sortedByTime;
+    }
+
+    int getReorderCount() {
+        return reorderCount;
+    }
+
+    /**
+     * Уровни прореживания серии для графика; сами уровни строятся (и достраиваются
+     * после новых записей) при первом запросе к ним
+     */
+    public synchronized TmSeriesPyramid getPyramid() {
+        if (pyramid == null) {
+            pyramid = new TmSeriesPyramid(this);
+        }
+        return pyramid;
+    }
+
+    /**
+     * Переставляет записи в порядке времени (устойчиво)
+     */
+    protected abstract void sortRows();
+
+    /**
+     * Вызывается после загрузки: серия может освободить буферы, нужные только для добавления
+     * (CompressedTmSeries сжимает последний блок). Добавлять записи после этого можно.
+     */
+    void compact() {
+    }
+
+    // Выборки по времени. Серия при необходимости сначала упорядочивается.
+
+    /**
+     * Номер первой записи со временем не раньше time (size(), если таких нет)
+     */
+    public int lowerBound(long time) {
+        sortByTime();
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getTime(middle) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Номер первой записи со временем позже time (size(), если таких нет)
+     */
+    public int upperBound(long time) {
+        sortByTime();
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getTime(middle) <= time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Записи со временем от from до to включительно, без просмотра остальных записей.
+     * Список - окно серии; элементы создаются при обращении.
+     */
+    public List<TmDat> getRange(long from, long to) {
+        int first = lowerBound(from);
+        int last = Math.max(first, upperBound(to));
+        return asList().subList(first, last);
+    }
+
+    /**
+     * Создаёт объект записи с указанным номером
+     */
+    public TmDat get(int i) {
+        TmDat record;
+        int type = getValueType(i);
+        switch (type) {
+            case TmFormat.TYPE_LONG: {
+                TmLong r = new TmLong();
+                r.setValue(getIntValue(i));
+                record = r;
+                break;
+            }
+            case TmFormat.TYPE_DOUBLE: {
+                TmDouble r = new TmDouble();
+                r.setValue(getDoubleValue(i));
+                record = r;
+                break;
+            }
+            case TmFormat.TYPE_CODE: {
+                TmCode r = new TmCode();
+                r.setCodeLength(getCodeLength(i));
+                r.setCodeValue(getIntValue(i));
+                r.setText(store.codeText(getNumber(i), r.getCodeValue()));
+                record = r;
+                break;
+            }
+            case TmFormat.TYPE_POINT: {
+                TmPoint r = new TmPoint();
+                ByteBuffer data = getPointData(i);
+                r.setDataLength(data.remaining());
+                r.setDataBuffer(data);
+                record = r;
+                break;
+            }
+            default:
+                record = new TmUnknown();
+                break;
+        }
+        record.setNumber(getNumber(i));
+        record.setName(name);
+        record.setTime(getTime(i));
+        record.setDimension(getDimension(i));
+        record.setAttribute(getAttribute(i));
+        record.setValueType(type);
+        return record;
+    }
+
+    /**
+     * Серия как список записей; элементы создаются при каждом обращении
+     */
+    public List<TmDat> asList() {
+        return new RecordList();
+    }
+
+    private class RecordList extends AbstractList<TmDat> implements RandomAccess {
+        @Override
+        public TmDat get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Record " + index + " of " + size());
+            }
+            return TmSeries.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return TmSeries.this.size();
+        }
+    }
+}
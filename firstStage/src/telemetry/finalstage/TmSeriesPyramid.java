@@ -0,0 +1,296 @@
+package telemetry.finalstage;
+
+import java.util.Arrays;
+
+/**
+ * Уровни прореживания серии для графика (как уровни mipmap у текстур).
+ *
+ * Уровень 0 - минимум, максимум, сумма и количество числовых значений (Long и Double)
+ * в каждой группе из 16 соседних записей упорядоченной серии, уровень k - в группах из 16 * 2^k
+ * записей, собранных из пар групп уровня k - 1. Групп на всех уровнях вместе - около восьмой
+ * части количества записей (примерно 3,5 байта на запись).
+ *
+ * Запрос query делит интервал времени на столбцы (обычно по пикселю) и собирает для каждого
+ * минимум, максимум и среднее. Интервал покрывается самыми крупными группами, целиком
+ * попадающими в один столбец, и только на границах столбцов - отдельными записями.
+ * Поэтому время запроса зависит от числа столбцов, а не от числа записей в интервале,
+ * а выбросы не теряются, в отличие от простой выборки каждой n-й точки.
+ *
+ * Уровни строит update, обычно в фоновом потоке; после новых записей (режим слежения)
+ * они достраиваются только на хвосте, а если серию пришлось переупорядочить - строятся заново.
+ * update сам серию не упорядочивает и не меняет: его вызывают для упорядоченной серии либо в потоке,
+ * который её пополняет, либо под TmStore.getLock().readLock(), пока пополнение идёт под writeLock.
+ *
+ * query не ждёт построения: построенные уровни публикуются целиком (volatile), и выборка берёт
+ * последние опубликованные. Записи, ещё не вошедшие в уровни, и уровни устаревшего порядка записей
+ * заменяются отдельными записями - результат тот же, только дольше. Поэтому query можно вызывать
+ * из потока событий, пока уровни строятся в фоне.
+ */
+public class TmSeriesPyramid {
+    // Записей в группе уровня 0: 1 << BASE_SHIFT
+    private static final int BASE_SHIFT = 4;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final TmSeries series;
+
+    // Последние опубликованные уровни
+    private volatile Levels levels = new Levels(-1, 0, new int[0],
+            new double[0][], new double[0][], new double[0][], new int[0][]);
+
+    TmSeriesPyramid(TmSeries series) {
+        this.series = series;
+    }
+
+    /**
+     * Построенные уровни. Массивы уровней могут быть длиннее groupCounts: следующий update
+     * дописывает группы за их концом, не трогая уже опубликованные.
+     */
+    private static final class Levels {
+        // Сколько записей серии учтено и при каком порядке записей
+        final int reorders;
+        final int size;
+        // Количество полных групп на каждом уровне
+        final int[] groupCounts;
+        final double[][] mins;
+        final double[][] maxs;
+        final double[][] sums;
+        final int[][] counts;
+
+        Levels(int reorders, int size, int[] groupCounts,
+               double[][] mins, double[][] maxs, double[][] sums, int[][] counts) {
+            this.reorders = reorders;
+            this.size = size;
+            this.groupCounts = groupCounts;
+            this.mins = mins;
+            this.maxs = maxs;
+            this.sums = sums;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * Строит или достраивает уровни по текущим записям серии
+     * @throws IllegalStateException если серия не упорядочена по времени
+     */
+    public synchronized void update() {
+        if (!series.isSortedByTime()) {
+            throw new IllegalStateException("Серия " + series.getName() + " не упорядочена по времени");
+        }
+        Levels old = levels;
+        int size = series.size();
+        int reorders = series.getReorderCount();
+        boolean rebuild = old.reorders != reorders || size < old.size;
+        int oldLevels = rebuild ? 0 : old.groupCounts.length;
+
+        int levelCount = 0;
+        for (int groups = size >>> BASE_SHIFT; groups > 0; groups >>>= 1) {
+            levelCount++;
+        }
+        levelCount = Math.max(levelCount, oldLevels);
+        // Внешние массивы новые, внутренние - прежние, пока в них хватает места
+        int[] groupCounts = new int[levelCount];
+        double[][] mins = new double[levelCount][];
+        double[][] maxs = new double[levelCount][];
+        double[][] sums = new double[levelCount][];
+        int[][] counts = new int[levelCount][];
+        for (int level = 0; level < levelCount; level++) {
+            if (level < oldLevels) {
+                groupCounts[level] = old.groupCounts[level];
+                mins[level] = old.mins[level];
+                maxs[level] = old.maxs[level];
+                sums[level] = old.sums[level];
+                counts[level] = old.counts[level];
+            } else {
+                mins[level] = new double[INITIAL_CAPACITY];
+                maxs[level] = new double[INITIAL_CAPACITY];
+                sums[level] = new double[INITIAL_CAPACITY];
+                counts[level] = new int[INITIAL_CAPACITY];
+            }
+        }
+
+        int groups = size >>> BASE_SHIFT;
+        for (int level = 0; groups > 0; level++, groups >>>= 1) {
+            if (groups > counts[level].length) {
+                int capacity = Math.max(groups, counts[level].length * 2);
+                mins[level] = Arrays.copyOf(mins[level], capacity);
+                maxs[level] = Arrays.copyOf(maxs[level], capacity);
+                sums[level] = Arrays.copyOf(sums[level], capacity);
+                counts[level] = Arrays.copyOf(counts[level], capacity);
+            }
+            for (int g = groupCounts[level]; g < groups; g++) {
+                if (level == 0) {
+                    buildGroup(g, mins[0], maxs[0], sums[0], counts[0]);
+                } else {
+                    joinGroups(level, g, mins, maxs, sums, counts);
+                }
+            }
+            groupCounts[level] = groups;
+        }
+        levels = new Levels(reorders, size, groupCounts, mins, maxs, sums, counts);
+    }
+
+    /** Количество построенных уровней */
+    public int getLevelCount() {
+        return levels.groupCounts.length;
+    }
+
+    /**
+     * Минимум, максимум и среднее числовых значений по столбцам интервала времени.
+     * Берутся последние построенные уровни (см. update), остальное - по отдельным записям.
+     * Серия должна быть упорядочена.
+     * @param from начало интервала, мс (Long.MIN_VALUE - с первой записи)
+     * @param to конец интервала включительно, мс (Long.MAX_VALUE - до последней записи)
+     * @param columns количество столбцов (например, ширина графика в пикселях)
+     */
+    public Envelope query(long from, long to, int columns) {
+        Levels built = levels;
+        // Уровни прежнего порядка записей к серии уже не относятся
+        int levelCount = built.reorders == series.getReorderCount() ? built.groupCounts.length : 0;
+        int first = series.lowerBound(from);
+        int last = series.upperBound(to);
+        if (first >= last || columns <= 0) {
+            return new Envelope(from, to, Math.max(columns, 0), 0);
+        }
+        // Открытые границы - по крайним записям интервала
+        long start = Math.max(from, series.getTime(first));
+        long end = Math.min(to, series.getTime(last - 1));
+        Envelope envelope = new Envelope(start, end, columns, last - first);
+
+        int i = first;
+        while (i < last) {
+            int column = envelope.column(series.getTime(i));
+            // Наибольшая полная группа, которая начинается с записи i и целиком лежит в столбце
+            int level = -1;
+            for (int k = 0; k < levelCount; k++) {
+                int shift = BASE_SHIFT + k;
+                int groupSize = 1 << shift;
+                if ((i & (groupSize - 1)) != 0 || last - i < groupSize || (i >>> shift) >= built.groupCounts[k]
+                        || envelope.column(series.getTime(i + groupSize - 1)) != column) {
+                    break;
+                }
+                level = k;
+            }
+            if (level < 0) {
+                double value = value(i);
+                if (!Double.isNaN(value)) {
+                    envelope.add(column, value, value, value, 1);
+                }
+                i++;
+            } else {
+                int g = i >>> (BASE_SHIFT + level);
+                if (built.counts[level][g] > 0) {
+                    envelope.add(column, built.mins[level][g], built.maxs[level][g],
+                            built.sums[level][g], built.counts[level][g]);
+                }
+                i += 1 << (BASE_SHIFT + level);
+            }
+        }
+        return envelope;
+    }
+
+    /** Числовое значение записи; NaN для Code, Point, неизвестных типов и не-чисел */
+    private double value(int i) {
+        switch (series.getValueType(i)) {
+            case TmFormat.TYPE_LONG:
+                return series.getIntValue(i);
+            case TmFormat.TYPE_DOUBLE: {
+                double value = series.getDoubleValue(i);
+                return Double.isFinite(value) ? value : Double.NaN;
+            }
+            default:
+                return Double.NaN;
+        }
+    }
+
+    private void buildGroup(int g, double[] mins, double[] maxs, double[] sums, int[] counts) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        int count = 0;
+        int from = g << BASE_SHIFT;
+        int to = from + (1 << BASE_SHIFT);
+        for (int i = from; i < to; i++) {
+            double value = value(i);
+            if (!Double.isNaN(value)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+                count++;
+            }
+        }
+        mins[g] = min;
+        maxs[g] = max;
+        sums[g] = sum;
+        counts[g] = count;
+    }
+
+    private static void joinGroups(int level, int g, double[][] mins, double[][] maxs, double[][] sums,
+                                   int[][] counts) {
+        int below = level - 1;
+        int a = 2 * g;
+        int b = a + 1;
+        mins[level][g] = Math.min(mins[below][a], mins[below][b]);
+        maxs[level][g] = Math.max(maxs[below][a], maxs[below][b]);
+        sums[level][g] = sums[below][a] + sums[below][b];
+        counts[level][g] = counts[below][a] + counts[below][b];
+    }
+
+    /**
+     * Результат выборки: столбцы равной длительности от getFrom до getTo включительно
+     */
+    public static final class Envelope {
+        private final long from;
+        private final long to;
+        private final int records;
+        private final double[] mins;
+        private final double[] maxs;
+        private final double[] sums;
+        private final int[] counts;
+
+        Envelope(long from, long to, int columns, int records) {
+            this.from = from;
+            this.to = to;
+            this.records = records;
+            mins = new double[columns];
+            maxs = new double[columns];
+            sums = new double[columns];
+            counts = new int[columns];
+        }
+
+        int column(long time) {
+            long span = to - from + 1;
+            return (int) ((time - from) * counts.length / span);
+        }
+
+        void add(int column, double min, double max, double sum, int count) {
+            if (counts[column] == 0) {
+                mins[column] = min;
+                maxs[column] = max;
+            } else {
+                mins[column] = Math.min(mins[column], min);
+                maxs[column] = Math.max(maxs[column], max);
+            }
+            sums[column] += sum;
+            counts[column] += count;
+        }
+
+        public long getFrom() { return from; }
+        public long getTo() { return to; }
+        public int getColumns() { return counts.length; }
+        /** Записей серии в интервале (любого типа) */
+        public int getRecords() { return records; }
+
+        /** Время начала столбца, мс */
+        public long getColumnTime(int column) {
+            return from + (to - from + 1) * column / counts.length;
+        }
+
+        /** Числовых значений в столбце (0 - столбец пуст) */
+        public int getCount(int column) { return counts[column]; }
+        public double getMin(int column) { return counts[column] > 0 ? mins[column] : Double.NaN; }
+        public double getMax(int column) { return counts[column] > 0 ? maxs[column] : Double.NaN; }
+        public double getAverage(int column) {
+            return counts[column] > 0 ? sums[column] / counts[column] : Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package telemetry.finalstage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Хранилище разобранных записей: по одной серии на имя параметра.
+ * Серия для номера параметра находится один раз и дальше берётся из массива по номеру,
+ * имена и строки размерностей берутся из TmMetadata и общие для всех записей.
+ */
+public class TmStore implements Closeable {
+    private static final int PARAM_COUNT = 0x10000;
+
+    private final TmMetadata metadata;
+
+    private final Map<String, TmSeries> seriesByName = new TreeMap<>();
+    // Серии по номеру параметра: для известных типов и для неизвестных отдельно
+    private final TmSeries[] byNumber = new TmSeries[PARAM_COUNT];
+    private final TmSeries[] unknownByNumber = new TmSeries[PARAM_COUNT];
+
+    private long recordCount = 0;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public TmStore(Dim dim, DatXML datXML) {
+        this(new TmMetadata(dim, datXML));
+    }
+
+    /**
+     * @param metadata сведения из словарей; могут быть общими для нескольких хранилищ
+     */
+    public TmStore(TmMetadata metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * Создаёт пустую серию; наследники могут хранить серии иначе
+     */
+    protected TmSeries createSeries(String name, int number) {
+        return new HeapTmSeries(this, name, number);
+    }
+
+    // Добавление записей
+
+    public void appendLong(int number, long time, int dimensionCode, int attribute, int value) {
+        seriesFor(number).appendLong(number, time, dimensionCode, attribute, value);
+        recordCount++;
+    }
+
+    public void appendDouble(int number, long time, int dimensionCode, int attribute, double value) {
+        seriesFor(number).appendDouble(number, time, dimensionCode, attribute, value);
+        recordCount++;
+    }
+
+    public void appendCode(int number, long time, int dimensionCode, int attribute, int codeLength, int value) {
+        seriesFor(number).appendCode(number, time, dimensionCode, attribute, codeLength, value);
+        recordCount++;
+    }
+
+    public void appendPoint(int number, long time, int dimensionCode, int attribute, ByteBuffer data) {
+        seriesFor(number).appendPoint(number, time, dimensionCode, attribute, data);
+        recordCount++;
+    }
+
+    public void appendUnknown(int number, long time, int dimensionCode, int attribute, int valueType) {
+        TmSeries series = unknownByNumber[number];
+        if (series == null) {
+            series = seriesNamed(metadata.paramName(number) + " [unknown type]", number);
+            unknownByNumber[number] = series;
+        }
+        series.appendUnknown(number, time, dimensionCode, attribute, valueType);
+        recordCount++;
+    }
+
+    private TmSeries seriesFor(int number) {
+        TmSeries series = byNumber[number];
+        if (series == null) {
+            series = seriesNamed(metadata.paramName(number), number);
+            byNumber[number] = series;
+        }
+        return series;
+    }
+
+    private TmSeries seriesNamed(String name, int number) {
+        return seriesByName.computeIfAbsent(name, k -> createSeries(k, number));
+    }
+
+    /**
+     * Регистрирует готовую серию (например, восстановленную из кэша)
+     */
+    void addSeries(TmSeries series) {
+        seriesByName.put(series.getName(), series);
+        recordCount += series.size();
+    }
+
+    /**
+     * Добавляет в конец серий все записи другого хранилища
+     */
+    public void appendAll(TmStore other) {
+        for (TmSeries series : other.seriesByName.values()) {
+            if (series.size() > 0) {
+                seriesNamed(series.getName(), series.getNumber(0)).appendAll(series);
+            }
+        }
+        recordCount += other.recordCount;
+    }
+
+    /**
+     * Добавляет записи нескольких хранилищ, сливая серии одного параметра по времени
+     * (см. TmSeries.mergeByTime). При равном времени записи идут в порядке хранилищ в списке.
+     */
+    public void mergeByTime(List<TmStore> parts) {
+        Map<String, List<TmSeries>> byName = new TreeMap<>();
+        for (TmStore part : parts) {
+            for (TmSeries series : part.seriesByName.values()) {
+                if (series.size() > 0) {
+                    byName.computeIfAbsent(series.getName(), k -> new ArrayList<>()).add(series);
+                }
+            }
+            recordCount += part.recordCount;
+        }
+        for (Map.Entry<String, List<TmSeries>> entry : byName.entrySet()) {
+            List<TmSeries> sources = entry.getValue();
+            seriesNamed(entry.getKey(), sources.get(0).getNumber(0)).mergeByTime(sources);
+        }
+    }
+
+    /**
+     * Строка размерности по коду. Коды меньше 32 - форматы, а не размерности.
+     */
+    public String dimensionName(int code) {
+        return metadata.dimensionName(code);
+    }
+
+    /** Текст кода параметра из словаря или null */
+    public String codeText(int number, int code) {
+        return metadata.codeText(number, code);
+    }
+
+    /** Сведения из словарей, по которым строятся имена и размерности */
+    public TmMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Блокировка для хранилища, которое пополняется, пока его читают другие потоки (режим слежения).
+     * Поток, который добавляет записи, добавляет и упорядочивает их под writeLock, фоновые задачи
+     * читают под readLock; сам пополняющий поток читает без блокировки.
+     * Хранилище не берёт её само: после загрузки, когда записи не добавляются, она не нужна.
+     */
+    public ReadWriteLock getLock() {
+        return lock;
+    }
+
+    // Чтение
+
+    public TmSeries getSeries(String name) {
+        return seriesByName.get(name);
+    }
+
+    /**
+     * Упорядочивает по времени все серии; уже упорядоченные не трогаются
+     */
+    public void sortByTime() {
+        for (TmSeries series : seriesByName.values()) {
+            series.sortByTime();
+        }
+    }
+
+    /**
+     * Освобождает буферы добавления всех серий (см. TmSeries.compact); ReadTMI вызывает
+     * после загрузки и упорядочения
+     */
+    public void compact() {
+        for (TmSeries series : seriesByName.values()) {
+            series.compact();
+        }
+    }
+
+    /** Все серии в порядке имён */
+    public Collection<TmSeries> getAllSeries() {
+        return Collections.unmodifiableCollection(seriesByName.values());
+    }
+
+    /** Имена параметров в алфавитном порядке */
+    public List<String> getNames() {
+        return new ArrayList<>(seriesByName.keySet());
+    }
+
+    public int getSeriesCount() {
+        return seriesByName.size();
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Серии в виде списков записей, упорядоченных по имени параметра
+     */
+    public Map<String, List<TmDat>> asRecordMap() {
+        Map<String, List<TmDat>> result = new TreeMap<>();
+        for (Map.Entry<String, TmSeries> entry : seriesByName.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().asList());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Все записи подряд, сгруппированные по параметрам
+     */
+    public List<TmDat> asRecordList() {
+        TmSeries[] series = seriesByName.values().toArray(new TmSeries[0]);
+        int[] starts = new int[series.length + 1];
+        for (int i = 0; i < series.length; i++) {
+            starts[i + 1] = starts[i] + series[i].size();
+        }
+        return new AllRecords(series, starts);
+    }
+
+    /**
+     * Освобождает ресурсы хранилища; у хранилища в куче их нет
+     */
+    @Override
+    public void close() throws IOException {
+    }
+
+    private static class AllRecords extends AbstractList<TmDat> implements RandomAccess {
+        private final TmSeries[] series;
+        private final int[] starts;
+
+        AllRecords(TmSeries[] series, int[] starts) {
+            this.series = series;
+            this.starts = starts;
+        }
+
+        @Override
+        public TmDat get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Record " + index + " of " + size());
+            }
+            // Пустых серий не бывает, поэтому границы строго возрастают
+            int s = Arrays.binarySearch(starts, index);
+            if (s < 0) {
+                s = -s - 2;
+            }
+            return series[s].get(index - starts[s]);
+        }
+
+        @Override
+        public int size() {
+            return starts[starts.length - 1];
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package telemetry.finalstage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Слежение за ТМ-файлом, который ещё дописывается (режим "follow").
+ * Запоминает смещение и незавершённую запись (в том числе Point, оборванный посередине);
+ * каждый вызов poll дочитывает только появившиеся байты и передаёт новые записи получателю.
+ * poll с пределом разбирает не больше заданного количества байт, чтобы поток, который его вызывает,
+ * не занимать надолго, если дописано много (например, за время долгой загрузки); остальное
+ * разбирается следующими вызовами.
+ *
+ * Объект не потокобезопасен: poll нужно вызывать из того потока, который читает результаты
+ * (в интерфейсе - из потока событий, по таймеру).
+ */
+public class TmTail implements Closeable {
+    private final FileChannel channel;
+    private final TmDecoder decoder;
+    private final TmRecordListener listener;
+    // Последний poll остановился по пределу
+    private boolean behind = false;
+
+    /**
+     * @param filename путь к ТМ-файлу
+     * @param offset смещение первой ещё не разобранной записи
+     * @param recordIndex номер этой записи в файле
+     * @param listener получатель новых записей
+     * @throws IOException если файл не открывается
+     */
+    public TmTail(String filename, long offset, long recordIndex, TmRecordListener listener) throws IOException {
+        this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        this.decoder = new TmDecoder(offset, recordIndex);
+        this.listener = listener;
+        channel.position(offset);
+    }
+
+    /**
+     * Разбирает записи, дописанные с прошлого вызова
+     * @return количество новых полных записей (служебных и полезных)
+     * @throws IOException при ошибках чтения или если файл стал короче (перезаписан)
+     */
+    public int poll() throws IOException {
+        return poll(Long.MAX_VALUE);
+    }
+
+    /**
+     * Разбирает записи, дописанные с прошлого вызова, но не больше maxBytes байт
+     * @return количество новых полных записей (служебных и полезных)
+     * @throws IOException при ошибках чтения или если файл стал короче (перезаписан)
+     * @see #isBehind()
+     */
+    public int poll(long maxBytes) throws IOException {
+        if (channel.size() < decoder.getReadPosition()) {
+            throw new IOException("ТМ-файл стал короче прочитанного: " + channel.size()
+                    + " < " + decoder.getReadPosition() + " байт");
+        }
+        long before = decoder.getRecordIndex();
+        behind = decoder.decode(channel, listener, maxBytes);
+        return (int) (decoder.getRecordIndex() - before);
+    }
+
+    /** Остановился ли последний poll по пределу: в файле, возможно, остались неразобранные записи */
+    public boolean isBehind() {
+        return behind;
+    }
+
+    /** Смещение первой ещё не разобранной записи */
+    public long getPosition() {
+        return decoder.getPosition();
+    }
+
+    /** Есть ли в буфере начало записи, которая ещё не дописана */
+    public boolean hasPartialRecord() {
+        return decoder.getReadPosition() > decoder.getPosition();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
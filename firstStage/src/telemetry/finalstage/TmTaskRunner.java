@@ -0,0 +1,277 @@
+package telemetry.finalstage;
+
+import javax.swing.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Выполнение длительных действий интерфейса вне потока событий.
+ *
+ * Каждое задание запускается под ключом ("load", "query" и т.п.): новое задание с тем же ключом
+ * отменяет предыдущее, и результат отменённого уже не попадает в интерфейс. Результат и ошибка
+ * передаются в поток событий. Задание получает TmProgress: о ходе работы оно сообщает туда,
+ * а индикатор (если задан) показывает процент и оставшееся время. Обновления индикатора
+ * склеиваются: в очередь событий попадает не больше одного обновления за раз.
+ *
+ * Каждое задание записывает событие JFR TmEvents.Task (выполнение в фоне), передача результата
+ * в интерфейс - TmEvents.UiUpdate; длина очереди заданий видна в TmMonitor.
+ *
+ * Все методы, кроме самих заданий, вызываются в потоке событий.
+ */
+public class TmTaskRunner {
+
+    /** Действие, выполняемое в фоновом потоке */
+    public interface Task<T> {
+        T run(TmProgress progress) throws Exception;
+    }
+
+    private final ExecutorService executor;
+    // Ключ очереди в TmMonitor
+    private final String queueKey;
+    // Текущее задание по ключу
+    private final Map<String, Handle<?>> running = new HashMap<>();
+
+    private JProgressBar progressBar;
+    // Задание, ход которого показывает индикатор
+    private Handle<?> shown;
+
+    /**
+     * @param name имя потоков (для отладки)
+     * @param threads наибольшее количество одновременно выполняемых заданий
+     */
+    public TmTaskRunner(String name, int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+                    // Незаконченные задания не мешают закрыть программу
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+        this.queueKey = TmMonitor.get().addQueue(name, () -> pool.getQueue().size());
+    }
+
+    /**
+     * Индикатор хода заданий; скрыт, пока нет заданий, сообщающих о ходе
+     */
+    public void setProgressBar(JProgressBar progressBar) {
+        this.progressBar = progressBar;
+        progressBar.setStringPainted(true);
+        progressBar.setVisible(false);
+    }
+
+    /**
+     * Запускает задание, отменяя предыдущее с тем же ключом
+     * @param key ключ задания
+     * @param title подпись индикатора
+     * @param task действие
+     * @param onSuccess получает результат в потоке событий, если задание не отменено
+     * @param onError получает исключение в потоке событий; отменённое задание
+     *                (в том числе вытесненное новым) получает CancellationException,
+     *                а его результат, если он AutoCloseable, закрывается. Ошибка Error
+     *                (например, OutOfMemoryError) передаётся как ExecutionException с ней в причине,
+     *                так что задание и индикатор в любом случае завершаются
+     */
+    public <T> void submit(String key, String title, Task<T> task,
+                           Consumer<? super T> onSuccess, Consumer<? super Exception> onError) {
+        cancel(key);
+        Handle<T> handle = new Handle<>(key, title, onSuccess, onError);
+        running.put(key, handle);
+        executor.execute(() -> handle.execute(task));
+    }
+
+    /**
+     * Отменяет задание: флаг отмены проверяется заданием через TmProgress, поток задания прерывается
+     */
+    public void cancel(String key) {
+        Handle<?> handle = running.remove(key);
+        if (handle != null) {
+            handle.cancel();
+        }
+    }
+
+    /** Выполняется ли задание с этим ключом */
+    public boolean isRunning(String key) {
+        return running.containsKey(key);
+    }
+
+    /** Отменяет все задания и останавливает потоки */
+    public void shutdown() {
+        for (Handle<?> handle : running.values()) {
+            handle.cancel();
+        }
+        running.clear();
+        executor.shutdownNow();
+        TmMonitor.get().removeQueue(queueKey);
+    }
+
+    private void showProgress(Handle<?> handle) {
+        if (progressBar == null || handle.cancelled.get()) {
+            return;
+        }
+        shown = handle;
+        long done = handle.done;
+        long total = handle.total;
+        int percent = total > 0 ? (int) Math.min(100, done * 100 / total) : 0;
+        String text = handle.title + ": " + percent + "%";
+        if (done > 0 && total > done) {
+            long elapsed = System.nanoTime() - handle.started;
+            long remaining = (long) ((double) elapsed * (total - done) / done / 1_000_000_000L);
+            text += ", осталось " + formatDuration(remaining);
+        }
+        progressBar.setValue(percent);
+        progressBar.setString(text);
+        progressBar.setVisible(true);
+    }
+
+    private void hideProgress(Handle<?> handle) {
+        if (progressBar != null && shown == handle) {
+            shown = null;
+            progressBar.setVisible(false);
+        }
+    }
+
+    private static String formatDuration(long seconds) {
+        return seconds < 60 ? seconds + " с" : seconds / 60 + " мин " + seconds % 60 + " с";
+    }
+
+    /**
+     * Состояние одного задания; служит ему и объектом TmProgress
+     */
+    private class Handle<T> implements TmProgress {
+        final String key;
+        final String title;
+        final Consumer<? super T> onSuccess;
+        final Consumer<? super Exception> onError;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        // Обновление индикатора уже стоит в очереди событий
+        final AtomicBoolean updateQueued = new AtomicBoolean();
+        final long started = System.nanoTime();
+        volatile long done;
+        volatile long total;
+        // Поток, выполняющий задание (null, пока оно ждёт в очереди или уже закончено)
+        private Thread worker;
+
+        Handle(String key, String title, Consumer<? super T> onSuccess, Consumer<? super Exception> onError) {
+            this.key = key;
+            this.title = title;
+            this.onSuccess = onSuccess;
+            this.onError = onError;
+        }
+
+        /** Выполняется в фоновом потоке */
+        void execute(Task<T> task) {
+            T result = null;
+            Exception error = null;
+            synchronized (this) {
+                worker = Thread.currentThread();
+            }
+            TmEvents.Task event = new TmEvents.Task();
+            event.begin();
+            long queueTime = System.nanoTime() - started;
+            try {
+                // Задание, отменённое в очереди, не запускается, но о завершении всё равно сообщает
+                if (!cancelled.get()) {
+                    result = task.run(this);
+                }
+            } catch (Exception e) {
+                error = e;
+            } catch (Throwable e) {
+                // Иначе задание так и осталось бы выполняющимся, а индикатор - на экране
+                error = new ExecutionException(e instanceof OutOfMemoryError
+                        ? "Недостаточно памяти: " + e.getMessage() : e.toString(), e);
+            } finally {
+                synchronized (this) {
+                    worker = null;
+                    // Прерывание относится к этому заданию, а не к следующему в том же потоке
+                    Thread.interrupted();
+                }
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.key = key;
+                event.title = title;
+                event.queueTime = queueTime;
+                event.outcome = cancelled.get() || error instanceof CancellationException ? "cancelled"
+                        : error != null ? "error" : "ok";
+                event.commit();
+            }
+            T value = result;
+            Exception failure = error;
+            SwingUtilities.invokeLater(() -> finish(value, failure));
+        }
+
+        /** Выполняется в потоке событий */
+        private void finish(T result, Exception error) {
+            if (running.get(key) == this) {
+                running.remove(key);
+            }
+            hideProgress(this);
+            TmEvents.UiUpdate event = new TmEvents.UiUpdate();
+            event.begin();
+            if (cancelled.get()) {
+                discard(result);
+                onError.accept(new CancellationException("Операция отменена"));
+            } else if (error != null) {
+                onError.accept(error);
+            } else {
+                onSuccess.accept(result);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.key = key;
+                event.title = title;
+                event.commit();
+            }
+        }
+
+        /** Результат, который уже никому не нужен, освобождается */
+        private void discard(T result) {
+            if (result instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) result).close();
+                } catch (Exception e) {
+                    System.err.println("Не удалось освободить результат отменённого задания: " + e);
+                }
+            }
+        }
+
+        void cancel() {
+            cancelled.set(true);
+            synchronized (this) {
+                if (worker != null) {
+                    worker.interrupt();
+                }
+            }
+            hideProgress(this);
+        }
+
+        @Override
+        public void update(long done, long total) {
+            this.done = done;
+            this.total = total;
+            if (!updateQueued.getAndSet(true)) {
+                SwingUtilities.invokeLater(() -> {
+                    updateQueued.set(false);
+                    showProgress(this);
+                });
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled.get() || Thread.currentThread().isInterrupted();
+        }
+    }
+}
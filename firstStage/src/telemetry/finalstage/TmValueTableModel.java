@@ -0,0 +1,182 @@
+package telemetry.finalstage;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Модель таблицы значений: выбранные параметры стоят рядом, по два столбца на параметр
+ * (время и значение). Таблица не хранит строк - ячейка читается из серии и форматируется
+ * только когда JTable её рисует, то есть для видимых строк. Поэтому параметр с миллионами
+ * записей показывается сразу и прокручивается без задержек.
+ *
+ * Модель читает серии в потоке событий; пополнять хранилище (слежение за файлом)
+ * нужно в том же потоке и после этого вызывать refresh.
+ */
+public class TmValueTableModel extends AbstractTableModel {
+    private static final int COLUMNS_PER_PARAM = 2;
+
+    /**
+     * Окно серии, показанное в таблице: записи со временем от from до to включительно
+     */
+    private static class View {
+        final TmSeries series;
+        final long from;
+        final long to;
+        int first;
+        int last;
+        int seriesSize;
+
+        View(TmSeries series, long from, long to) {
+            this.series = series;
+            this.from = from;
+            this.to = to;
+            locate();
+        }
+
+        /** Находит границы окна двоичным поиском; возвращает true, если они изменились */
+        boolean locate() {
+            int oldFirst = first;
+            int oldLast = last;
+            first = series.lowerBound(from);
+            last = Math.max(first, series.upperBound(to));
+            seriesSize = series.size();
+            return first != oldFirst || last != oldLast;
+        }
+
+        int size() {
+            return last - first;
+        }
+    }
+
+    private final List<View> views = new ArrayList<>();
+    private int rowCount = 0;
+
+    /**
+     * Показывает записи серии в интервале времени. Если серия уже показана,
+     * её окно заменяется, иначе она добавляется справа.
+     * @return количество записей в интервале
+     */
+    public int show(TmSeries series, long from, long to) {
+        View view = new View(series, from, to);
+        int index = indexOf(series.getName());
+        if (index >= 0) {
+            views.set(index, view);
+            updateRowCount();
+            fireTableDataChanged();
+        } else {
+            views.add(view);
+            updateRowCount();
+            fireTableStructureChanged();
+        }
+        return view.size();
+    }
+
+    /** Убирает все параметры из таблицы */
+    public void clear() {
+        views.clear();
+        rowCount = 0;
+        fireTableStructureChanged();
+    }
+
+    /** Показан ли хотя бы один параметр */
+    public boolean isEmpty() {
+        return views.isEmpty();
+    }
+
+    /**
+     * Пересчитывает окна серий, в которые добавились записи.
+     * Если записи только дописались в конец окон, таблица получает событие о новых строках
+     * и сохраняет положение прокрутки.
+     */
+    public void refresh() {
+        boolean appendedOnly = true;
+        boolean changed = false;
+        for (View view : views) {
+            if (view.series.size() == view.seriesSize) {
+                continue;
+            }
+            int oldFirst = view.first;
+            int oldLast = view.last;
+            if (view.locate()) {
+                changed = true;
+                // Запись "из прошлого" сдвигает окно, а не только удлиняет его
+                if (view.first != oldFirst || view.last < oldLast) {
+                    appendedOnly = false;
+                }
+            }
+        }
+        if (!changed) {
+            return;
+        }
+        int oldRowCount = rowCount;
+        updateRowCount();
+        if (!appendedOnly) {
+            fireTableDataChanged();
+            return;
+        }
+        // Окна более коротких параметров могли удлиниться в пределах уже существующих строк
+        if (oldRowCount > 0) {
+            fireTableRowsUpdated(0, oldRowCount - 1);
+        }
+        if (rowCount > oldRowCount) {
+            fireTableRowsInserted(oldRowCount, rowCount - 1);
+        }
+    }
+
+    private void updateRowCount() {
+        int max = 0;
+        for (View view : views) {
+            max = Math.max(max, view.size());
+        }
+        rowCount = max;
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < views.size(); i++) {
+            if (views.get(i).series.getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // AbstractTableModel
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return views.size() * COLUMNS_PER_PARAM;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return column % COLUMNS_PER_PARAM == 0
+                ? views.get(column / COLUMNS_PER_PARAM).series.getName()
+                : "Значение";
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return String.class;
+    }
+
+    /**
+     * Время или значение записи; пусто, если у параметра меньше записей, чем строк в таблице
+     */
+    @Override
+    public Object getValueAt(int row, int column) {
+        View view = views.get(column / COLUMNS_PER_PARAM);
+        if (row >= view.size()) {
+            return null;
+        }
+        int i = view.first + row;
+        return column % COLUMNS_PER_PARAM == 0
+                ? TmDat.formatTime(view.series.getTime(i))
+                : view.series.get(i).getValueAsString();
+    }
+}
@@ -4,10 +4,15 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.*;
+import java.util.concurrent.CancellationException;
 
 /**
  * Диалоговое окно для просмотра содержимого выбранного файла.
  * Поддерживает реальный просмотр загруженных данных.
+ * Файл читается в фоне; выбор другого файла отменяет незаконченное чтение.
+ *
+ * ТМ-файл показывается целиком в шестнадцатеричном виде (TmHexView): файл отображается в память
+ * сразу, а список записей для раскраски полей и перехода к записи или времени строится в фоне.
  */
 public class ViewFileDialog extends JDialog {
     private String tmFile;
@@ -19,6 +24,15 @@ public class ViewFileDialog extends JDialog {
     private JTextArea contentArea;
     private JButton btnRefresh;
 
+    // Просмотр ТМ-файла
+    private JPanel contentPanel;
+    private TmHexView hexView;
+    private JComboBox<String> jumpCombo;
+    private JTextField jumpField;
+    private JLabel statusLabel;
+
+    private final TmTaskRunner tasks = new TmTaskRunner("view-file", 2);
+
     public ViewFileDialog(JFrame parent, String tmFile, String xmlFile, String dimFile) {
         this(parent, tmFile, xmlFile, dimFile, null);
     }
@@ -30,7 +44,7 @@ public class ViewFileDialog extends JDialog {
         this.dimFile = dimFile;
         this.reader = reader;
 
-        setSize(600, 400);
+        setSize(800, 500);
         setLocationRelativeTo(parent);
 
         initUI();
@@ -62,16 +76,96 @@ public class ViewFileDialog extends JDialog {
         contentArea.setEditable(false);
         contentArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
         JScrollPane scrollPane = new JScrollPane(contentArea);
-        add(scrollPane, BorderLayout.CENTER);
 
-        // Кнопка закрытия
-        JPanel bottomPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        contentPanel = new JPanel(new CardLayout());
+        contentPanel.add(scrollPane, "text");
+        contentPanel.add(createHexPanel(), "hex");
+        add(contentPanel, BorderLayout.CENTER);
+
+        // Индикатор построения списка записей и кнопка закрытия
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        JProgressBar progressBar = new JProgressBar(0, 100);
+        tasks.setProgressBar(progressBar);
+        bottomPanel.add(progressBar, BorderLayout.CENTER);
         JButton btnClose = new JButton("Закрыть");
         btnClose.addActionListener(e -> dispose());
-        bottomPanel.add(btnClose);
+        bottomPanel.add(btnClose, BorderLayout.EAST);
         add(bottomPanel, BorderLayout.SOUTH);
     }
 
+    private JPanel createHexPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+
+        JPanel jumpPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        jumpPanel.add(new JLabel("Перейти к:"));
+        jumpCombo = new JComboBox<>(new String[]{"смещению", "записи", "времени"});
+        jumpCombo.setToolTipText("Смещение - десятичное или 0x..., запись - номер с нуля, время - ЧЧ:ММ:СС,мс");
+        jumpPanel.add(jumpCombo);
+        jumpField = new JTextField(14);
+        jumpField.addActionListener(e -> jump());
+        jumpPanel.add(jumpField);
+        JButton btnJump = new JButton("Перейти");
+        btnJump.addActionListener(e -> jump());
+        jumpPanel.add(btnJump);
+        panel.add(jumpPanel, BorderLayout.NORTH);
+
+        hexView = new TmHexView();
+        if (reader != null) {
+            hexView.setMetadata(reader.getStore().getMetadata());
+        }
+        hexView.addChangeListener(e -> statusLabel.setText(status()));
+        panel.add(hexView, BorderLayout.CENTER);
+
+        statusLabel = new JLabel(" ");
+        panel.add(statusLabel, BorderLayout.SOUTH);
+        return panel;
+    }
+
+    private void jump() {
+        String text = jumpField.getText().trim();
+        if (text.isEmpty()) {
+            return;
+        }
+        boolean found;
+        try {
+            switch (jumpCombo.getSelectedIndex()) {
+                case 0:
+                    hexView.goToOffset(text.startsWith("0x") || text.startsWith("0X")
+                            ? Long.parseLong(text.substring(2), 16) : Long.parseLong(text));
+                    found = true;
+                    break;
+                case 1:
+                    found = hexView.goToRecord(Long.parseLong(text));
+                    break;
+                default:
+                    found = hexView.goToTime(TmDat.parseTime(text));
+                    break;
+            }
+        } catch (IllegalArgumentException ex) {
+            statusLabel.setText("Неверное значение: " + text);
+            return;
+        }
+        if (!found) {
+            statusLabel.setText(hexView.getIndex() == null
+                    ? "Список записей ещё строится, переход к записи и времени пока недоступен"
+                    : "Нет такой записи: " + text);
+        }
+    }
+
+    /** Выбранная запись и, если данные загружены, статистика по ним */
+    private String status() {
+        StringBuilder sb = new StringBuilder(hexView.describeSelection());
+        TmRecordIndex index = hexView.getIndex();
+        if (index != null && hexView.getSelectedOffset() < 0) {
+            sb.append(", записей: ").append(index.getRecordCount());
+        }
+        if (reader != null && hexView.getSelectedOffset() < 0) {
+            sb.append("; загружено полезных записей: ").append(reader.getUsefulRecords())
+                    .append(", параметров: ").append(reader.getStore().getSeriesCount());
+        }
+        return sb.toString();
+    }
+
     private void onFileTypeChanged(ActionEvent e) {
         updateContent();
     }
@@ -96,56 +190,70 @@ public class ViewFileDialog extends JDialog {
                 break;
         }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("=== ").append(fileDescription).append(" ===\n");
-        sb.append("Путь: ").append(filePath).append("\n\n");
-
-        try {
-            if (selectedIndex == 0) {
-                // TM-файл - показываем первые 512 байт в hex
-                viewTmFileContent(sb, filePath);
-            } else if (selectedIndex == 1) {
-                // XML-файл - читаем как текст
-                viewTextFileContent(sb, filePath, 50); // первые 50 строк
-            } else {
-                // Файл размерностей - читаем как текст
-                viewTextFileContent(sb, filePath, 100);
-            }
-        } catch (IOException ex) {
-            sb.append("\n!!! Ошибка при чтении файла: ").append(ex.getMessage()).append("\n");
+        String path = filePath;
+        String description = fileDescription;
+        CardLayout cards = (CardLayout) contentPanel.getLayout();
+        if (selectedIndex == 0) {
+            showTmFile(path);
+            cards.show(contentPanel, "hex");
+            return;
         }
+        tasks.cancel("index");
+        cards.show(contentPanel, "text");
+        contentArea.setText("Чтение файла " + path + "...");
+        tasks.submit("content", "Чтение", progress -> {
+            StringBuilder sb = new StringBuilder();
+            sb.append("=== ").append(description).append(" ===\n");
+            sb.append("Путь: ").append(path).append("\n\n");
 
-        contentArea.setText(sb.toString());
-        contentArea.setCaretPosition(0);
-    }
-
-    private void viewTmFileContent(StringBuilder sb, String filePath) throws IOException {
-        File file = new File(filePath);
-        sb.append("Размер файла: ").append(file.length()).append(" байт\n\n");
-        sb.append("Первые 256 байт (hex):\n");
-
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-            int bytesToRead = Math.min(256, (int) file.length());
-            byte[] buffer = new byte[bytesToRead];
-            raf.readFully(buffer);
-
-            // Вывод в 16 колонок
-            for (int i = 0; i < bytesToRead; i++) {
-                if (i % 16 == 0) {
-                    sb.append(String.format("\n%04X: ", i));
+            try {
+                if (selectedIndex == 1) {
+                    // XML-файл - читаем как текст
+                    viewTextFileContent(sb, path, 50); // первые 50 строк
+                } else {
+                    // Файл размерностей - читаем как текст
+                    viewTextFileContent(sb, path, 100);
                 }
-                sb.append(String.format("%02X ", buffer[i] & 0xFF));
+            } catch (IOException ex) {
+                sb.append("\n!!! Ошибка при чтении файла: ").append(ex.getMessage()).append("\n");
             }
-            sb.append("\n");
-
-            // Если данные загружены, показываем статистику по файлу
-            if (reader != null) {
-                sb.append("\n=== Статистика по загруженным данным ===\n");
-                sb.append("Всего записей: ").append(reader.getTotalRecords()).append("\n");
-                sb.append("Полезных записей: ").append(reader.getUsefulRecords()).append("\n");
-                sb.append("Уникальных параметров: ").append(reader.getRecordsByName().size()).append("\n");
+            return sb.toString();
+        }, text -> {
+            contentArea.setText(text);
+            contentArea.setCaretPosition(0);
+        }, ex -> {
+            if (!(ex instanceof CancellationException)) {
+                contentArea.setText("Ошибка при чтении файла: " + ex.getMessage());
             }
+        });
+    }
+
+    @Override
+    public void dispose() {
+        tasks.shutdown();
+        super.dispose();
+    }
+
+    /**
+     * Отображает ТМ-файл (сразу, без чтения) и читает сохранённый или строит в фоне список его записей
+     */
+    private void showTmFile(String path) {
+        MappedTmFile file;
+        try {
+            file = MappedTmFile.map(path);
+        } catch (IOException ex) {
+            tasks.cancel("index");
+            hexView.setFile(null);
+            statusLabel.setText("Ошибка при чтении файла: " + ex.getMessage());
+            return;
         }
+        hexView.setFile(file);
+        tasks.submit("index", "Список записей", progress -> TmRecordIndex.load(path, file, progress),
+                hexView::setIndex, ex -> {
+                    if (!(ex instanceof CancellationException)) {
+                        statusLabel.setText("Ошибка при чтении файла: " + ex.getMessage());
+                    }
+                });
     }
 
     private void viewTextFileContent(StringBuilder sb, String filePath, int maxLines) throws IOException {